@@ -0,0 +1,47 @@
+package com.example.textgame.config;
+
+import com.example.textgame.model.AttributeSchema;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * (新) 玩家属性的定义：game.attributes 中的属性名、显示名称、每项初始值的范围和初始点数总和
+ * 启动时安装为 AttributeSchema.current()；加载故事（InMemoryGameRepository）和读取存档（GameEventStore）
+ * 的 bean 依赖这个 bean，保证在它们之前安装。
+ * 存档和故事包按属性下标保存：只能在末尾追加新属性，不能删除或调整已有属性的顺序。
+ */
+@Configuration
+public class AttributeConfig {
+
+    @Bean
+    public AttributeSchema attributeSchema(@Value("${game.attributes.names:insight,resolve,empathy}") String[] names,
+                                           @Value("${game.attributes.labels:}") String[] labels,
+                                           @Value("${game.attributes.min:1}") int[] min,
+                                           @Value("${game.attributes.max:10}") int[] max,
+                                           @Value("${game.attributes.total:15}") int total) {
+        AttributeSchema schema = new AttributeSchema(names,
+                labels.length == 0 ? names : labels,
+                perAttribute(min, names.length, "min"), perAttribute(max, names.length, "max"), total);
+        AttributeSchema.install(schema);
+        System.out.println("玩家属性: " + schema + ", 合法的初始分配 " + schema.allocationCount() + " 种");
+        return schema;
+    }
+
+    /**
+     * 只写一个值时所有属性使用同一个值
+     */
+    private static int[] perAttribute(int[] values, int count, String key) {
+        if (values.length == 1) {
+            int[] all = new int[count];
+            Arrays.fill(all, values[0]);
+            return all;
+        }
+        if (values.length != count) {
+            throw new IllegalArgumentException("game.attributes." + key + " 的数量与属性数量 " + count + " 不一致");
+        }
+        return values;
+    }
+}
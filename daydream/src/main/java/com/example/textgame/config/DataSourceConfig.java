@@ -0,0 +1,97 @@
+package com.example.textgame.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * (新) 数据源：spring.datasource 是主库，game.datasource.replica-urls 中的每个地址是一个只读副本
+ * 没有配置副本时与之前相同，只有主库一个连接池。
+ * (新) game.sharding.shard-urls 中的每个地址是一个分片，保存玩家的游戏数据（见 ShardRoutingDataSource）
+ */
+@Configuration
+public class DataSourceConfig {
+
+    @Bean(destroyMethod = "close")
+    public ReplicaRoutingDataSource routingDataSource(DataSourceProperties properties,
+                                                      @Value("${game.datasource.replica-urls:}") List<String> replicaUrls,
+                                                      @Value("${game.datasource.replica-username:}") String replicaUsername,
+                                                      @Value("${game.datasource.replica-password:}") String replicaPassword,
+                                                      @Value("${game.datasource.max-replica-lag-ms:1000}") long maxLagMs,
+                                                      @Value("${game.datasource.heartbeat-interval-ms:250}") long heartbeatIntervalMs,
+                                                      ObjectProvider<MeterRegistry> meterRegistry) {
+        HikariDataSource primary = pool(properties, properties.determineUrl(), properties.determineUsername(),
+                properties.determinePassword(), "primary", meterRegistry);
+        List<HikariDataSource> replicas = new ArrayList<>();
+        for (String url : replicaUrls) {
+            if (url.isBlank()) {
+                continue;
+            }
+            // 副本默认使用主库的账号
+            replicas.add(pool(properties, url.trim(),
+                    replicaUsername.isEmpty() ? properties.determineUsername() : replicaUsername,
+                    replicaUsername.isEmpty() ? properties.determinePassword() : replicaPassword,
+                    "replica-" + (replicas.size() + 1), meterRegistry));
+        }
+        return new ReplicaRoutingDataSource(primary, replicas, maxLagMs, heartbeatIntervalMs);
+    }
+
+    /**
+     * (新) 分片按配置中的顺序命名为 shard-0, shard-1...：玩家属于哪个分片由名称决定，增加分片时追加在末尾
+     */
+    @Bean(destroyMethod = "close")
+    public ShardRoutingDataSource shardRoutingDataSource(DataSourceProperties properties,
+                                                         ReplicaRoutingDataSource routingDataSource,
+                                                         @Value("${game.sharding.shard-urls:}") List<String> shardUrls,
+                                                         @Value("${game.sharding.shard-username:}") String shardUsername,
+                                                         @Value("${game.sharding.shard-password:}") String shardPassword,
+                                                         @Value("${game.sharding.virtual-nodes:512}") int virtualNodes,
+                                                         ObjectProvider<MeterRegistry> meterRegistry) {
+        List<HikariDataSource> shards = new ArrayList<>();
+        for (String url : shardUrls) {
+            if (url.isBlank()) {
+                continue;
+            }
+            shards.add(pool(properties, url.trim(),
+                    shardUsername.isEmpty() ? properties.determineUsername() : shardUsername,
+                    shardUsername.isEmpty() ? properties.determinePassword() : shardPassword,
+                    "shard-" + shards.size(), meterRegistry));
+        }
+        return new ShardRoutingDataSource(routingDataSource, shards, virtualNodes);
+    }
+
+    /**
+     * JPA 等使用的数据源：第一次执行语句时才向 shardRoutingDataSource 取连接，这时已经知道事务是否只读、使用哪个分片
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ShardRoutingDataSource shardRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(shardRoutingDataSource);
+    }
+
+    private static HikariDataSource pool(DataSourceProperties properties, String url, String username, String password,
+                                         String name, ObjectProvider<MeterRegistry> meterRegistry) {
+        HikariDataSource pool = DataSourceBuilder.create(properties.getClassLoader())
+                .type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(url)
+                .username(username)
+                .password(password)
+                .build();
+        pool.setPoolName(name);
+        meterRegistry.ifAvailable(registry -> pool.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(registry)));
+        return pool;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.textgame.config;
 
 import com.example.textgame.service.UserService;
+import jakarta.servlet.DispatcherType;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -29,6 +30,9 @@ public class SecurityConfig {
         return http
                 .csrf(AbstractHttpConfigurer::disable)
                 .authorizeHttpRequests(auth -> auth
+                        // (新) 异步请求（游戏命令）结束后的分派：原请求已经通过认证
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC, DispatcherType.ERROR).permitAll()
+
                         // 允许访问前端页面和白名单API
                         .requestMatchers("/", "/*.html", "/favicon.ico").permitAll()
                         .requestMatchers("/api/auth/login").permitAll() // 登录
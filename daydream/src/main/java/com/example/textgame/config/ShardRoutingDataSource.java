@@ -0,0 +1,198 @@
+package com.example.textgame.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * (新) 按 user_id 分片：玩家的游戏数据（game_state 及其集合表、game_choice_log、game_event、
+ * game_state_snapshot、game_save_slot）在 ShardMap 指定的分片上，其他表（app_user、knowledge_article 等）在全局库
+ * 1. 访问玩家数据的事务在第一次执行语句之前调用 useShardOf(userId)，之后这个事务的连接来自该玩家的分片；
+ *    没有调用时使用全局库（spring.datasource，读写分离见 ReplicaRoutingDataSource）
+ * 2. 一个事务只能使用一个库：已经访问了全局库或另一个分片之后再调用 useShardOf 会抛出 IllegalStateException，
+ *    不会把数据静默写到错误的库。需要先查 app_user 的地方在单独的事务中查询
+ * 3. 没有配置分片时所有连接都来自全局库，useShardOf 不起作用
+ * 与 ReplicaRoutingDataSource 一样放在 LazyConnectionDataSourceProxy 后面。
+ * 分片上的表结构与全局库中的同名表相同（不需要 app_user，也不要建指向它的外键）；
+ * 全局库中的这些表保留（启动时 Hibernate 按全局库校验表结构），移到分片之后为空。
+ */
+public class ShardRoutingDataSource extends AbstractDataSource implements Closeable {
+
+    private static final String GLOBAL = "";
+    private static final ThreadLocal<String> TARGET = new ThreadLocal<>(); // 当前事务使用的分片；GLOBAL 表示全局库
+
+    private final ReplicaRoutingDataSource global;
+    private final ShardMap shardMap; // 没有分片时为 null
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+
+    private static final class Shard {
+        private final HikariDataSource dataSource;
+        private final LongAdder connections = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private Shard(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+
+    /**
+     * @param shards 分片名称是连接池的名称；没有分片时只使用全局库
+     */
+    public ShardRoutingDataSource(ReplicaRoutingDataSource global, List<HikariDataSource> shards, int virtualNodes) {
+        this.global = global;
+        for (HikariDataSource shard : shards) {
+            this.shards.put(shard.getPoolName(), new Shard(shard));
+        }
+        this.shardMap = shards.isEmpty() ? null : new ShardMap(new ArrayList<>(this.shards.keySet()), virtualNodes);
+    }
+
+    public boolean isSharded() {
+        return shardMap != null;
+    }
+
+    /**
+     * 玩家所在的分片；没有分片时返回 null（全局库）
+     */
+    public String shardOf(Long userId) {
+        return shardMap == null ? null : shardMap.shardOf(userId);
+    }
+
+    /**
+     * 全部分片的名称；没有分片时只有一个 null（全局库）。按分片逐个处理玩家数据时使用
+     */
+    public List<String> shardNames() {
+        return shardMap == null ? Collections.singletonList(null) : shardMap.shards();
+    }
+
+    /**
+     * 当前事务改用玩家所在的分片（在事务第一次访问数据库之前调用，事务结束时恢复）
+     * @throws IllegalStateException 当前事务已经使用了全局库或另一个分片
+     */
+    public void useShardOf(Long userId) {
+        useShard(shardOf(userId));
+    }
+
+    /**
+     * 当前事务改用指定的分片；shard 为 null（没有分片）时不起作用
+     * 分片名称来自 shardOf 或 shardNames，所以不需要数据源实例
+     * @throws IllegalStateException 当前事务已经使用了全局库或另一个分片
+     */
+    public static void useShard(String shard) {
+        if (shard == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        String current = TARGET.get();
+        if (current == null) {
+            bind(shard);
+        } else if (!current.equals(shard)) {
+            throw new IllegalStateException("一个事务只能使用一个库: 已经使用了 "
+                    + (current.equals(GLOBAL) ? "全局库" : "分片 " + current) + "，不能再使用分片 " + shard);
+        }
+    }
+
+    /**
+     * 记录当前事务使用的库；被 REQUIRES_NEW 的事务挂起期间不影响里面的事务
+     */
+    private static void bind(String target) {
+        TARGET.set(target);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void suspend() {
+                TARGET.remove();
+            }
+
+            @Override
+            public void resume() {
+                TARGET.set(target);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TARGET.remove();
+            }
+        });
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        String target = TARGET.get();
+        if (target == null || target.equals(GLOBAL)) {
+            if (target == null && shardMap != null && TransactionSynchronizationManager.isSynchronizationActive()) {
+                bind(GLOBAL); // 之后不能在这个事务中改用分片
+            }
+            return global.getConnection();
+        }
+        Shard shard = shards.get(target);
+        try {
+            Connection connection = shard.dataSource.getConnection();
+            shard.connections.increment();
+            return connection;
+        } catch (SQLException e) {
+            shard.failures.increment();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("分片的数据源使用各连接池自己的账号");
+    }
+
+    /**
+     * 保存玩家数据的库：名称 -> 数据源。没有分片时只有全局库（名称为 null）
+     */
+    public Map<String, DataSource> playerDataSources() {
+        Map<String, DataSource> result = new LinkedHashMap<>();
+        if (shards.isEmpty()) {
+            result.put(null, global);
+        }
+        shards.forEach((name, shard) -> result.put(name, shard.dataSource));
+        return result;
+    }
+
+    public DataSource globalDataSource() {
+        return global;
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> pools = new ArrayList<>();
+        shards.forEach((name, shard) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", name);
+            stats.put("connections", shard.connections.sum());
+            stats.put("failures", shard.failures.sum());
+            HikariPoolMXBean hikari = shard.dataSource.getHikariPoolMXBean(); // 连接池第一次使用之前为 null
+            if (hikari != null) {
+                stats.put("active", hikari.getActiveConnections());
+                stats.put("idle", hikari.getIdleConnections());
+                stats.put("waiting", hikari.getThreadsAwaitingConnection());
+            }
+            pools.add(stats);
+        });
+        return Map.of("global", global.stats(), "shards", pools);
+    }
+
+    /**
+     * 只关闭分片的连接池；全局库由它自己的 bean 关闭
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards.values()) {
+            shard.dataSource.close();
+        }
+    }
+}
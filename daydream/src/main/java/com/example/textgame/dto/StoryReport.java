@@ -0,0 +1,30 @@
+package com.example.textgame.dto;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 故事路径分析报告（StoryExplorer 的输出）
+ * 概率按 PlayerAttributes.roll() 的分配分布加权；可达性对所有合法分配、所有选择序列穷举。
+ */
+@Data
+public class StoryReport {
+    private String storyId;
+    private int version;
+
+    private int allocations;            // 合法的初始属性分配数
+    private int samplesPerAllocation;   // 每个分配的随机游玩次数
+    private int maxSteps;               // 单次游玩/穷举的最大步数
+
+    private Map<String, Double> endingProbability;   // 结局ID -> 随机选择下到达该结局的概率
+    private Map<String, Integer> endingAllocations;  // 结局ID -> 至少有一条路径能到达它的分配数
+    private double deadEndRate;         // 所有选项都被属性锁住、无法继续的概率
+    private double unfinishedRate;      // 达到 maxSteps 仍未结束的概率（在循环中徘徊）
+
+    private List<String> unreachableNodes;  // 任何分配、任何选择序列都到不了的节点ID
+    private List<String> deadEndNodes;      // 出现过“所有选项都被锁住”的节点ID
+    private long exploredStates;        // 穷举时访问的 (节点, 属性) 状态总数
+    private long elapsedMillis;
+}
@@ -0,0 +1,32 @@
+package com.example.textgame.dto;
+
+import com.example.textgame.model.GameNode;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 外部故事脚本文件（JSON）的结构
+ * 例如 stories/mind-trial.json
+ */
+@Data
+@NoArgsConstructor
+public class StoryScript {
+
+    /** 当前支持的脚本格式版本 */
+    public static final int CURRENT_FORMAT = 1;
+
+    private int format;      // 脚本格式版本，用于兼容性检查
+    private String storyId;  // 故事ID (例如 "mind-trial")
+    private int version;     // 脚本内容版本，每次修改脚本时递增
+
+    // 所有节点，nodeId 即节点的主ID
+    private List<GameNode> nodes = new ArrayList<>();
+
+    // 别名 -> 节点主ID (例如 "LIB_IGNORE" -> "LIB_LEAVE_QUIETLY")
+    private Map<String, String> aliases = new LinkedHashMap<>();
+}
@@ -0,0 +1,18 @@
+package com.example.textgame.model;
+
+/**
+ * 选项条件/效果表达式的求值环境（玩家当前的属性、剧情标记和到达过的节点）
+ * GameState 直接实现这个接口；路径分析器使用自己的轻量实现。
+ */
+public interface ChoiceContext {
+
+    int attribute(int index);
+
+    void setAttribute(int index, int value);
+
+    boolean hasFlag(String flag);
+
+    void setFlag(String flag, boolean value);
+
+    boolean hasVisited(String nodeId);
+}
@@ -0,0 +1,104 @@
+package com.example.textgame.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
+
+import java.io.Serializable;
+
+/**
+ * (新) 选择历史中的一条记录
+ * 历史表只追加：一次选择正好插入一行，从不修改或删除；重新开始游戏时清空 GameState 中的历史指针
+ * 每一行指向前一行（prev_seq，为空时是 seq - 1），一轮游戏的历史是一条链，存档和读档只复制链头（见 GameSaveSlot）
+ * 选项保存为它在故事图中的序号和稳定编码，需要文字时（报告、历史页面）再从故事图中查：
+ * 故事版本没变时按序号直接取，版本改变后按编码重新查找（见 CompiledStoryGraph.choiceCode）
+ * 表结构变更:
+ *   CREATE TABLE game_choice_log (
+ *       user_id        BIGINT      NOT NULL,
+ *       seq            INT         NOT NULL, -- 该玩家的第几次选择，从 0 开始，跨多轮游戏递增
+ *       story_id       VARCHAR(64) NULL,
+ *       story_version  INT         NOT NULL,
+ *       choice_ordinal INT         NOT NULL,
+ *       choice_code    INT         NOT NULL DEFAULT 0,
+ *       PRIMARY KEY (user_id, seq)
+ *   );
+ *   (新) 已有的表: ALTER TABLE game_choice_log ADD COLUMN choice_code INT NOT NULL DEFAULT 0;
+ *   旧行的编码和旧的 game_choice_history 表由 ChoiceHistoryMigration 补上/转换
+ *   (新) 存档位: ALTER TABLE game_choice_log ADD COLUMN prev_seq INT NULL;
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "game_choice_log")
+@IdClass(ChoiceLogEntry.Key.class)
+public class ChoiceLogEntry implements Persistable<ChoiceLogEntry.Key> {
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "seq")
+    private int seq;
+
+    @Column(name = "story_id", length = 64)
+    private String storyId;
+
+    // 序号只在同一个故事版本中有意义
+    @Column(name = "story_version", nullable = false)
+    private int storyVersion;
+
+    @Column(name = "choice_ordinal", nullable = false)
+    private int choiceOrdinal;
+
+    // (新) 节点ID + 选项ID 的哈希，跨故事版本不变；0 表示没有编码（升级前写入的行）
+    @Column(name = "choice_code", nullable = false)
+    private int choiceCode;
+
+    // (新) 链上的前一行；为空表示 seq - 1（连续追加的常见情况），只有读档之后的第一次选择才写入
+    @Column(name = "prev_seq")
+    private Integer prevSeq;
+
+    // 主键由我们指定，save 时告诉 Spring Data 这是新行，直接 INSERT 而不是先 SELECT 再合并
+    @Transient
+    private transient boolean fresh = true;
+
+    public ChoiceLogEntry(Long userId, int seq, String storyId, int storyVersion, int choiceOrdinal, int choiceCode,
+                          Integer prevSeq) {
+        this.userId = userId;
+        this.seq = seq;
+        this.storyId = storyId;
+        this.storyVersion = storyVersion;
+        this.choiceOrdinal = choiceOrdinal;
+        this.choiceCode = choiceCode;
+        this.prevSeq = prevSeq;
+    }
+
+    @Override
+    public Key getId() {
+        return new Key(userId, seq);
+    }
+
+    @Override
+    public boolean isNew() {
+        return fresh;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        fresh = false;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Long userId;
+        private int seq;
+    }
+}
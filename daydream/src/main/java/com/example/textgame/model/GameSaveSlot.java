@@ -0,0 +1,78 @@
+package com.example.textgame.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * (新) 玩家的一个存档位：保存时游戏状态的完整副本（节点、属性、剧情标记、到达过的节点、选择历史）
+ * 选择历史只保存链头和长度（见 ChoiceLogEntry），与当前游戏共享历史行，不论玩了多久，保存的大小都相同
+ * 同名的存档位再次保存时覆盖
+ * 表结构变更:
+ *   CREATE TABLE game_save_slot (
+ *       user_id        BIGINT       NOT NULL,
+ *       slot           VARCHAR(32)  NOT NULL,
+ *       story_id       VARCHAR(64)  NULL,
+ *       node_id        VARCHAR(255) NOT NULL,
+ *       history_length INT          NOT NULL,
+ *       state          TEXT         NOT NULL, -- JSON，与状态快照的格式相同
+ *       saved_at       TIMESTAMP    NOT NULL,
+ *       PRIMARY KEY (user_id, slot)
+ *   );
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "game_save_slot")
+@IdClass(GameSaveSlot.Key.class)
+public class GameSaveSlot {
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "slot", length = 32)
+    private String slot;
+
+    // 以下两列只用于列出存档，读档时使用 state
+    @Column(name = "story_id", length = 64)
+    private String storyId;
+
+    @Column(name = "node_id", nullable = false)
+    private String nodeId;
+
+    @Column(name = "history_length", nullable = false)
+    private int historyLength;
+
+    @Lob
+    @Column(name = "state", nullable = false, columnDefinition = "TEXT")
+    private String state;
+
+    @Column(name = "saved_at", nullable = false)
+    private Instant savedAt;
+
+    public GameSaveSlot(GameState gameState, String slot, String state) {
+        this.userId = gameState.getId();
+        this.slot = slot;
+        this.storyId = gameState.getStoryId();
+        this.nodeId = gameState.getCurrentNodeId();
+        this.historyLength = gameState.getHistoryLength();
+        this.state = state;
+        this.savedAt = Instant.now();
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Long userId;
+        private String slot;
+    }
+}
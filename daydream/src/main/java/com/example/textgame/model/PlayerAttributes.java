@@ -1,99 +1,186 @@
 package com.example.textgame.model;
 
-import jakarta.persistence.Column;
-import jakarta.persistence.Embeddable;
-import lombok.Data;
-import java.util.Random;
-import java.util.Map;
-import java.io.Serializable; // (新) 导入
-
-@Data
-@Embeddable
-public class PlayerAttributes implements Serializable { // (新) 实现 Serializable
-
-    // (新) 添加 serialVersionUID
-    private static final long serialVersionUID = 1L;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
 
-    @Column(name = "attr_insight")
-    private Integer insight;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
-    @Column(name = "attr_resolve")
-    private Integer resolve;
+/**
+ * 玩家属性
+ * 属性值按 AttributeSchema 的下标存放在 int[] 中；数据库中由 PlayerAttributesConverter 存为一列，
+ * 返回给前端时仍然是 {"insight": 5, "resolve": 6, "empathy": 4} 的形式。
+ * (新) 属性的名称、数量和初始分配规则来自 AttributeSchema.current()（配置 game.attributes），不再写死在这里。
+ */
+public class PlayerAttributes implements Serializable {
 
-    @Column(name = "attr_empathy")
-    private Integer empathy;
+    // 2: 属性从三个 Integer 字段改为 int[]
+    private static final long serialVersionUID = 2L;
 
-    private static final int TOTAL_POINTS = 15;
-    private static final int MIN_POINTS = 1;
-    private static final int MAX_POINTS = 10;
+    private final int[] values;
 
     public PlayerAttributes() {
+        this.values = new int[attributeCount()];
         roll();
     }
 
     public PlayerAttributes(Map<String, Integer> initialAttributes) {
-        if (!validateManualAttributes(initialAttributes)) {
-            throw new IllegalArgumentException("无效的属性点分配。总点数必须为 " + TOTAL_POINTS + "，且每项在 " + MIN_POINTS + " 到 " + MAX_POINTS + " 之间。");
+        AttributeSchema schema = AttributeSchema.current();
+        this.values = new int[schema.size()];
+        if (!validateManualAttributes(schema, initialAttributes)) {
+            throw new IllegalArgumentException("无效的属性点分配。总点数必须为 " + schema.total() + "，且每项在 "
+                    + schema.min(0) + " 到 " + schema.max(0) + " 之间。");
+        }
+    }
+
+    private PlayerAttributes(int[] values) {
+        this.values = values;
+    }
+
+    /**
+     * 由按下标排列的属性值创建（不校验初始分配规则，用于读取存档）
+     * 旧存档缺少的新属性取该属性的最小值。
+     */
+    public static PlayerAttributes of(int[] values) {
+        AttributeSchema schema = AttributeSchema.current();
+        if (values.length > schema.size()) {
+            throw new IllegalArgumentException("属性数量 " + values.length + " 超过定义的 " + schema.size() + " 项");
+        }
+        int[] copy = new int[schema.size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = i < values.length ? values[i] : schema.min(i);
         }
-        this.insight = initialAttributes.getOrDefault("insight", MIN_POINTS);
-        this.resolve = initialAttributes.getOrDefault("resolve", MIN_POINTS);
-        this.empathy = initialAttributes.getOrDefault("empathy", MIN_POINTS);
+        return new PlayerAttributes(copy);
     }
 
-    private boolean validateManualAttributes(Map<String, Integer> attrs) {
-        if (attrs == null || attrs.size() != 3) return false;
+    @JsonCreator
+    public static PlayerAttributes fromMap(Map<String, Integer> attributes) {
+        AttributeSchema schema = AttributeSchema.current();
+        int[] values = new int[schema.size()];
+        for (int i = 0; i < values.length; i++) {
+            Integer value = attributes.get(schema.nameOf(i));
+            values[i] = value != null ? value : schema.min(i);
+        }
+        return new PlayerAttributes(values);
+    }
+
+    private boolean validateManualAttributes(AttributeSchema schema, Map<String, Integer> attrs) {
+        if (attrs == null || attrs.size() != schema.size()) return false;
 
-        int insightVal = attrs.getOrDefault("insight", 0);
-        int resolveVal = attrs.getOrDefault("resolve", 0);
-        int empathyVal = attrs.getOrDefault("empathy", 0);
+        for (Map.Entry<String, Integer> entry : attrs.entrySet()) {
+            int index = schema.indexOf(entry.getKey());
+            if (index < 0 || entry.getValue() == null) return false;
+            values[index] = entry.getValue();
+        }
+        return schema.isValidAllocation(values);
+    }
 
-        return insightVal + resolveVal + empathyVal == TOTAL_POINTS &&
-                insightVal >= MIN_POINTS && insightVal <= MAX_POINTS &&
-                resolveVal >= MIN_POINTS && resolveVal <= MAX_POINTS &&
-                empathyVal >= MIN_POINTS && empathyVal <= MAX_POINTS;
+    /**
+     * 当前定义的属性数量（编译后的故事图按这个数量存放属性要求/变化向量）
+     */
+    public static int attributeCount() {
+        return AttributeSchema.current().size();
     }
 
+    /**
+     * 在所有合法分配上均匀随机（每个线程自己的随机数生成器，不创建对象）
+     */
     public void roll() {
-        Random rand = new Random();
-        int pointsLeft = TOTAL_POINTS;
-        int numAttributes = 3;
+        roll(ThreadLocalRandom.current());
+    }
 
-        int maxForInsight = Math.min(MAX_POINTS, pointsLeft - (numAttributes - 1) * MIN_POINTS);
-        this.insight = rand.nextInt(maxForInsight - MIN_POINTS + 1) + MIN_POINTS;
-        pointsLeft -= this.insight;
-        numAttributes--;
+    /**
+     * 使用指定的随机数生成器，传入带种子的生成器可以复现结果
+     */
+    public void roll(RandomGenerator random) {
+        AttributeSchema.current().roll(values, random);
+    }
 
-        int maxForResolve = Math.min(MAX_POINTS, pointsLeft - (numAttributes - 1) * MIN_POINTS);
-        maxForResolve = Math.min(maxForResolve, pointsLeft - MIN_POINTS);
-        this.resolve = rand.nextInt(maxForResolve - MIN_POINTS + 1) + MIN_POINTS;
-        pointsLeft -= this.resolve;
+    /**
+     * 所有合法的初始属性分配（按下标排列）
+     */
+    public static List<int[]> validAllocations() {
+        return AttributeSchema.current().allocations();
+    }
 
-        this.empathy = pointsLeft;
+    /**
+     * 属性名 -> 属性下标，未知属性返回 -1
+     */
+    public static int indexOf(String key) {
+        return AttributeSchema.current().indexOf(key);
+    }
 
-        if (this.empathy < MIN_POINTS || this.empathy > MAX_POINTS || this.insight + this.resolve + this.empathy != TOTAL_POINTS) {
-            System.err.println("Attribute roll failed validation, rerolling...");
-            roll();
-        }
+    /**
+     * 属性下标 -> 属性名
+     */
+    public static String keyOf(int index) {
+        return AttributeSchema.current().nameOf(index);
+    }
+
+    public int getAttribute(int index) {
+        return index >= 0 && index < values.length ? values[index] : 0;
+    }
+
+    public void setAttribute(int index, int value) {
+        values[index] = value;
+    }
+
+    public void changeAttribute(int index, int delta) {
+        values[index] += delta;
     }
 
     public int getAttribute(String key) {
-        switch (key) {
-            case "insight": return insight != null ? insight : 0;
-            case "resolve": return resolve != null ? resolve : 0;
-            case "empathy": return empathy != null ? empathy : 0;
-            default: return 0;
-        }
+        return getAttribute(indexOf(key));
     }
 
     public void setAttribute(String key, int value) {
-        switch (key) {
-            case "insight": this.insight = value; break;
-            case "resolve": this.resolve = value; break;
-            case "empathy": this.empathy = value; break;
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[index] = value;
         }
     }
 
     public void changeAttribute(String key, int delta) {
-        setAttribute(key, getAttribute(key) + delta);
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[index] += delta;
+        }
+    }
+
+    /**
+     * 属性值的副本（按下标排列）
+     */
+    public int[] toArray() {
+        return values.clone();
+    }
+
+    @JsonValue
+    public Map<String, Integer> toMap() {
+        AttributeSchema schema = AttributeSchema.current();
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            map.put(schema.nameOf(i), values[i]);
+        }
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PlayerAttributes && Arrays.equals(values, ((PlayerAttributes) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerAttributes" + toMap();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package com.example.textgame.model;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+/**
+ * 玩家属性 <-> 数据库中的一列
+ * 按属性下标以逗号分隔保存，例如 "5,6,4"；增加属性（追加在末尾）不需要修改表结构，
+ * 旧数据缺少的属性在读取时取最小值。
+ */
+@Converter
+public class PlayerAttributesConverter implements AttributeConverter<PlayerAttributes, String> {
+
+    @Override
+    public String convertToDatabaseColumn(PlayerAttributes attributes) {
+        if (attributes == null) {
+            return null;
+        }
+        int count = PlayerAttributes.attributeCount();
+        StringBuilder sb = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(attributes.getAttribute(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public PlayerAttributes convertToEntityAttribute(String column) {
+        if (column == null || column.isEmpty()) {
+            return null;
+        }
+        String[] parts = column.split(",");
+        int[] values = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("无法解析玩家属性: " + column, e);
+        }
+        return PlayerAttributes.of(values);
+    }
+}
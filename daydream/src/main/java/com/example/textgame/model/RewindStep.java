@@ -0,0 +1,145 @@
+package com.example.textgame.model;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * (新) 撤销链中的一步：做出一次选择之前的游戏进度（不可变，只保存在内存中，见 GameState.rewindTip）
+ * 1. 每次选择在链头追加一步，prev 指向前一步；回退 N 步就是链头沿 prev 移动 N 次，
+ *    被回退掉的步骤不再被引用，由 GC 回收
+ * 2. 相邻的步骤共享没有变化的部分：属性和剧情标记没变时引用同一个数组/集合；
+ *    到达过的节点在一轮游戏中只增不减，每步只记录这次选择新到达的节点
+ * 3. 链最长 2 * maxSteps 步，超过时复制最近的 maxSteps 步组成新链（均摊每次选择 O(1)），更早的步骤被回收
+ * 选择历史本身已经是持久化链表（见 ChoiceLogEntry.prevSeq），这里只记录链头位置。
+ */
+public final class RewindStep {
+
+    private final RewindStep prev;
+    private final int depth; // 链中到这一步为止的步数（包括这一步）
+    private final String nodeId;
+    private final int[] attributes;
+    private final Set<String> flags; // 不可修改
+    private final String reached; // 从这一步做出的选择新到达的节点；之前已经到达过时为 null
+    private final int historyHead;
+    private final int historyLength;
+    private final int historyBase;
+
+    private RewindStep(RewindStep prev, String nodeId, int[] attributes, Set<String> flags, String reached,
+                       int historyHead, int historyLength, int historyBase) {
+        this.prev = prev;
+        this.depth = prev == null ? 1 : prev.depth + 1;
+        this.nodeId = nodeId;
+        this.attributes = attributes;
+        this.flags = flags;
+        this.reached = reached;
+        this.historyHead = historyHead;
+        this.historyLength = historyLength;
+        this.historyBase = historyBase;
+    }
+
+    /**
+     * 选择之前的进度（应用选择之前调用，之后用 push 加入链中）
+     */
+    public record Before(String nodeId, int[] attributes, Set<String> flags, int visitedCount,
+                         int historyHead, int historyLength, int historyBase) {
+    }
+
+    public static Before before(GameState state) {
+        RewindStep tip = state.getRewindTip();
+        int[] attributes = state.getAttributes().toArray();
+        if (tip != null && Arrays.equals(tip.attributes, attributes)) {
+            attributes = tip.attributes;
+        }
+        Set<String> flags = tip != null && tip.flags.equals(state.getFlags()) ? tip.flags : Set.copyOf(state.getFlags());
+        return new Before(state.getCurrentNodeId(), attributes, flags, state.getVisitedNodes().size(),
+                state.getHistoryHead(), state.getHistoryLength(), state.getHistoryBase());
+    }
+
+    /**
+     * 选择应用之后把 before 加到 state 的链头
+     * @param maxSteps 最多可以回退的步数
+     */
+    public static void push(GameState state, Before before, int maxSteps) {
+        RewindStep tip = state.getRewindTip();
+        if (tip != null && tip.depth >= 2 * maxSteps) {
+            tip = copyRecent(tip, maxSteps - 1);
+        }
+        String reached = state.getVisitedNodes().size() > before.visitedCount() ? state.getCurrentNodeId() : null;
+        state.setRewindTip(new RewindStep(tip, before.nodeId(), before.attributes(), before.flags(), reached,
+                before.historyHead(), before.historyLength(), before.historyBase()));
+    }
+
+    /**
+     * 链头往前移动 steps 步后的链头；不够时返回 null
+     */
+    public static RewindStep drop(RewindStep tip, int steps) {
+        RewindStep step = tip;
+        for (int i = 0; i < steps && step != null; i++) {
+            step = step.prev;
+        }
+        return step;
+    }
+
+    /**
+     * 可以回退的步数
+     */
+    public static int available(RewindStep tip, int maxSteps) {
+        return tip == null ? 0 : Math.min(tip.depth, maxSteps);
+    }
+
+    /**
+     * @throws IllegalArgumentException 可以回退的步数不够
+     */
+    public static void checkSteps(RewindStep tip, int steps, int maxSteps) {
+        if (steps < 1 || steps > available(tip, maxSteps)) {
+            throw new IllegalArgumentException("最多可以回退 " + available(tip, maxSteps) + " 步: " + steps);
+        }
+    }
+
+    /**
+     * 把 state 恢复到第 steps 步之前（做出那次选择之前）的进度，链头移到更早的一步
+     * 版本号、historyEnd、存档节点不回退
+     * @throws IllegalArgumentException 可以回退的步数不够
+     */
+    public static void rewind(GameState state, int steps, int maxSteps) {
+        RewindStep tip = state.getRewindTip();
+        checkSteps(tip, steps, maxSteps);
+        RewindStep target = tip;
+        for (int i = 0; ; i++) {
+            if (target.reached != null) {
+                state.getVisitedNodes().remove(target.reached);
+            }
+            if (i == steps - 1) {
+                break;
+            }
+            target = target.prev;
+        }
+        state.setCurrentNodeId(target.nodeId);
+        state.setCurrentNodeOrdinal(-1);
+        state.setAttributes(PlayerAttributes.of(target.attributes));
+        state.getFlags().clear();
+        state.getFlags().addAll(target.flags);
+        state.setHistoryHead(target.historyHead);
+        state.setHistoryLength(target.historyLength);
+        state.setHistoryBase(target.historyBase);
+        state.setRewindTip(target.prev);
+    }
+
+    /**
+     * 复制 tip 开始的最近 count 步（count = 0 时返回 null）；更早的步骤不再被引用
+     */
+    private static RewindStep copyRecent(RewindStep tip, int count) {
+        RewindStep[] recent = new RewindStep[count];
+        RewindStep step = tip;
+        for (int i = count - 1; i >= 0; i--) {
+            recent[i] = step;
+            step = step.prev;
+        }
+        RewindStep copy = null;
+        for (RewindStep s : recent) {
+            copy = new RewindStep(copy, s.nodeId, s.attributes, s.flags, s.reached,
+                    s.historyHead, s.historyLength, s.historyBase);
+        }
+        return copy;
+    }
+}
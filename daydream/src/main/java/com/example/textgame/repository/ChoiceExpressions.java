@@ -0,0 +1,435 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.ChoiceContext;
+import com.example.textgame.model.PlayerAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 选项条件与效果的表达式语言，加载故事时解析一次并编译为 lambda
+ *
+ * 条件 (condition)，例如 "insight >= 8 || (flag(met_guide) && !visited(CAVE_END))"
+ * 1. 或: a || b, a or b；与: a && b, a and b；非: !a, not a；括号分组
+ * 2. 比较: 算术式 (>= > <= < == !=) 算术式，算术式由整数、属性名和 + - 组成
+ * 3. visited(X): 本轮到达过节点 X（通过 X 的任一别名到达也算）
+ * 4. flag(X): 剧情标记 X 已设置；true / false
+ *
+ * 效果 (effects)，以分号分隔，例如 "insight += 2; resolve = empathy - 1; set(met_guide); unset(angry)"
+ *
+ * “属性 比较 常数”这类最常见的形式会编译成专门的 lambda，求值时只读一次属性、不分配对象。
+ * 语法错误抛出 IllegalStateException（与脚本校验一致）。
+ */
+public final class ChoiceExpressions {
+
+    @FunctionalInterface
+    public interface Condition {
+        boolean test(ChoiceContext context);
+    }
+
+    @FunctionalInterface
+    public interface Effect {
+        void apply(ChoiceContext context);
+    }
+
+    /**
+     * 把 visited(X) 中的节点ID展开为与它共享节点的所有ID（节点本身及其别名）；未知节点返回 null
+     */
+    @FunctionalInterface
+    public interface NodeResolver {
+        String[] idsSharingNode(String nodeId);
+    }
+
+    @FunctionalInterface
+    private interface IntExpr {
+        int eval(ChoiceContext context);
+    }
+
+    private static final Condition TRUE = context -> true;
+    private static final Condition FALSE = context -> false;
+
+    private static final Set<String> KEYWORDS = Set.of("and", "or", "not", "true", "false", "visited", "flag", "set", "unset");
+
+    private ChoiceExpressions() {
+    }
+
+    public static Condition compileCondition(String source, NodeResolver nodes) {
+        Parser parser = new Parser(source, nodes);
+        Condition condition = parser.or();
+        parser.expectEnd();
+        return condition;
+    }
+
+    public static Effect compileEffects(String source) {
+        Parser parser = new Parser(source, null);
+        List<Effect> effects = new ArrayList<>();
+        do {
+            if (parser.atEnd()) {
+                break; // 允许末尾多一个分号
+            }
+            effects.add(parser.statement());
+        } while (parser.accept(";"));
+        parser.expectEnd();
+        if (effects.isEmpty()) {
+            throw new IllegalStateException("效果表达式为空: \"" + source + "\"");
+        }
+        if (effects.size() == 1) {
+            return effects.get(0);
+        }
+        Effect[] all = effects.toArray(new Effect[0]);
+        return context -> {
+            for (Effect effect : all) {
+                effect.apply(context);
+            }
+        };
+    }
+
+    /**
+     * 算术项：常数、单个属性或一般表达式，前两种在编译比较和赋值时会被特殊处理
+     */
+    private static final class Term {
+        private static final int NONE = -1;
+
+        private final int constant;
+        private final int attribute;
+        private final IntExpr expr;
+
+        private Term(int constant, int attribute, IntExpr expr) {
+            this.constant = constant;
+            this.attribute = attribute;
+            this.expr = expr;
+        }
+
+        static Term constant(int value) {
+            return new Term(value, NONE, null);
+        }
+
+        static Term attribute(int index) {
+            return new Term(0, index, null);
+        }
+
+        boolean isConstant() {
+            return expr == null && attribute == NONE;
+        }
+
+        boolean isAttribute() {
+            return attribute != NONE;
+        }
+
+        IntExpr toExpr() {
+            if (expr != null) {
+                return expr;
+            }
+            if (isAttribute()) {
+                int index = attribute;
+                return context -> context.attribute(index);
+            }
+            int value = constant;
+            return context -> value;
+        }
+
+        Term plus(Term other, boolean subtract) {
+            if (isConstant() && other.isConstant()) {
+                return constant(subtract ? constant - other.constant : constant + other.constant);
+            }
+            IntExpr left = toExpr();
+            if (other.isConstant()) {
+                int value = subtract ? -other.constant : other.constant;
+                return new Term(0, NONE, context -> left.eval(context) + value);
+            }
+            IntExpr right = other.toExpr();
+            return new Term(0, NONE, subtract
+                    ? context -> left.eval(context) - right.eval(context)
+                    : context -> left.eval(context) + right.eval(context));
+        }
+    }
+
+    private static final class Parser {
+        private final String source;
+        private final NodeResolver nodes;
+        private final List<String> tokens = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private int index;
+
+        private Parser(String source, NodeResolver nodes) {
+            this.source = source;
+            this.nodes = nodes;
+            tokenize();
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < source.length()) {
+                char ch = source.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(ch)) {
+                    i++;
+                    continue;
+                }
+                if (Character.isDigit(ch)) {
+                    while (i < source.length() && Character.isDigit(source.charAt(i))) {
+                        i++;
+                    }
+                } else if (Character.isLetter(ch) || ch == '_') {
+                    while (i < source.length() && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+                        i++;
+                    }
+                } else if (i + 1 < source.length() && List.of(">=", "<=", "==", "!=", "&&", "||", "+=", "-=")
+                        .contains(source.substring(i, i + 2))) {
+                    i += 2;
+                } else if ("<>!()+-=;".indexOf(ch) >= 0) {
+                    i++;
+                } else {
+                    throw errorAt(start, "无法识别的字符 '" + ch + "'");
+                }
+                tokens.add(source.substring(start, i));
+                positions.add(start);
+            }
+        }
+
+        // --- 条件 ---
+
+        Condition or() {
+            Condition left = and();
+            while (accept("||") || accept("or")) {
+                Condition a = left;
+                Condition b = and();
+                left = context -> a.test(context) || b.test(context);
+            }
+            return left;
+        }
+
+        private Condition and() {
+            Condition left = unary();
+            while (accept("&&") || accept("and")) {
+                Condition a = left;
+                Condition b = unary();
+                left = context -> a.test(context) && b.test(context);
+            }
+            return left;
+        }
+
+        private Condition unary() {
+            if (accept("!") || accept("not")) {
+                Condition inner = unary();
+                return context -> !inner.test(context);
+            }
+            return atom();
+        }
+
+        private Condition atom() {
+            if (accept("(")) {
+                Condition inner = or();
+                expect(")");
+                return inner;
+            }
+            if (accept("true")) {
+                return TRUE;
+            }
+            if (accept("false")) {
+                return FALSE;
+            }
+            if (accept("visited")) {
+                String[] ids = nodes.idsSharingNode(argument());
+                if (ids == null) {
+                    throw error(index - 2, "visited 引用了不存在的节点: " + tokens.get(index - 2));
+                }
+                if (ids.length == 1) {
+                    String id = ids[0];
+                    return context -> context.hasVisited(id);
+                }
+                return context -> {
+                    for (String id : ids) {
+                        if (context.hasVisited(id)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            if (accept("flag")) {
+                String flag = argument();
+                return context -> context.hasFlag(flag);
+            }
+            return comparison();
+        }
+
+        private Condition comparison() {
+            Term left = arith();
+            int at = index;
+            String op = next("比较运算符");
+            Term right = arith();
+            if (left.isConstant() && right.isConstant()) {
+                return compare(op, left.constant, right.constant, at) ? TRUE : FALSE;
+            }
+            if (left.isAttribute() && right.isConstant()) {
+                int attr = left.attribute;
+                int value = right.constant;
+                switch (op) {
+                    case ">=": return context -> context.attribute(attr) >= value;
+                    case ">": return context -> context.attribute(attr) > value;
+                    case "<=": return context -> context.attribute(attr) <= value;
+                    case "<": return context -> context.attribute(attr) < value;
+                    case "==": return context -> context.attribute(attr) == value;
+                    case "!=": return context -> context.attribute(attr) != value;
+                    default: throw error(at, "需要比较运算符，实际为 '" + op + "'");
+                }
+            }
+            IntExpr l = left.toExpr();
+            IntExpr r = right.toExpr();
+            switch (op) {
+                case ">=": return context -> l.eval(context) >= r.eval(context);
+                case ">": return context -> l.eval(context) > r.eval(context);
+                case "<=": return context -> l.eval(context) <= r.eval(context);
+                case "<": return context -> l.eval(context) < r.eval(context);
+                case "==": return context -> l.eval(context) == r.eval(context);
+                case "!=": return context -> l.eval(context) != r.eval(context);
+                default: throw error(at, "需要比较运算符，实际为 '" + op + "'");
+            }
+        }
+
+        private boolean compare(String op, int left, int right, int at) {
+            switch (op) {
+                case ">=": return left >= right;
+                case ">": return left > right;
+                case "<=": return left <= right;
+                case "<": return left < right;
+                case "==": return left == right;
+                case "!=": return left != right;
+                default: throw error(at, "需要比较运算符，实际为 '" + op + "'");
+            }
+        }
+
+        // --- 算术 ---
+
+        private Term arith() {
+            Term term = operand();
+            while (true) {
+                if (accept("+")) {
+                    term = term.plus(operand(), false);
+                } else if (accept("-")) {
+                    term = term.plus(operand(), true);
+                } else {
+                    return term;
+                }
+            }
+        }
+
+        private Term operand() {
+            if (accept("-")) {
+                return Term.constant(0).plus(operand(), true);
+            }
+            int at = index;
+            String token = next("数字或属性名");
+            if (Character.isDigit(token.charAt(0))) {
+                try {
+                    return Term.constant(Integer.parseInt(token));
+                } catch (NumberFormatException e) {
+                    throw error(at, "数字超出范围: " + token);
+                }
+            }
+            return Term.attribute(attributeIndex(token, at));
+        }
+
+        private int attributeIndex(String name, int at) {
+            int attr = PlayerAttributes.indexOf(name);
+            if (attr < 0 || KEYWORDS.contains(name)) {
+                throw error(at, "未知属性: " + name);
+            }
+            return attr;
+        }
+
+        // --- 效果 ---
+
+        Effect statement() {
+            if (accept("set")) {
+                String flag = argument();
+                return context -> context.setFlag(flag, true);
+            }
+            if (accept("unset")) {
+                String flag = argument();
+                return context -> context.setFlag(flag, false);
+            }
+            int at = index;
+            int attr = attributeIndex(next("属性名"), at);
+            int opAt = index;
+            String op = next("赋值运算符");
+            if (!op.equals("+=") && !op.equals("-=") && !op.equals("=")) {
+                throw error(opAt, "需要 +=、-= 或 =，实际为 '" + op + "'");
+            }
+            Term value = arith();
+            if (value.isConstant()) {
+                int k = value.constant;
+                switch (op) {
+                    case "+=": return context -> context.setAttribute(attr, context.attribute(attr) + k);
+                    case "-=": return context -> context.setAttribute(attr, context.attribute(attr) - k);
+                    case "=": return context -> context.setAttribute(attr, k);
+                    default: throw error(opAt, "需要 +=、-= 或 =，实际为 '" + op + "'");
+                }
+            }
+            IntExpr v = value.toExpr();
+            switch (op) {
+                case "+=": return context -> context.setAttribute(attr, context.attribute(attr) + v.eval(context));
+                case "-=": return context -> context.setAttribute(attr, context.attribute(attr) - v.eval(context));
+                case "=": return context -> context.setAttribute(attr, v.eval(context));
+                default: throw error(opAt, "需要 +=、-= 或 =，实际为 '" + op + "'");
+            }
+        }
+
+        // --- 词法工具 ---
+
+        /**
+         * 读取 "(名称)" 形式的参数
+         */
+        private String argument() {
+            expect("(");
+            int at = index;
+            String name = next("名称");
+            if (!Character.isLetter(name.charAt(0)) && name.charAt(0) != '_' && !Character.isDigit(name.charAt(0))) {
+                throw error(at, "需要名称，实际为 '" + name + "'");
+            }
+            expect(")");
+            return name;
+        }
+
+        boolean atEnd() {
+            return index >= tokens.size();
+        }
+
+        boolean accept(String token) {
+            if (!atEnd() && tokens.get(index).equals(token)) {
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error(index, "需要 '" + token + "'");
+            }
+        }
+
+        private String next(String expected) {
+            if (atEnd()) {
+                throw error(index, "需要" + expected);
+            }
+            return tokens.get(index++);
+        }
+
+        void expectEnd() {
+            if (!atEnd()) {
+                throw error(index, "多余的内容 '" + tokens.get(index) + "'");
+            }
+        }
+
+        private IllegalStateException error(int tokenIndex, String message) {
+            return errorAt(tokenIndex < positions.size() ? positions.get(tokenIndex) : source.length(), message);
+        }
+
+        private IllegalStateException errorAt(int position, String message) {
+            return new IllegalStateException("表达式 \"" + source + "\" 第 " + (position + 1) + " 个字符处: " + message);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.example.textgame.repository;
 
 import com.example.textgame.model.GameState;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Optional;
@@ -17,4 +20,39 @@ public interface GameStateRepository extends JpaRepository<GameState, Long> {
 
     // 或者通过用户 ID (它也是 GameState 的 ID)
     // findById(Long userId) 已经由 JpaRepository 提供了
+
+    // (新) 保存脱离持久化上下文的状态（见 GameStateWriter）：直接更新这一行的各列，不需要先 merge
+    // 乐观锁：数据库中的版本号仍然是 expected 时更新并返回 1，已被其他修改（如节点迁移）改过时返回 0
+    @Modifying
+    @Query("UPDATE GameState s SET s.storyId = :#{#state.storyId}, s.version = :#{#state.version}, "
+            + "s.currentNodeId = :#{#state.currentNodeId}, s.lastSaveNodeId = :#{#state.lastSaveNodeId}, "
+            + "s.attributes = :#{#state.attributes}, s.historyHead = :#{#state.historyHead}, "
+            + "s.historyLength = :#{#state.historyLength}, s.historyBase = :#{#state.historyBase}, "
+            + "s.historyEnd = :#{#state.historyEnd} WHERE s.id = :#{#state.id} AND s.version = :expected")
+    int updateState(@Param("state") GameState state, @Param("expected") long expected);
+
+    // (新) 剧情标记和到达过的节点按行插入、删除（见 GameStateWriter）
+    @Modifying
+    @Query(value = "INSERT INTO game_state_flag (user_id, flag) VALUES (:id, :flag)", nativeQuery = true)
+    void insertFlag(@Param("id") Long id, @Param("flag") String flag);
+
+    @Modifying
+    @Query(value = "DELETE FROM game_state_flag WHERE user_id = :id AND flag = :flag", nativeQuery = true)
+    void deleteFlag(@Param("id") Long id, @Param("flag") String flag);
+
+    @Modifying
+    @Query(value = "DELETE FROM game_state_flag WHERE user_id = :id", nativeQuery = true)
+    void deleteFlags(@Param("id") Long id);
+
+    @Modifying
+    @Query(value = "INSERT INTO game_visited_node (user_id, node_id) VALUES (:id, :nodeId)", nativeQuery = true)
+    void insertVisitedNode(@Param("id") Long id, @Param("nodeId") String nodeId);
+
+    @Modifying
+    @Query(value = "DELETE FROM game_visited_node WHERE user_id = :id AND node_id = :nodeId", nativeQuery = true)
+    void deleteVisitedNode(@Param("id") Long id, @Param("nodeId") String nodeId);
+
+    @Modifying
+    @Query(value = "DELETE FROM game_visited_node WHERE user_id = :id", nativeQuery = true)
+    void deleteVisitedNodes(@Param("id") Long id);
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.StoryStats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 故事目录：按故事ID缓存编译后的故事图
+ * 1. 故事第一次被访问时才加载
+ * 2. 驻留的故事数超过上限时，淘汰最久未访问的故事（LRU）
+ * 3. 每个故事单独记录命中、未命中、加载耗时和淘汰次数
+ * 读路径（命中）只有一次 ConcurrentHashMap 查找，不加锁。
+ */
+public final class StoryCatalog {
+
+    /**
+     * 按故事ID加载故事图；故事不存在时抛出 IllegalArgumentException
+     */
+    public interface Loader {
+        CompiledStoryGraph load(String storyId) throws IOException;
+    }
+
+    private final Loader loader;
+    private final int maxLoaded;
+
+    private final Map<String, Slot> loaded = new ConcurrentHashMap<>();
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    public StoryCatalog(Loader loader, int maxLoaded) {
+        if (maxLoaded < 1) {
+            throw new IllegalArgumentException("maxLoaded 必须大于 0");
+        }
+        this.loader = loader;
+        this.maxLoaded = maxLoaded;
+    }
+
+    private static final class Slot {
+        private final String storyId;
+        private volatile CompiledStoryGraph graph;
+        private volatile long lastAccess;
+
+        private Slot(String storyId) {
+            this.storyId = storyId;
+        }
+    }
+
+    private static final class Counters {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder loadNanos = new LongAdder();
+        private volatile long lastLoadNanos;
+    }
+
+    public CompiledStoryGraph get(String storyId) {
+        Slot slot = loaded.get(storyId);
+        if (slot != null) {
+            CompiledStoryGraph graph = slot.graph;
+            if (graph != null) {
+                slot.lastAccess = clock.incrementAndGet();
+                counters.get(storyId).hits.increment();
+                return graph;
+            }
+        }
+        return load(storyId);
+    }
+
+    private CompiledStoryGraph load(String storyId) {
+        Slot slot = loaded.computeIfAbsent(storyId, Slot::new);
+        CompiledStoryGraph graph;
+        // 同一个故事只加载一次，其它故事的读写不受影响
+        synchronized (slot) {
+            graph = slot.graph;
+            if (graph == null) {
+                long start = System.nanoTime();
+                try {
+                    graph = loader.load(storyId);
+                } catch (IOException | RuntimeException e) {
+                    loaded.remove(storyId, slot);
+                    if (e instanceof IllegalArgumentException) {
+                        throw (IllegalArgumentException) e;
+                    }
+                    throw new IllegalStateException("无法加载故事: " + storyId, e);
+                }
+                long elapsed = System.nanoTime() - start;
+                Counters c = counters.computeIfAbsent(storyId, id -> new Counters());
+                c.misses.increment();
+                c.loadNanos.add(elapsed);
+                c.lastLoadNanos = elapsed;
+                slot.graph = graph;
+            } else {
+                counters.get(storyId).hits.increment();
+            }
+            slot.lastAccess = clock.incrementAndGet();
+        }
+        evictIfNeeded();
+        return graph;
+    }
+
+    /**
+     * 淘汰最久未访问的故事，直到驻留数不超过上限
+     * 已经拿到旧故事图的请求不受影响，它们持有的引用仍然有效。
+     */
+    private void evictIfNeeded() {
+        if (loaded.size() <= maxLoaded) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (loaded.size() > maxLoaded) {
+                Slot oldest = null;
+                for (Slot slot : loaded.values()) {
+                    if (slot.graph != null && (oldest == null || slot.lastAccess < oldest.lastAccess)) {
+                        oldest = slot;
+                    }
+                }
+                if (oldest == null || !loaded.remove(oldest.storyId, oldest)) {
+                    return;
+                }
+                counters.get(oldest.storyId).evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * 已驻留的故事重新加载并整体替换；未驻留的故事下次访问时自然会读到新脚本
+     * 加载失败时保留旧的故事图并返回 false
+     */
+    public boolean reload(String storyId) {
+        Slot slot = loaded.get(storyId);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            if (slot.graph == null) {
+                return false;
+            }
+            try {
+                slot.graph = loader.load(storyId);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("故事 " + storyId + " 重新加载失败，继续使用 v" + slot.graph.getVersion() + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    public boolean isLoaded(String storyId) {
+        Slot slot = loaded.get(storyId);
+        return slot != null && slot.graph != null;
+    }
+
+    public List<StoryStats> stats() {
+        List<StoryStats> result = new ArrayList<>();
+        counters.forEach((storyId, c) -> {
+            Slot slot = loaded.get(storyId);
+            CompiledStoryGraph graph = slot != null ? slot.graph : null;
+            result.add(new StoryStats(storyId, graph != null, graph != null ? graph.getVersion() : null,
+                    c.hits.sum(), c.misses.sum(), c.evictions.sum(),
+                    c.loadNanos.sum() / 1_000_000, c.lastLoadNanos / 1_000_000));
+        });
+        return result;
+    }
+}
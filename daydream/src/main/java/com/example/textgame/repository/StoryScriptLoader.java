@@ -0,0 +1,71 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.StoryScript;
+import com.example.textgame.model.GameNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 读取并校验外部故事脚本，编译为 CompiledStoryGraph
+ * 校验失败时抛出 IllegalStateException，调用方可以决定是否保留旧的故事图。
+ */
+public final class StoryScriptLoader {
+
+    /** 游戏固定从这个节点开始 (见 GameState 构造函数) */
+    public static final String START_NODE_ID = "START";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private StoryScriptLoader() {
+    }
+
+    public static CompiledStoryGraph load(Path scriptFile) throws IOException {
+        try (InputStream in = Files.newInputStream(scriptFile)) {
+            return load(in);
+        }
+    }
+
+    public static CompiledStoryGraph load(InputStream in) throws IOException {
+        return compile(MAPPER.readValue(in, StoryScript.class));
+    }
+
+    public static CompiledStoryGraph compile(StoryScript script) {
+        if (script.getFormat() != StoryScript.CURRENT_FORMAT) {
+            throw new IllegalStateException("不支持的脚本格式: " + script.getFormat());
+        }
+
+        Map<String, GameNode> nodesById = new LinkedHashMap<>();
+        for (GameNode node : script.getNodes()) {
+            if (node.getNodeId() == null || nodesById.put(node.getNodeId(), node) != null) {
+                throw new IllegalStateException("节点ID为空或重复: " + node.getNodeId());
+            }
+        }
+        for (Map.Entry<String, String> alias : script.getAliases().entrySet()) {
+            GameNode target = nodesById.get(alias.getValue());
+            if (target == null) {
+                throw new IllegalStateException("别名 " + alias.getKey() + " 指向不存在的节点: " + alias.getValue());
+            }
+            if (nodesById.putIfAbsent(alias.getKey(), target) != null) {
+                throw new IllegalStateException("别名与已有节点ID冲突: " + alias.getKey());
+            }
+        }
+        if (!nodesById.containsKey(START_NODE_ID)) {
+            throw new IllegalStateException("脚本缺少起始节点: " + START_NODE_ID);
+        }
+
+        CompiledStoryGraph graph = CompiledStoryGraph.compile(script.getStoryId(), script.getVersion(), nodesById);
+        for (int c = 0; c < graph.choiceCount(); c++) {
+            if (graph.targetOf(c) == CompiledStoryGraph.NOT_FOUND) {
+                throw new IllegalStateException("选项 " + graph.choiceAt(c).getChoiceId()
+                        + " 指向不存在的节点: " + graph.choiceAt(c).getNextNodeId());
+            }
+        }
+        return graph;
+    }
+}
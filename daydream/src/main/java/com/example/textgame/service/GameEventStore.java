@@ -0,0 +1,416 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.model.ChoiceLogEntry;
+import com.example.textgame.model.GameChoice;
+import com.example.textgame.model.GameEvent;
+import com.example.textgame.model.GameState;
+import com.example.textgame.model.GameStateSnapshot;
+import com.example.textgame.model.PlayerAttributes;
+import com.example.textgame.model.RewindStep;
+import com.example.textgame.repository.ChoiceLogRepository;
+import com.example.textgame.repository.CompiledStoryGraph;
+import com.example.textgame.repository.GameEventRepository;
+import com.example.textgame.repository.GameStateRepository;
+import com.example.textgame.repository.GameStateSnapshotRepository;
+import com.example.textgame.repository.InMemoryGameRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (新) 游戏状态的持久化方式 (game.state-store)
+ * 1. entity（默认）：修改 GameState 后更新 game_state 中的一行，剧情标记和到达过的节点只写入有变化的行
+ * 2. events：每次操作只插入一个 GameEvent；game_state 只在创建玩家时写入一次，
+ *    当前状态 = 最新快照 + 按顺序应用其后的事件，每 snapshot-every 个事件追加一个快照
+ * 3. write-behind：修改写入内存中的会话和本地预写日志，定期合并写入 game_state（见 GameStateWriteBehind）
+ * 所有方式使用同一个 apply 修改状态，所以在线操作与重放的结果一致；选择历史的行也在这里写入。
+ * (新) 在线的选择同时追加到内存中的撤销链（见 RewindStep），重放时不追加。
+ */
+@Service
+@DependsOn("attributeSchema") // (新) 先安装属性定义（见 AttributeConfig）
+public class GameEventStore {
+
+    private enum Mode { ENTITY, EVENTS, WRITE_BEHIND }
+
+    private final Mode mode;
+    private final int snapshotEvery;
+    private final long flushIntervalMs;
+    private final int rewindSteps;
+    private final GameEventRepository eventRepository;
+    private final GameStateSnapshotRepository snapshotRepository;
+    private final GameStateRepository stateRepository;
+    private final ChoiceLogRepository choiceLogRepository;
+    private final InMemoryGameRepository gameRepository;
+    private final ObjectMapper objectMapper;
+    private final EntityManager entityManager;
+    private final GameStateWriter stateWriter; // (新) entity 和 write-behind 模式下写入 game_state
+    private final GameStateWriteBehind writeBehind; // 只在 write-behind 模式下使用
+    private ScheduledExecutorService flusher;
+
+    // 依赖 ShardRebalancer：先把玩家移到所属的分片，再从预写日志恢复
+    public GameEventStore(@Value("${game.state-store:entity}") String mode,
+                          @Value("${game.snapshot-every:50}") int snapshotEvery,
+                          @Value("${game.write-behind.wal-dir:./data/wal}") String walDir,
+                          @Value("${game.write-behind.flush-interval-ms:200}") long flushIntervalMs,
+                          @Value("${game.rewind.max-steps:20}") int rewindSteps,
+                          GameEventRepository eventRepository,
+                          GameStateSnapshotRepository snapshotRepository,
+                          GameStateRepository stateRepository,
+                          ChoiceLogRepository choiceLogRepository,
+                          InMemoryGameRepository gameRepository,
+                          ObjectMapper objectMapper,
+                          EntityManager entityManager,
+                          PlatformTransactionManager transactionManager,
+                          ShardRoutingDataSource shardRouting,
+                          ShardRebalancer shardRebalancer) throws IOException {
+        this.mode = switch (mode) {
+            case "entity" -> Mode.ENTITY;
+            case "events" -> Mode.EVENTS;
+            case "write-behind" -> Mode.WRITE_BEHIND;
+            default -> throw new IllegalArgumentException("未知的 game.state-store: " + mode + "（应为 entity、events 或 write-behind）");
+        };
+        if (snapshotEvery <= 0) {
+            throw new IllegalArgumentException("game.snapshot-every 必须大于 0: " + snapshotEvery);
+        }
+        if (flushIntervalMs <= 0) {
+            throw new IllegalArgumentException("game.write-behind.flush-interval-ms 必须大于 0: " + flushIntervalMs);
+        }
+        if (rewindSteps < 0) {
+            throw new IllegalArgumentException("game.rewind.max-steps 不能小于 0: " + rewindSteps);
+        }
+        this.snapshotEvery = snapshotEvery;
+        this.rewindSteps = rewindSteps;
+        this.flushIntervalMs = flushIntervalMs;
+        this.eventRepository = eventRepository;
+        this.snapshotRepository = snapshotRepository;
+        this.stateRepository = stateRepository;
+        this.choiceLogRepository = choiceLogRepository;
+        this.gameRepository = gameRepository;
+        this.objectMapper = objectMapper;
+        this.entityManager = entityManager;
+        this.stateWriter = new GameStateWriter(stateRepository, entityManager);
+        if (this.mode == Mode.WRITE_BEHIND) {
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            this.writeBehind = new GameStateWriteBehind(new GameStateWal(Path.of(walDir)), stateRepository,
+                    stateWriter, choiceLogRepository, objectMapper, transactionTemplate, shardRouting);
+        } else {
+            this.writeBehind = null;
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (mode != Mode.WRITE_BEHIND) {
+            return;
+        }
+        writeBehind.recover();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "game-state-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(writeBehind::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        writeBehind.close();
+    }
+
+    /**
+     * write-behind 模式下内存中比数据库更新的状态；其余模式（或没有待写入的修改时）返回 null
+     */
+    public GameState cached(Long userId) {
+        return mode == Mode.WRITE_BEHIND ? writeBehind.session(userId) : null;
+    }
+
+    /**
+     * write-behind 模式下立即写入待写入的修改（读取数据库中的选择历史之前调用）
+     */
+    public void flushPending() {
+        if (mode == Mode.WRITE_BEHIND) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * (新) 节点ID迁移期间 write-behind 模式下内存中的会话和待写入的状态也换成新ID（见 GameStateWriteBehind.remap）
+     * @param mapping 迁移结束时为 null
+     */
+    void remapNodeIds(NodeIdMapping mapping) {
+        if (mode == Mode.WRITE_BEHIND) {
+            writeBehind.remap(mapping);
+        }
+    }
+
+    /**
+     * 由 game_state 中读出的行得到当前状态
+     * 事件模式下从最新的快照开始重放；玩家还没有快照时把这一行记为 seq = 0 的快照（重放全部事件的起点）
+     */
+    public GameState load(GameState row) {
+        if (mode == Mode.ENTITY) {
+            return stateWriter.detach(row); // 之后只写入有变化的行（见 GameStateWriter）
+        }
+        entityManager.detach(row); // 之后对状态的修改不会被写回 game_state
+        if (mode == Mode.WRITE_BEHIND) {
+            return row;
+        }
+        GameStateSnapshot snapshot = snapshotRepository.findTopByUserIdOrderBySeqDesc(row.getId()).orElse(null);
+        if (snapshot == null) {
+            row.setEventSeq(0);
+            snapshotRepository.save(snapshotOf(row));
+            return row;
+        }
+        restore(row, snapshot);
+        replay(row);
+        return row;
+    }
+
+    /**
+     * 从最早的快照开始，按当前的故事图（评分规则）重放全部事件；结果不保存
+     * 用于规则修改后重新生成报告
+     */
+    public GameState replayAll(GameState row) {
+        if (mode != Mode.EVENTS) {
+            throw new IllegalStateException("未开启事件溯源模式 (game.state-store=events)，无法重放");
+        }
+        entityManager.detach(row);
+        GameStateSnapshot genesis = snapshotRepository.findTopByUserIdOrderBySeqAsc(row.getId()).orElse(null);
+        if (genesis == null) {
+            row.setEventSeq(0);
+            return row;
+        }
+        restore(row, genesis);
+        replay(row);
+        return row;
+    }
+
+    /**
+     * 把事件应用到状态上并持久化；选择事件同时追加一行选择历史
+     * @return 修改后的状态（write-behind 模式下可能是内存中的另一个会话对象，调用方应使用返回值）
+     * @throws OptimisticLockException entity 模式下 state 的版本号与数据库中的不一致（所在事务回滚，会话被移除）
+     */
+    public GameState record(GameState state, GameEvent event) {
+        if (mode == Mode.WRITE_BEHIND) {
+            return writeBehind.record(state, session -> applyAndLog(session, event));
+        }
+        long expected = state.getVersion();
+        ChoiceLogEntry entry = applyAndLog(state, event);
+        if (entry != null) {
+            choiceLogRepository.save(entry);
+        }
+        if (mode == Mode.ENTITY) {
+            // 内存中的会话读取之后，数据库中的行被改过（例如 NodeIdMigration）时不能用旧状态覆盖
+            stateWriter.write(state, expected);
+            return state;
+        }
+        eventRepository.save(event);
+        if (state.getEventSeq() % snapshotEvery == 0) {
+            snapshotRepository.save(snapshotOf(state));
+        }
+        return state;
+    }
+
+    private ChoiceLogEntry applyAndLog(GameState state, GameEvent event) {
+        ChoiceLogEntry entry = event.getType() != GameEvent.Type.CHOICE ? null : new ChoiceLogEntry(state.getId(),
+                state.getHistoryEnd(), event.getStoryId(), event.getStoryVersion(), event.getChoiceOrdinal(),
+                choiceCodeOf(event), state.nextHistoryPrev());
+        if (entry != null && rewindSteps > 0) {
+            RewindStep.Before before = RewindStep.before(state);
+            apply(state, event);
+            RewindStep.push(state, before, rewindSteps);
+        } else {
+            apply(state, event);
+        }
+        return entry;
+    }
+
+    /**
+     * (新) 可以回退的选择次数；撤销链只在内存中，重新从数据库加载状态后为 0
+     */
+    public int rewindable(GameState state) {
+        return RewindStep.available(state.getRewindTip(), rewindSteps);
+    }
+
+    /**
+     * (新) 回退最近 steps 次选择后的进度（GameStateJson 格式），在 state 的副本上计算，记录在 REWIND 事件中
+     * 只有 events 模式重放时需要；其他模式不记录事件，只检查次数并返回 null，应用事件时直接沿撤销链回退
+     * @throws IllegalArgumentException 可以回退的次数不够
+     */
+    public String rewound(GameState state, int steps) {
+        RewindStep.checkSteps(state.getRewindTip(), steps, rewindSteps);
+        if (mode != Mode.EVENTS) {
+            return null;
+        }
+        GameState copy = new GameState();
+        copy.setId(state.getId());
+        GameStateJson.read(objectMapper, GameStateJson.write(objectMapper, state), copy);
+        copy.setRewindTip(state.getRewindTip());
+        RewindStep.rewind(copy, steps, rewindSteps);
+        return GameStateJson.write(objectMapper, copy);
+    }
+
+    private void replay(GameState state) {
+        List<GameEvent> events = eventRepository.findByUserIdAndSeqGreaterThanEqualOrderBySeq(state.getId(), state.getEventSeq());
+        for (GameEvent event : events) {
+            if (event.getSeq() != state.getEventSeq()) {
+                throw new IllegalStateException("玩家 " + state.getId() + " 的事件序号不连续: 期望 "
+                        + state.getEventSeq() + "，实际 " + event.getSeq());
+            }
+            apply(state, event);
+        }
+    }
+
+    // --- 状态转移 ---
+
+    private void apply(GameState state, GameEvent event) {
+        if (event.getType() != GameEvent.Type.CHOICE && event.getType() != GameEvent.Type.SAVE
+                && event.getType() != GameEvent.Type.REWIND) {
+            state.setRewindTip(null); // 只能回退到最近一次重置、读档或修改属性之后的选择
+        }
+        switch (event.getType()) {
+            case ROLL, SET_ATTRIBUTES -> state.setAttributes(event.copyAttributes());
+            case CHOICE -> applyChoice(state, event);
+            case START_STORY -> {
+                state.setStoryId(event.getStoryId());
+                restart(state, event.copyAttributes());
+            }
+            case RESET -> restart(state, event.copyAttributes());
+            case SAVE -> state.setLastSaveNodeId(state.getCurrentNodeId());
+            case LOAD -> {
+                String savedNodeId = state.getLastSaveNodeId();
+                state.setCurrentNodeId(savedNodeId == null || savedNodeId.isEmpty() ? "START" : savedNodeId);
+            }
+            case LOAD_SLOT -> GameStateJson.readSlot(objectMapper, event.getState(), state);
+            case REWIND -> {
+                if (event.getState() != null) {
+                    GameStateJson.readSlot(objectMapper, event.getState(), state);
+                    state.setRewindTip(RewindStep.drop(state.getRewindTip(), event.getRewindSteps()));
+                } else {
+                    RewindStep.rewind(state, event.getRewindSteps(), rewindSteps);
+                }
+            }
+        }
+        state.markModified();
+        state.setEventSeq(state.getEventSeq() + 1);
+    }
+
+    /**
+     * 事件记录的选项序号仍然指向这个节点上的同一个选项时直接使用，否则按节点ID和选项ID重新查找
+     * 重新查找也失败时（节点或选项已被删除）只计入历史，不改变状态
+     */
+    private void applyChoice(GameState state, GameEvent event) {
+        state.appendHistory();
+        CompiledStoryGraph graph;
+        try {
+            graph = gameRepository.getGraph(event.getStoryId());
+        } catch (IllegalArgumentException e) {
+            System.err.println("重放事件 " + event.getUserId() + "/" + event.getSeq() + " 时故事已不存在: " + event.getStoryId());
+            return;
+        }
+        int choiceOrdinal = resolveChoice(graph, event);
+        if (choiceOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            System.err.println("重放事件 " + event.getUserId() + "/" + event.getSeq() + " 时找不到选项: "
+                    + event.getNodeId() + " / " + event.getChoiceId());
+            return;
+        }
+        updateAttributes(state.getAttributes(), graph, choiceOrdinal);
+        graph.applyEffects(choiceOrdinal, state);
+        GameChoice choice = graph.choiceAt(choiceOrdinal);
+        state.setCurrentNodeId(choice.getNextNodeId());
+        state.markVisited(choice.getNextNodeId());
+        state.setCurrentNodeOrdinal(graph.targetOf(choiceOrdinal));
+    }
+
+    /**
+     * 故事脚本中的 version 由作者手动修改，热加载时不要求改变：版本号相同时选项也可能被调整了顺序或删除，
+     * 所以不按版本号判断，只在序号落在这个节点的选项范围内、并且选项ID相同时才直接使用
+     */
+    private static int resolveChoice(CompiledStoryGraph graph, GameEvent event) {
+        int nodeOrdinal = graph.ordinalOf(event.getNodeId());
+        if (nodeOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            return CompiledStoryGraph.NOT_FOUND;
+        }
+        Integer choiceOrdinal = event.getChoiceOrdinal();
+        if (choiceOrdinal != null && choiceOrdinal >= graph.firstChoice(nodeOrdinal) && choiceOrdinal < graph.endChoice(nodeOrdinal)
+                && graph.choiceIdAt(choiceOrdinal).equals(event.getChoiceId())) {
+            return choiceOrdinal;
+        }
+        return graph.findChoice(nodeOrdinal, event.getChoiceId());
+    }
+
+    /**
+     * (新) 选择历史中的选项编码：按解析出的选项序号取编码，使用节点自身的ID而不是事件中的节点ID（可能是别名）
+     * 故事或选项已经不存在时退回按事件中的ID计算
+     */
+    private int choiceCodeOf(GameEvent event) {
+        try {
+            CompiledStoryGraph graph = gameRepository.getGraph(event.getStoryId());
+            int choiceOrdinal = resolveChoice(graph, event);
+            if (choiceOrdinal != CompiledStoryGraph.NOT_FOUND) {
+                return graph.choiceCodeAt(choiceOrdinal);
+            }
+        } catch (IllegalArgumentException e) {
+            // 故事已不存在
+        }
+        return CompiledStoryGraph.choiceCode(event.getNodeId(), event.getChoiceId());
+    }
+
+    private void restart(GameState state, PlayerAttributes attributes) {
+        state.setCurrentNodeId("START");
+        state.setLastSaveNodeId("START");
+        state.setAttributes(attributes);
+        state.clearHistory(); // 旧的历史行保留在表中
+        state.getFlags().clear();
+        state.getVisitedNodes().clear();
+        state.markVisited("START");
+    }
+
+    /**
+     * 按预编译的属性变化向量更新属性
+     */
+    private void updateAttributes(PlayerAttributes playerAttrs, CompiledStoryGraph graph, int choiceOrdinal) {
+        if (!graph.hasChanges(choiceOrdinal)) {
+            return;
+        }
+        for (int attr = 0; attr < graph.attributeCount(); attr++) {
+            int delta = graph.change(choiceOrdinal, attr);
+            if (delta != 0) {
+                playerAttrs.changeAttribute(attr, delta);
+            }
+        }
+    }
+
+    // --- 快照 ---
+
+    private GameStateSnapshot snapshotOf(GameState state) {
+        return new GameStateSnapshot(state.getId(), state.getEventSeq(), GameStateJson.write(objectMapper, state));
+    }
+
+    private void restore(GameState state, GameStateSnapshot snapshot) {
+        GameStateJson.read(objectMapper, snapshot.getState(), state);
+        state.setEventSeq(snapshot.getSeq());
+    }
+}
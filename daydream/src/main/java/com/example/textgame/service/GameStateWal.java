@@ -0,0 +1,176 @@
+package com.example.textgame.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * (新) 游戏状态的本地预写日志
+ * 1. 按段存放: <dir>/state-<段号>.wal，每条记录为 [长度 int][CRC32 int][内容]
+ * 2. 组提交：append 只写入操作系统缓存，sync 等待自己的记录落盘；
+ *    同时等待的线程中只有一个调用 force，其余线程的记录随这一次一起落盘
+ * 3. rotate 之后旧的段不再写入，旧段中的记录都写入数据库后由 deleteBefore 删除
+ */
+final class GameStateWal implements AutoCloseable {
+
+    private static final String PREFIX = "state-";
+    private static final String SUFFIX = ".wal";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path dir;
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object(); // 加锁顺序: syncLock -> writeLock
+
+    private FileChannel channel;
+    private long segment;
+    private long written;        // 已写入的记录数（由 writeLock 保护）
+    private long segmentStart;   // 当前段第一条记录之前的 written
+    private volatile long durable; // 已落盘的记录数
+
+    GameStateWal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> existing = segments();
+        this.segment = existing.isEmpty() ? 0 : existing.lastKey() + 1;
+        this.channel = open(segment);
+    }
+
+    /**
+     * 打开之前已经存在的各段中的记录，按写入顺序；末尾不完整或校验失败的记录（写入时崩溃）被忽略
+     */
+    List<byte[]> readExisting() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (var entry : segments().headMap(segment).entrySet()) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(entry.getValue()));
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    System.err.println("预写日志 " + entry.getValue() + " 末尾的记录不完整，已忽略");
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                if (crc32(record) != crc) {
+                    System.err.println("预写日志 " + entry.getValue() + " 中的记录校验失败，忽略其后的内容");
+                    break;
+                }
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * 追加一条记录（还没有落盘）
+     * @return 记录的编号，传给 sync
+     */
+    long append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+        buffer.putInt(record.length).putInt(crc32(record)).put(record).flip();
+        synchronized (writeLock) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return ++written;
+        }
+    }
+
+    /**
+     * 等待编号不大于 ticket 的记录都已落盘
+     */
+    void sync(long ticket) throws IOException {
+        if (durable >= ticket) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable >= ticket) {
+                return; // 其他线程的 force 已经包含了这条记录
+            }
+            long target;
+            FileChannel current;
+            synchronized (writeLock) {
+                target = written;
+                current = channel;
+            }
+            current.force(false);
+            durable = target;
+        }
+    }
+
+    /**
+     * 开始一个新的段（当前段为空时不切换）
+     * @return 新段的段号：小于它的段不会再写入
+     */
+    long rotate() throws IOException {
+        synchronized (syncLock) {
+            synchronized (writeLock) {
+                if (written == segmentStart) {
+                    return segment;
+                }
+                channel.force(false);
+                channel.close();
+                durable = written;
+                segment++;
+                segmentStart = written;
+                channel = open(segment);
+                return segment;
+            }
+        }
+    }
+
+    /**
+     * 删除段号小于 segment 的段
+     */
+    void deleteBefore(long segment) throws IOException {
+        for (Path path : segments().headMap(segment).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (writeLock) {
+                channel.force(false);
+                channel.close();
+            }
+        }
+    }
+
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(dir.resolve(PREFIX + number + SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        result.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+                    } catch (NumberFormatException ignored) {
+                        // 不是日志段
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
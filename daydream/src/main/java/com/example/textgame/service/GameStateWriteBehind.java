@@ -0,0 +1,278 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.model.ChoiceLogEntry;
+import com.example.textgame.model.GameState;
+import com.example.textgame.repository.ChoiceLogRepository;
+import com.example.textgame.repository.GameStateRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Function;
+
+/**
+ * (新) 延迟写入数据库 (game.state-store=write-behind)
+ * 1. 修改在内存中的会话上进行，然后写入本地预写日志并等待落盘（组提交），不等待数据库
+ * 2. 后台线程定期把修改过的玩家状态写入数据库：同一玩家在两次写入之间的多次修改只写最新的一次；
+ *    选择历史的行按顺序插入。写入成功后删除对应的日志段，并释放没有再修改过的会话
+ * 3. 启动时先把上次没有写入数据库的日志重新写入；关闭时写完所有待写入的修改
+ * (新) 分片时每个分片一个事务（见 ShardRoutingDataSource）；一个分片写入失败时只放回这个分片的修改
+ */
+final class GameStateWriteBehind {
+
+    private final GameStateWal wal;
+    private final GameStateRepository stateRepository;
+    private final GameStateWriter stateWriter;
+    private final ChoiceLogRepository choiceLogRepository;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final ShardRoutingDataSource shardRouting;
+
+    // 有待写入修改的玩家的状态；读取状态时优先于数据库
+    private final Map<Long, GameState> sessions = new ConcurrentHashMap<>();
+    // 玩家ID -> 最新状态的 JSON（还没有写入数据库）
+    private final Map<Long, String> dirty = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<ChoiceLogEntry> history = new ConcurrentLinkedDeque<>();
+    private final Object flushLock = new Object();
+    private volatile NodeIdMapping remap; // (新) 节点ID迁移期间的映射表
+
+    GameStateWriteBehind(GameStateWal wal, GameStateRepository stateRepository, GameStateWriter stateWriter,
+                         ChoiceLogRepository choiceLogRepository, ObjectMapper objectMapper,
+                         TransactionTemplate transactionTemplate, ShardRoutingDataSource shardRouting) {
+        this.wal = wal;
+        this.stateRepository = stateRepository;
+        this.stateWriter = stateWriter;
+        this.choiceLogRepository = choiceLogRepository;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = transactionTemplate;
+        this.shardRouting = shardRouting;
+    }
+
+    /**
+     * 内存中的会话；没有待写入的修改时返回 null（数据库中的状态是最新的）
+     */
+    GameState session(Long userId) {
+        return sessions.get(userId);
+    }
+
+    /**
+     * 修改玩家状态：apply 修改状态并返回需要追加的历史记录（没有时返回 null）
+     * 会话在读取之后被释放时，把 state 重新放回（释放的会话与数据库一致）；已有另一个会话时修改那一个
+     * @return 实际被修改的状态对象
+     */
+    GameState record(GameState state, Function<GameState, ChoiceLogEntry> apply) {
+        Long userId = state.getId();
+        Object[] result = new Object[2];
+        sessions.compute(userId, (id, current) -> {
+            GameState target = current != null ? current : state;
+            NodeIdMapping mapping = remap;
+            if (mapping != null) {
+                mapping.apply(target); // 读取时数据库中的行可能还没有迁移
+            }
+            ChoiceLogEntry entry = apply.apply(target);
+            String json = GameStateJson.write(objectMapper, target);
+            // 先放入 dirty 再写日志：写入旧日志段的修改一定能被下一次 flush 取到
+            dirty.put(id, json);
+            if (entry != null) {
+                history.add(entry);
+            }
+            result[0] = target;
+            result[1] = walRecord(id, json, entry);
+            return target;
+        });
+        try {
+            wal.sync(wal.append((byte[]) result[1]));
+        } catch (IOException e) {
+            // 修改已经在内存中，仍会随下一次 flush 写入数据库，只是崩溃时可能丢失
+            throw new IllegalStateException("写入预写日志失败: " + e.getMessage(), e);
+        }
+        return (GameState) result[0];
+    }
+
+    /**
+     * (新) 节点ID迁移期间（mapping 为 null 时结束）：内存中已有的会话立即换成新ID，之后修改的会话和写入数据库的状态
+     * 也先换成新ID，不会把旧ID写回已经迁移过的行
+     */
+    void remap(NodeIdMapping mapping) {
+        remap = mapping;
+        if (mapping == null) {
+            return;
+        }
+        for (Long userId : sessions.keySet()) {
+            sessions.computeIfPresent(userId, (id, session) -> {
+                mapping.apply(session);
+                return session;
+            });
+        }
+    }
+
+    /**
+     * 把待写入的修改写入数据库；失败时放回，下一次重试（日志段保留）
+     */
+    void flush() {
+        synchronized (flushLock) {
+            long segment;
+            try {
+                segment = wal.rotate();
+            } catch (IOException e) {
+                System.err.println("切换预写日志段失败: " + e.getMessage());
+                return;
+            }
+            Map<Long, String> batch = new HashMap<>();
+            for (Long userId : dirty.keySet()) {
+                String json = dirty.remove(userId);
+                if (json != null) {
+                    batch.put(userId, json);
+                }
+            }
+            List<ChoiceLogEntry> entries = new ArrayList<>();
+            for (ChoiceLogEntry entry; (entry = history.poll()) != null; ) {
+                entries.add(entry);
+            }
+            boolean failed = false;
+            for (Map.Entry<String, Shard> shard : byShard(batch, entries).entrySet()) {
+                Map<Long, String> states = shard.getValue().states();
+                List<ChoiceLogEntry> rows = shard.getValue().entries();
+                try {
+                    write(shard.getKey(), states, rows, false);
+                } catch (RuntimeException e) {
+                    states.forEach(dirty::putIfAbsent); // 期间又修改过的玩家以新状态为准
+                    for (int i = rows.size() - 1; i >= 0; i--) {
+                        history.addFirst(rows.get(i));
+                    }
+                    System.err.println("写入游戏状态失败（" + (shard.getKey() == null ? "" : "分片 " + shard.getKey() + "，")
+                            + states.size() + " 个玩家，" + rows.size() + " 条历史），稍后重试: " + e.getMessage());
+                    failed = true;
+                }
+            }
+            if (failed) {
+                return; // 日志段保留：其他分片已经写入的修改在重放时再写一次，结果相同
+            }
+            try {
+                wal.deleteBefore(segment);
+            } catch (IOException e) {
+                System.err.println("删除预写日志段失败: " + e.getMessage()); // 下次启动时重放，结果相同
+            }
+            for (Long userId : batch.keySet()) {
+                sessions.computeIfPresent(userId, (id, session) -> dirty.containsKey(id) ? session : null);
+            }
+        }
+    }
+
+    /**
+     * 把日志中上次没有写入数据库的修改写入数据库；失败时抛出异常（日志保留，不能在状态不完整时启动）
+     */
+    void recover() throws IOException {
+        Map<Long, String> batch = new HashMap<>();
+        List<ChoiceLogEntry> entries = new ArrayList<>();
+        List<byte[]> records = wal.readExisting();
+        for (byte[] record : records) {
+            JsonNode json = objectMapper.readTree(record);
+            batch.put(json.path("userId").asLong(), json.path("state").asText()); // 同一玩家后面的记录覆盖前面的
+            JsonNode entry = json.path("history");
+            if (!entry.isMissingNode()) {
+                entries.add(new ChoiceLogEntry(json.path("userId").asLong(), entry.path("seq").asInt(),
+                        entry.path("storyId").isNull() ? null : entry.path("storyId").asText(),
+                        entry.path("storyVersion").asInt(), entry.path("choiceOrdinal").asInt(),
+                        entry.path("choiceCode").asInt(),
+                        entry.path("prevSeq").isNumber() ? entry.path("prevSeq").asInt() : null));
+            }
+        }
+        if (!records.isEmpty()) {
+            for (Map.Entry<String, Shard> shard : byShard(batch, entries).entrySet()) {
+                write(shard.getKey(), shard.getValue().states(), shard.getValue().entries(), true);
+            }
+            System.out.println("已从预写日志恢复 " + records.size() + " 条记录（" + batch.size() + " 个玩家）");
+        }
+        wal.deleteBefore(wal.rotate());
+    }
+
+    /**
+     * 写完所有待写入的修改并关闭日志
+     */
+    void close() throws IOException {
+        flush();
+        if (!dirty.isEmpty() || !history.isEmpty()) {
+            System.err.println("关闭时仍有 " + dirty.size() + " 个玩家的状态没有写入数据库，将在下次启动时从预写日志恢复");
+        }
+        wal.close();
+    }
+
+    /**
+     * (新) 一个分片中的待写入修改
+     */
+    private record Shard(Map<Long, String> states, List<ChoiceLogEntry> entries) {
+    }
+
+    /**
+     * (新) 按玩家所在的分片分组；没有分片时只有一组（名称为 null）
+     */
+    private Map<String, Shard> byShard(Map<Long, String> batch, List<ChoiceLogEntry> entries) {
+        Map<String, Shard> shards = new HashMap<>();
+        batch.forEach((userId, json) -> shards.computeIfAbsent(shardRouting.shardOf(userId),
+                name -> new Shard(new HashMap<>(), new ArrayList<>())).states().put(userId, json));
+        for (ChoiceLogEntry entry : entries) {
+            shards.computeIfAbsent(shardRouting.shardOf(entry.getUserId()),
+                    name -> new Shard(new HashMap<>(), new ArrayList<>())).entries().add(entry);
+        }
+        return shards;
+    }
+
+    /**
+     * 一个事务中写入：每个玩家一次更新，历史行批量插入
+     * @param shard 这些玩家所在的分片
+     * @param recovering 重放日志时，日志中的历史行可能已经写入过
+     */
+    private void write(String shard, Map<Long, String> batch, List<ChoiceLogEntry> entries, boolean recovering) {
+        NodeIdMapping mapping = remap;
+        transactionTemplate.executeWithoutResult(status -> {
+            ShardRoutingDataSource.useShard(shard);
+            for (GameState row : stateRepository.findAllById(batch.keySet())) {
+                long expected = row.getVersion(); // 会话中的版本号从这里继续，写入 JSON 中的版本号
+                stateWriter.detach(row);
+                GameStateJson.read(objectMapper, batch.get(row.getId()), row);
+                if (mapping != null) {
+                    mapping.apply(row); // 迁移开始之前生成的 JSON
+                }
+                stateWriter.write(row, expected);
+            }
+            for (ChoiceLogEntry entry : entries) {
+                if (!recovering || !choiceLogRepository.existsById(entry.getId())) {
+                    choiceLogRepository.save(entry);
+                }
+            }
+        });
+    }
+
+    private byte[] walRecord(Long userId, String state, ChoiceLogEntry entry) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("userId", userId);
+        json.put("state", state);
+        if (entry != null) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("seq", entry.getSeq());
+            row.put("storyId", entry.getStoryId());
+            row.put("storyVersion", entry.getStoryVersion());
+            row.put("choiceOrdinal", entry.getChoiceOrdinal());
+            row.put("choiceCode", entry.getChoiceCode());
+            row.put("prevSeq", entry.getPrevSeq());
+            json.put("history", row);
+        }
+        try {
+            return objectMapper.writeValueAsString(json).getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("无法生成预写日志记录: " + userId, e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.textgame.service;
+
+import com.example.textgame.model.GameState;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * (新) 节点ID迁移的映射表 {旧节点ID: 新节点ID}，只用于一个故事中的玩家（见 NodeIdMigration）
+ * 除了数据库中的行，迁移期间 write-behind 模式下内存中的会话和待写入的状态也用它换成新ID
+ */
+final class NodeIdMapping {
+
+    private final String storyId;
+    private final boolean defaultStory; // story_id 为 null 的旧状态属于默认故事
+    private final Map<String, String> ids;
+
+    NodeIdMapping(String storyId, boolean defaultStory, Map<String, String> ids) {
+        this.storyId = storyId;
+        this.defaultStory = defaultStory;
+        this.ids = Collections.unmodifiableMap(new LinkedHashMap<>(ids));
+    }
+
+    /**
+     * 修改 state 中的当前节点、存档节点和到达过的节点（只修改这个故事中的玩家）；有修改时递增版本号并返回 true
+     */
+    boolean apply(GameState state) {
+        if (state.getStoryId() == null ? !defaultStory : !state.getStoryId().equals(storyId)) {
+            return false;
+        }
+        String current = ids.get(state.getCurrentNodeId());
+        String lastSave = ids.get(state.getLastSaveNodeId());
+        Set<String> visited = mapVisited(state.getVisitedNodes());
+        if (current == null && lastSave == null && visited == null) {
+            return false;
+        }
+        if (visited != null) {
+            state.getVisitedNodes().clear(); // 在原集合上修改（见 GameStateJson.read）
+            state.getVisitedNodes().addAll(visited);
+        }
+        if (current != null) {
+            state.setCurrentNodeId(current);
+            state.setCurrentNodeOrdinal(-1);
+        }
+        if (lastSave != null) {
+            state.setLastSaveNodeId(lastSave);
+        }
+        state.markModified(); // ETag 随之改变
+        return true;
+    }
+
+    /**
+     * 存档位中的状态（GameStateJson 格式）换成新ID；没有需要修改的节点时返回 null
+     */
+    String apply(ObjectMapper mapper, String text) throws JsonProcessingException {
+        JsonNode json = mapper.readTree(text);
+        if (!(json instanceof ObjectNode object)) {
+            return null;
+        }
+        boolean changed = false;
+        for (String field : new String[]{"currentNodeId", "lastSaveNodeId"}) {
+            String to = ids.get(object.path(field).asText(null));
+            if (to != null) {
+                object.put(field, to);
+                changed = true;
+            }
+        }
+        if (object.path("visitedNodes") instanceof ArrayNode array) {
+            List<String> nodes = new ArrayList<>();
+            array.forEach(node -> nodes.add(node.asText()));
+            Set<String> visited = mapVisited(nodes);
+            if (visited != null) {
+                array.removeAll();
+                visited.forEach(array::add);
+                changed = true;
+            }
+        }
+        return changed ? mapper.writeValueAsString(object) : null;
+    }
+
+    /**
+     * 映射表中的旧ID
+     */
+    Set<String> sources() {
+        return ids.keySet();
+    }
+
+    String map(String nodeId) {
+        return ids.getOrDefault(nodeId, nodeId);
+    }
+
+    /**
+     * (新) 到达过的节点换成新ID后的集合（与当前节点一样每个ID只替换一次）；没有需要修改的节点时返回 null
+     */
+    Set<String> mapVisited(Collection<String> visited) {
+        Set<String> result = new LinkedHashSet<>();
+        boolean changed = false;
+        for (String nodeId : visited) {
+            String to = ids.get(nodeId);
+            result.add(to != null ? to : nodeId);
+            changed |= to != null;
+        }
+        return changed ? result : null;
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (新) 把玩家的游戏数据移到所属的分片（game.sharding.rebalance=true 时在启动时执行，可以重复执行）
+ * 1. 依次扫描全局库和每个分片的 game_state；所在的库不是 ShardMap 指定的分片的玩家需要移动
+ *    （第一次开启分片时全局库中的所有玩家；增加分片后约 1/(N+1) 的玩家；删除分片前它上面的所有玩家）
+ * 2. 每 batch-size 个玩家一批：先在目标分片删除这些玩家的行、插入源库中的行并提交，再在源库删除并提交。
+ *    中途失败时源库中的行还在，重新执行时以源库为准覆盖目标分片
+ * 3. 在接收请求之前执行（@PostConstruct，write-behind 的预写日志也在移动之后才重放），移动期间没有玩家在写入
+ * 删除分片时先把它留在 shard-urls 中执行一次（会把它上面的玩家移走），确认它的 game_state 为空后再删除配置；
+ * 分片按位置命名，所以只在末尾增加或删除。
+ */
+@Service
+public class ShardRebalancer {
+
+    // 玩家的表，父表在前（插入时按这个顺序，删除时反过来）；源库中没有的表（例如旧的 game_choice_history）跳过
+    private static final List<String> TABLES = List.of("game_state", "game_state_flag", "game_visited_node",
+            "game_choice_log", "game_choice_history", "game_event", "game_state_snapshot", "game_save_slot");
+
+    private final boolean enabled;
+    private final int batchSize;
+    private final ShardRoutingDataSource shardRouting;
+
+    public ShardRebalancer(@Value("${game.sharding.rebalance:false}") boolean enabled,
+                           @Value("${game.sharding.rebalance-batch-size:100}") int batchSize,
+                           ShardRoutingDataSource shardRouting) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("game.sharding.rebalance-batch-size 必须大于 0: " + batchSize);
+        }
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.shardRouting = shardRouting;
+    }
+
+    /**
+     * 移动的结果
+     * @param rows 移动的行数（所有表）
+     */
+    public record Result(long scanned, long moved, long rows, long elapsedMs) {
+    }
+
+    @PostConstruct
+    public void start() throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        if (!shardRouting.isSharded()) {
+            System.out.println("没有配置分片 (game.sharding.shard-urls)，不需要移动玩家数据");
+            return;
+        }
+        Map<String, DataSource> sources = new LinkedHashMap<>();
+        sources.put("全局库", shardRouting.globalDataSource());
+        sources.putAll(shardRouting.playerDataSources());
+        Result result = rebalance(sources);
+        System.out.println("分片调整完成: 扫描 " + result.scanned() + " 个玩家, 移动 " + result.moved() + " 个玩家（"
+                + result.rows() + " 行）, 用时 " + result.elapsedMs() + " ms");
+    }
+
+    /**
+     * 把每个库中不属于它的玩家移到所属的分片
+     * @param sources 名称 -> 数据源；分片的名称与 ShardMap 中的相同，其他名称（全局库）上的玩家全部移走
+     */
+    Result rebalance(Map<String, DataSource> sources) throws SQLException {
+        long start = System.nanoTime();
+        long scanned = 0;
+        long moved = 0;
+        long rows = 0;
+        for (Map.Entry<String, DataSource> source : sources.entrySet()) {
+            Map<String, List<Long>> leaving = new LinkedHashMap<>(); // 目标分片 -> 玩家
+            try (Connection connection = source.getValue().getConnection();
+                 PreparedStatement select = connection.prepareStatement("SELECT user_id FROM game_state ORDER BY user_id");
+                 ResultSet users = select.executeQuery()) {
+                while (users.next()) {
+                    long userId = users.getLong(1);
+                    scanned++;
+                    String owner = shardRouting.shardOf(userId);
+                    if (!owner.equals(source.getKey())) {
+                        leaving.computeIfAbsent(owner, name -> new ArrayList<>()).add(userId);
+                    }
+                }
+            }
+            for (Map.Entry<String, List<Long>> target : leaving.entrySet()) {
+                List<String> tables = tables(source.getValue(), sources.get(target.getKey()), target.getKey());
+                List<Long> users = target.getValue();
+                for (int from = 0; from < users.size(); from += batchSize) {
+                    List<Long> batch = users.subList(from, Math.min(users.size(), from + batchSize));
+                    rows += move(source.getValue(), sources.get(target.getKey()), tables, batch);
+                    moved += batch.size();
+                }
+                System.out.println("已把 " + users.size() + " 个玩家从 " + source.getKey() + " 移到 " + target.getKey());
+            }
+        }
+        return new Result(scanned, moved, rows, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 移动一批玩家：目标分片提交之后才删除源库中的行
+     * @return 复制的行数
+     */
+    private long move(DataSource from, DataSource to, List<String> tables, List<Long> users) throws SQLException {
+        long rows = 0;
+        try (Connection source = from.getConnection(); Connection target = to.getConnection()) {
+            target.setAutoCommit(false);
+            try {
+                delete(target, tables, users); // 上一次中途失败时留下的行
+                for (String table : tables) {
+                    rows += copy(source, target, table, users);
+                }
+                target.commit();
+            } catch (SQLException e) {
+                target.rollback();
+                throw e;
+            }
+            source.setAutoCommit(false);
+            try {
+                delete(source, tables, users);
+                source.commit();
+            } catch (SQLException e) {
+                source.rollback();
+                throw e;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 源库中存在的玩家表；目标分片缺少其中的表时不能移动（源库中的行会在移动后被删除）
+     */
+    private static List<String> tables(DataSource from, DataSource to, String targetName) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (Connection source = from.getConnection(); Connection target = to.getConnection()) {
+            for (String table : TABLES) {
+                if (exists(source, table)) {
+                    if (!exists(target, table)) {
+                        throw new IllegalStateException("分片 " + targetName + " 中缺少表 " + table + "，请先建表");
+                    }
+                    tables.add(table);
+                }
+            }
+        }
+        return tables;
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        try (ResultSet found = connection.getMetaData().getTables(connection.getCatalog(), null, table, null)) {
+            return found.next();
+        }
+    }
+
+    /**
+     * 逐行复制一个表中这些玩家的行（列与源表相同）
+     */
+    private static long copy(Connection source, Connection target, String table, List<Long> users) throws SQLException {
+        long rows = 0;
+        try (PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + " WHERE user_id = ?")) {
+            PreparedStatement insert = null;
+            try {
+                for (Long userId : users) {
+                    select.setLong(1, userId);
+                    try (ResultSet row = select.executeQuery()) {
+                        ResultSetMetaData columns = row.getMetaData();
+                        while (row.next()) {
+                            if (insert == null) {
+                                insert = target.prepareStatement(insertSql(table, columns));
+                            }
+                            for (int c = 1; c <= columns.getColumnCount(); c++) {
+                                insert.setObject(c, row.getObject(c));
+                            }
+                            insert.addBatch();
+                            rows++;
+                        }
+                    }
+                }
+                if (insert != null) {
+                    insert.executeBatch();
+                }
+            } finally {
+                if (insert != null) {
+                    insert.close();
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static String insertSql(String table, ResultSetMetaData columns) throws SQLException {
+        StringBuilder names = new StringBuilder();
+        for (int c = 1; c <= columns.getColumnCount(); c++) {
+            names.append(c == 1 ? "" : ", ").append(columns.getColumnName(c));
+        }
+        return "INSERT INTO " + table + " (" + names + ") VALUES (?" + ", ?".repeat(columns.getColumnCount() - 1) + ")";
+    }
+
+    private static void delete(Connection connection, List<String> tables, List<Long> users) throws SQLException {
+        for (int t = tables.size() - 1; t >= 0; t--) {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + tables.get(t) + " WHERE user_id = ?")) {
+                for (Long userId : users) {
+                    delete.setLong(1, userId);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.textgame.service;
+
+import com.example.textgame.repository.InMemoryGameRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监视外部故事脚本目录，脚本文件变化时在后台线程重新编译并发布新的故事图
+ * 正在处理的请求继续使用它们已经拿到的旧故事图，不会看到构建到一半的数据。
+ */
+@Service
+public class StoryScriptWatcher {
+
+    // 编辑器保存文件时往往会连续触发多个事件，等待这么久没有新事件再重新加载
+    private static final long DEBOUNCE_MS = 300;
+
+    private final InMemoryGameRepository gameRepository;
+    private final boolean enabled;
+
+    private WatchService watchService;
+    private Thread watcherThread;
+
+    public StoryScriptWatcher(InMemoryGameRepository gameRepository,
+                              @Value("${story.watch:true}") boolean enabled) {
+        this.gameRepository = gameRepository;
+        this.enabled = enabled;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path dir = gameRepository.getScriptDir();
+        Files.createDirectories(dir);
+        watchService = FileSystems.getDefault().newWatchService();
+        dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        watcherThread = new Thread(this::watchLoop, "story-script-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close(); // 让 take() 抛出 ClosedWatchServiceException，线程随之退出
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                Set<String> changed = new LinkedHashSet<>();
+                drain(watchService.take(), changed);
+                // 去抖：持续收到事件时继续等待
+                WatchKey next;
+                while ((next = watchService.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)) != null) {
+                    drain(next, changed);
+                }
+                for (String storyId : changed) {
+                    gameRepository.reload(storyId);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // 应用关闭
+        }
+    }
+
+    private void drain(WatchKey key, Set<String> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+                String storyId = gameRepository.storyIdOf(((Path) event.context()).getFileName().toString());
+                if (storyId != null) {
+                    changed.add(storyId);
+                }
+            }
+        }
+        key.reset();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.textgame.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * (新) 按玩家排队执行修改游戏状态的命令（每个玩家一个"邮箱"）
+ * 1. 同一玩家的命令按提交顺序逐个执行，前一个结束后才开始下一个（重复点击、重试不会互相覆盖）
+ * 2. 不同玩家的命令在共享的线程池中并行执行，一个玩家排队不占用线程，也不影响其他玩家
+ * 3. 每执行完一个命令就把该玩家的下一个命令重新提交到线程池，命令多的玩家不会长期占住一个线程
+ * 邮箱在 Map 中存在 = 该玩家有命令正在执行；邮箱的状态只在 ConcurrentHashMap.compute 中修改，不需要额外的锁。
+ * 只在本实例内排队：多个实例时同一玩家的请求需要路由到同一个实例。
+ */
+@Service
+public class UserCommandSequencer {
+
+    private final int maxQueuedPerUser;
+    private final ExecutorService executor;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public UserCommandSequencer(@Value("${game.commands.threads:8}") int threads,
+                                @Value("${game.commands.max-queued-per-user:8}") int maxQueuedPerUser) {
+        if (threads < 1 || maxQueuedPerUser < 0) {
+            throw new IllegalArgumentException("无效的命令执行配置: threads=" + threads + ", max-queued-per-user=" + maxQueuedPerUser);
+        }
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "game-command-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 正在执行的命令之后等待执行的命令（由 mailboxes 的 compute 保护）
+     */
+    private static final class Mailbox {
+        private final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+    }
+
+    /**
+     * 把命令排到该玩家的队列末尾
+     * @return 命令的结果；排队的命令过多时以 RejectedExecutionException 结束
+     */
+    public <T> CompletableFuture<T> submit(String username, Supplier<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                result.complete(command.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+        boolean[] runNow = new boolean[1];
+        boolean[] rejected = new boolean[1];
+        mailboxes.compute(username, (user, mailbox) -> {
+            if (mailbox == null) {
+                runNow[0] = true;
+                return new Mailbox();
+            }
+            if (mailbox.queued.size() >= maxQueuedPerUser) {
+                rejected[0] = true;
+            } else {
+                mailbox.queued.add(task);
+            }
+            return mailbox;
+        });
+        if (rejected[0]) {
+            result.completeExceptionally(new RejectedExecutionException("玩家 " + username + " 的请求过多，请稍后再试"));
+        } else if (runNow[0]) {
+            dispatch(username, task);
+        }
+        return result;
+    }
+
+    /**
+     * 当前有命令在执行或排队的玩家数
+     */
+    public int activeUsers() {
+        return mailboxes.size();
+    }
+
+    private void dispatch(String username, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    next(username);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 正在关闭：在调用线程中依次执行该玩家剩下的命令，已经提交的请求仍然得到结果
+            Mailbox mailbox = mailboxes.remove(username);
+            task.run();
+            if (mailbox != null) {
+                mailbox.queued.forEach(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * 一个命令结束：取出下一个命令提交到线程池；没有时移除邮箱
+     */
+    private void next(String username) {
+        Runnable[] next = new Runnable[1];
+        mailboxes.computeIfPresent(username, (user, mailbox) -> {
+            next[0] = mailbox.queued.poll();
+            return next[0] == null ? null : mailbox;
+        });
+        if (next[0] != null) {
+            dispatch(username, next[0]);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
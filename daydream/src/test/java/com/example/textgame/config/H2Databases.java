@@ -0,0 +1,75 @@
+package com.example.textgame.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * 数据源测试使用的 H2 内存库：每个库有一张只有一行的 db_name 表，用来判断连接来自哪个库
+ */
+final class H2Databases {
+
+    private H2Databases() {
+    }
+
+    static String url(String name) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * 创建（或清空）库 name，执行 ddl 中的语句
+     */
+    static void create(String name, String... ddl) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url(name));
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS db_name (name VARCHAR(64) NOT NULL)");
+            statement.execute("DELETE FROM db_name");
+            statement.execute("INSERT INTO db_name (name) VALUES ('" + name + "')");
+            for (String sql : ddl) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * 连接池的名称与库名相同
+     */
+    static HikariDataSource pool(String name) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setPoolName(name);
+        pool.setJdbcUrl(url(name));
+        pool.setMaximumPoolSize(2);
+        return pool;
+    }
+
+    /**
+     * 从 dataSource 取一个连接，返回它所在的库
+     */
+    static String nameOf(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet row = statement.executeQuery("SELECT name FROM db_name")) {
+            row.next();
+            return row.getString(1);
+        }
+    }
+
+    /**
+     * 模拟事务结束：清除同步状态后通知注册的回调
+     */
+    static void completeTransaction() {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        for (TransactionSynchronization synchronization : synchronizations) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.textgame.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 主库和副本是两个 H2 内存库，之间没有复制：把主库中的心跳行复制到副本模拟复制，停止复制模拟延迟
+ */
+class ReplicaRoutingDataSourceTest {
+
+    private static final String PRIMARY = "replica-test-primary";
+    private static final String REPLICA = "replica-test-replica";
+    private static final long MAX_LAG_MS = 500;
+    private static final long HEARTBEAT_MS = 20;
+
+    private HikariDataSource replica;
+    private ReplicaRoutingDataSource routing;
+
+    @BeforeEach
+    void createDatabases() throws SQLException {
+        for (String name : List.of(PRIMARY, REPLICA)) {
+            H2Databases.create(name,
+                    "CREATE TABLE IF NOT EXISTS replica_heartbeat (instance_id VARCHAR(64) NOT NULL PRIMARY KEY, beat_at BIGINT NOT NULL)",
+                    "DELETE FROM replica_heartbeat");
+        }
+        replica = H2Databases.pool(REPLICA);
+        routing = new ReplicaRoutingDataSource(H2Databases.pool(PRIMARY), List.of(replica), MAX_LAG_MS, HEARTBEAT_MS);
+    }
+
+    @AfterEach
+    void close() {
+        routing.close();
+    }
+
+    @Test
+    void replicaIsUsedOnlyAfterItCatchesUp() throws Exception {
+        assertThat(replicaStats().get("available")).isEqualTo(false); // 副本上还没有心跳行
+        assertThat(readOnlyDatabase()).isEqualTo(PRIMARY);
+        assertThat(routing.stats().get("fallbacks")).isEqualTo(1L);
+
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        assertThat(readOnlyDatabase()).isEqualTo(REPLICA);
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(PRIMARY); // 读写事务
+        assertThat(routing.stats().get("replicaReads")).isEqualTo(1L);
+    }
+
+    @Test
+    void laggingReplicaIsSuspendedAndResumesWhenItCatchesUp() throws Exception {
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        assertThat(readOnlyDatabase()).isEqualTo(REPLICA);
+
+        Map<String, Object> lagging = awaitReplica(pool -> !(Boolean) pool.get("available"), false);
+        assertThat((Long) lagging.get("lagMs")).isGreaterThan(MAX_LAG_MS);
+        assertThat(readOnlyDatabase()).isEqualTo(PRIMARY);
+
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        assertThat(readOnlyDatabase()).isEqualTo(REPLICA);
+    }
+
+    @Test
+    void failedReplicaConnectionFallsBackToPrimary() throws Exception {
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        replica.close();
+
+        assertThat(readOnlyDatabase()).isEqualTo(PRIMARY);
+        assertThat(replicaStats().get("available")).isEqualTo(false);
+        assertThat((Long) replicaStats().get("failures")).isPositive();
+        assertThat(routing.stats().get("fallbacks")).isEqualTo(1L);
+    }
+
+    @Test
+    void requirePrimaryOverridesTheReplicaUntilTheTransactionEnds() throws Exception {
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            ReplicaRoutingDataSource.requirePrimary();
+            assertThat(readOnlyDatabase()).isEqualTo(PRIMARY);
+            assertThat(routing.stats().get("primaryRequired")).isEqualTo(1L);
+        } finally {
+            H2Databases.completeTransaction();
+        }
+        assertThat(readOnlyDatabase()).isEqualTo(REPLICA);
+    }
+
+    @Test
+    void recentModificationRequiresThePrimary() throws Exception {
+        awaitReplica(pool -> (Boolean) pool.get("available"), true);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            routing.requirePrimaryIfModifiedSince(System.nanoTime()); // 副本上可能还读不到
+            assertThat(readOnlyDatabase()).isEqualTo(PRIMARY);
+        } finally {
+            H2Databases.completeTransaction();
+        }
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            routing.requirePrimaryIfModifiedSince(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(MAX_LAG_MS + 1000));
+            routing.requirePrimaryIfModifiedSince(0); // 从数据库读取的状态，没有修改过
+            assertThat(readOnlyDatabase()).isEqualTo(REPLICA);
+        } finally {
+            H2Databases.completeTransaction();
+        }
+    }
+
+    /**
+     * 在只读事务中取一个连接，返回它所在的库
+     */
+    private String readOnlyDatabase() throws SQLException {
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        try {
+            return H2Databases.nameOf(routing);
+        } finally {
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+        }
+    }
+
+    /**
+     * 等待副本的状态满足条件；replicate 为 true 时等待期间不断把主库的心跳复制到副本
+     */
+    private Map<String, Object> awaitReplica(Predicate<Map<String, Object>> condition, boolean replicate) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            if (replicate) {
+                replicateHeartbeat();
+            }
+            Map<String, Object> pool = replicaStats();
+            if (condition.test(pool)) {
+                return pool;
+            }
+            Thread.sleep(HEARTBEAT_MS / 4);
+        }
+        throw new AssertionError("副本的状态不满足条件: " + replicaStats());
+    }
+
+    private static void replicateHeartbeat() throws SQLException {
+        try (Connection primary = DriverManager.getConnection(H2Databases.url(PRIMARY));
+             Connection copy = DriverManager.getConnection(H2Databases.url(REPLICA));
+             PreparedStatement select = primary.prepareStatement("SELECT instance_id, beat_at FROM replica_heartbeat");
+             PreparedStatement delete = copy.prepareStatement("DELETE FROM replica_heartbeat WHERE instance_id = ?");
+             PreparedStatement insert = copy.prepareStatement("INSERT INTO replica_heartbeat (instance_id, beat_at) VALUES (?, ?)");
+             ResultSet rows = select.executeQuery()) {
+            while (rows.next()) {
+                delete.setString(1, rows.getString(1));
+                delete.executeUpdate();
+                insert.setString(1, rows.getString(1));
+                insert.setLong(2, rows.getLong(2));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> replicaStats() {
+        return ((List<Map<String, Object>>) routing.stats().get("pools")).get(1);
+    }
+}
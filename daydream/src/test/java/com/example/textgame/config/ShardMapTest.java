@@ -0,0 +1,87 @@
+package com.example.textgame.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ShardMapTest {
+
+    private static final int USERS = 200_000;
+    private static final int VIRTUAL_NODES = 512; // application.yml 中的默认值
+
+    /**
+     * 连续的 user_id 均匀分布：各分片的玩家数与平均值相差不超过 10%
+     */
+    @Test
+    void usersAreSpreadEvenly() {
+        List<String> shards = List.of("shard-0", "shard-1", "shard-2", "shard-3");
+        ShardMap map = new ShardMap(shards, VIRTUAL_NODES);
+        Map<String, Integer> counts = new HashMap<>();
+        for (long userId = 1; userId <= USERS; userId++) {
+            counts.merge(map.shardOf(userId), 1, Integer::sum);
+        }
+        assertThat(counts.keySet()).containsExactlyInAnyOrderElementsOf(shards);
+        double mean = (double) USERS / shards.size();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            assertThat(Math.abs(count.getValue() - mean) / mean).as(count.getKey()).isLessThan(0.10);
+        }
+    }
+
+    /**
+     * 从 4 个分片增加到 5 个：约 1/5 的玩家移动，并且都移到新分片
+     */
+    @Test
+    void addingAShardOnlyMovesUsersToIt() {
+        ShardMap before = new ShardMap(List.of("shard-0", "shard-1", "shard-2", "shard-3"), VIRTUAL_NODES);
+        ShardMap after = new ShardMap(List.of("shard-0", "shard-1", "shard-2", "shard-3", "shard-4"), VIRTUAL_NODES);
+        int moved = 0;
+        for (long userId = 1; userId <= USERS; userId++) {
+            String from = before.shardOf(userId);
+            String to = after.shardOf(userId);
+            if (!from.equals(to)) {
+                assertThat(to).as("user %d", userId).isEqualTo("shard-4");
+                moved++;
+            }
+        }
+        assertThat((double) moved / USERS).isBetween(0.17, 0.23);
+    }
+
+    /**
+     * 删除一个分片：只有原来在它上面的玩家移动
+     */
+    @Test
+    void removingAShardOnlyMovesItsUsers() {
+        ShardMap before = new ShardMap(List.of("shard-0", "shard-1", "shard-2", "shard-3"), VIRTUAL_NODES);
+        ShardMap after = new ShardMap(List.of("shard-0", "shard-1", "shard-3"), VIRTUAL_NODES);
+        for (long userId = 1; userId <= USERS; userId++) {
+            String from = before.shardOf(userId);
+            if (!from.equals("shard-2")) {
+                assertThat(after.shardOf(userId)).as("user %d", userId).isEqualTo(from);
+            }
+        }
+    }
+
+    /**
+     * 位置只由分片名称决定，与配置中的顺序无关
+     */
+    @Test
+    void placementDoesNotDependOnConfigurationOrder() {
+        ShardMap map = new ShardMap(List.of("a", "b", "c"), VIRTUAL_NODES);
+        ShardMap reordered = new ShardMap(List.of("c", "a", "b"), VIRTUAL_NODES);
+        for (long userId = 1; userId <= 10_000; userId++) {
+            assertThat(reordered.shardOf(userId)).isEqualTo(map.shardOf(userId));
+        }
+    }
+
+    @Test
+    void rejectsInvalidConfiguration() {
+        assertThatThrownBy(() -> new ShardMap(List.of(), VIRTUAL_NODES)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ShardMap(List.of("a"), 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ShardMap(List.of("a", "b", "a"), VIRTUAL_NODES)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.textgame.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 全局库和两个分片是三个 H2 内存库；事务用 TransactionSynchronizationManager 模拟
+ */
+class ShardRoutingDataSourceTest {
+
+    private static final String GLOBAL = "shard-test-global";
+    private static final List<String> SHARDS = List.of("shard-test-a", "shard-test-b");
+
+    private ReplicaRoutingDataSource global;
+    private ShardRoutingDataSource routing;
+    private long userA; // 在 shard-test-a 上的玩家
+    private long userB;
+
+    @BeforeEach
+    void createDatabases() throws SQLException {
+        H2Databases.create(GLOBAL);
+        for (String shard : SHARDS) {
+            H2Databases.create(shard);
+        }
+        global = new ReplicaRoutingDataSource(H2Databases.pool(GLOBAL), List.of(), 1000, 250);
+        routing = new ShardRoutingDataSource(global, SHARDS.stream().map(H2Databases::pool).toList(), 64);
+        userA = firstUserOn(SHARDS.get(0));
+        userB = firstUserOn(SHARDS.get(1));
+    }
+
+    @AfterEach
+    void close() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            H2Databases.completeTransaction();
+        }
+        routing.close();
+        global.close();
+    }
+
+    @Test
+    void transactionUsesThePlayersShard() throws SQLException {
+        TransactionSynchronizationManager.initSynchronization();
+        routing.useShardOf(userB);
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(SHARDS.get(1));
+        routing.useShardOf(userB); // 同一个分片可以重复调用
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(SHARDS.get(1));
+        H2Databases.completeTransaction();
+
+        TransactionSynchronizationManager.initSynchronization();
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(GLOBAL); // 事务结束后恢复
+    }
+
+    @Test
+    void shardAfterGlobalInOneTransactionIsRejected() throws SQLException {
+        TransactionSynchronizationManager.initSynchronization();
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(GLOBAL);
+
+        assertThatThrownBy(() -> routing.useShardOf(userA))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("全局库");
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(GLOBAL);
+    }
+
+    @Test
+    void secondShardInOneTransactionIsRejected() throws SQLException {
+        TransactionSynchronizationManager.initSynchronization();
+        routing.useShardOf(userA);
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(SHARDS.get(0));
+
+        assertThatThrownBy(() -> routing.useShardOf(userB))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(SHARDS.get(0));
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(SHARDS.get(0));
+    }
+
+    @Test
+    void outsideATransactionTheGlobalDatabaseIsUsed() throws SQLException {
+        routing.useShardOf(userA);
+        assertThat(H2Databases.nameOf(routing)).isEqualTo(GLOBAL);
+    }
+
+    private long firstUserOn(String shard) {
+        for (long userId = 1; ; userId++) {
+            if (shard.equals(routing.shardOf(userId))) {
+                return userId;
+            }
+        }
+    }
+}
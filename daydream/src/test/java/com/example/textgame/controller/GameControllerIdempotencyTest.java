@@ -0,0 +1,128 @@
+package com.example.textgame.controller;
+
+import com.example.textgame.dto.GameChoiceRequest;
+import com.example.textgame.dto.NodePayload;
+import com.example.textgame.service.GameService;
+import com.example.textgame.service.IdempotencyCache;
+import com.example.textgame.service.UserCommandSequencer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Idempotency-Key：GameService 是 mock，幂等响应保存在内存中
+ */
+class GameControllerIdempotencyTest {
+
+    private static final Principal ALICE = () -> "alice";
+    private static final String KEY = "retry-1";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final NodePayload payload = NodePayload.encode(objectMapper, Map.of("id", "start", "text", "你醒了"));
+    private GameService gameService;
+    private UserCommandSequencer sequencer;
+    private GameController controller;
+
+    @BeforeEach
+    void createController() {
+        gameService = mock(GameService.class);
+        sequencer = new UserCommandSequencer(2, 8);
+        controller = new GameController(gameService, sequencer, new IdempotencyCache(objectMapper, null, "memory", 10, 100), objectMapper);
+    }
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        sequencer.shutdown();
+    }
+
+    /**
+     * 第一次请求接受 gzip，重试不接受（反之亦然）：重放的响应按重试请求的 Accept-Encoding 编码，命令只执行一次
+     */
+    @Test
+    void replayNegotiatesContentEncodingPerRetry() throws Exception {
+        when(gameService.makeChoice("alice", "left")).thenReturn(ResponseEntity.ok(payload));
+
+        ResponseEntity<byte[]> first = choose("left", "gzip");
+        assertThat(first.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(first.getBody()).isEqualTo(payload.getGzip());
+
+        ResponseEntity<byte[]> identity = choose("left", null);
+        assertThat(identity.getHeaders().getFirst("Idempotent-Replayed")).isEqualTo("true");
+        assertThat(identity.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)).isFalse();
+        assertThat(identity.getHeaders().getETag()).isEqualTo(payload.getEtag());
+        assertThat(identity.getBody()).isEqualTo(payload.getJson());
+
+        ResponseEntity<byte[]> gzip = choose("left", "gzip, deflate");
+        assertThat(gzip.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(gzip.getHeaders().getETag()).isEqualTo(payload.getGzipEtag());
+        assertThat(NodePayload.gzipEtagOf(payload.getEtag())).isEqualTo(payload.getGzipEtag());
+        assertThat(gzip.getBody()).isEqualTo(payload.getGzip());
+
+        verify(gameService, times(1)).makeChoice("alice", "left");
+    }
+
+    @Test
+    void keyReusedForAnotherRequestIsRejected() throws Exception {
+        when(gameService.makeChoice("alice", "left")).thenReturn(ResponseEntity.ok(payload));
+        choose("left", null);
+
+        assertThatThrownBy(() -> choose("right", null))
+                .isInstanceOfSatisfying(ResponseStatusException.class,
+                        e -> assertThat(e.getStatusCode()).isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY));
+        verify(gameService, times(0)).makeChoice("alice", "right");
+    }
+
+    /**
+     * 第一次请求还在执行时到达的重试排在它后面，得到第一次的响应而不是再执行一次
+     */
+    @Test
+    void retryQueuedBehindTheFirstRequestIsReplayed() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(gameService.makeChoice("alice", "left")).thenAnswer(invocation -> {
+            started.countDown();
+            assertThat(release.await(10, TimeUnit.SECONDS)).isTrue();
+            return ResponseEntity.ok(payload);
+        });
+
+        CompletableFuture<ResponseEntity<byte[]>> first = controller.makeChoice(ALICE, request("left"), null, KEY);
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<ResponseEntity<byte[]>> retry = controller.makeChoice(ALICE, request("left"), "gzip", KEY);
+        assertThat(retry).isNotDone();
+        release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS).getBody()).isEqualTo(payload.getJson());
+        ResponseEntity<byte[]> replayed = retry.get(10, TimeUnit.SECONDS);
+        assertThat(replayed.getHeaders().getFirst("Idempotent-Replayed")).isEqualTo("true");
+        assertThat(replayed.getBody()).isEqualTo(payload.getGzip());
+        verify(gameService, times(1)).makeChoice("alice", "left");
+    }
+
+    private ResponseEntity<byte[]> choose(String choiceId, String acceptEncoding) throws Exception {
+        return controller.makeChoice(ALICE, request(choiceId), acceptEncoding, KEY).get(10, TimeUnit.SECONDS);
+    }
+
+    private static GameChoiceRequest request(String choiceId) {
+        GameChoiceRequest request = new GameChoiceRequest();
+        request.setChoiceId(choiceId);
+        return request;
+    }
+}
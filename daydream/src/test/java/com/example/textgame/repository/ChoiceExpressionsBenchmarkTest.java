@@ -0,0 +1,155 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.StoryScript;
+import com.example.textgame.model.ChoiceContext;
+import com.example.textgame.model.GameChoice;
+import com.example.textgame.model.GameNode;
+import com.example.textgame.model.PlayerAttributes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 选项条件：编译后的表达式 vs 每次请求解释 requiredAttributes（按属性名逐项查找并比较）
+ * mind-trial.json 中每个 requiredAttributes 改写为等价的表达式（"insight >= 8 && resolve >= 4"），
+ * 在一组随机属性上分别求值。
+ * 默认只检查两种方式的结果一致；计时需要 -Dbenchmark=true，例如
+ *   mvn test -Dtest=ChoiceExpressionsBenchmarkTest -Dbenchmark=true
+ */
+class ChoiceExpressionsBenchmarkTest {
+
+    private static final int OPS = 5_000_000;
+    private static final int PLAYERS = 64;
+
+    private static List<Map<String, Integer>> requirements;
+    private static ChoiceExpressions.Condition[] conditions;
+    private static PlayerAttributes[] players;
+    private static ChoiceContext[] contexts;
+
+    @BeforeAll
+    static void compileConditions() throws IOException {
+        StoryScript script;
+        try (InputStream in = ChoiceExpressionsBenchmarkTest.class.getResourceAsStream("/stories/mind-trial.json")) {
+            script = new ObjectMapper().readValue(in, StoryScript.class);
+        }
+        requirements = new ArrayList<>();
+        List<ChoiceExpressions.Condition> compiled = new ArrayList<>();
+        for (GameNode node : script.getNodes()) {
+            for (GameChoice choice : node.getChoices() != null ? node.getChoices() : List.<GameChoice>of()) {
+                Map<String, Integer> required = choice.getRequiredAttributes();
+                if (required == null || required.isEmpty()) {
+                    continue;
+                }
+                String source = required.entrySet().stream()
+                        .map(e -> e.getKey() + " >= " + e.getValue())
+                        .collect(Collectors.joining(" && "));
+                requirements.add(required);
+                compiled.add(ChoiceExpressions.compileCondition(source, nodeId -> null));
+            }
+        }
+        conditions = compiled.toArray(new ChoiceExpressions.Condition[0]);
+
+        SplittableRandom random = new SplittableRandom(42);
+        players = new PlayerAttributes[PLAYERS];
+        contexts = new ChoiceContext[PLAYERS];
+        for (int p = 0; p < PLAYERS; p++) {
+            players[p] = new PlayerAttributes();
+            players[p].roll(random);
+            contexts[p] = new AttributesContext(players[p]);
+        }
+    }
+
+    @Test
+    void compiledConditionsMatchMapInterpretation() {
+        assertThat(conditions).isNotEmpty();
+        for (int p = 0; p < PLAYERS; p++) {
+            for (int c = 0; c < conditions.length; c++) {
+                assertThat(conditions[c].test(contexts[p]))
+                        .as("%s with %s", requirements.get(c), players[p])
+                        .isEqualTo(interpret(requirements.get(c), players[p]));
+            }
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void conditionEvaluation() {
+        double map = Microbenchmark.nsPerOp("requiredAttributes map", OPS, 5, 10, () -> {
+            long passed = 0;
+            for (int op = 0; op < OPS; op++) {
+                if (interpret(requirements.get(op % conditions.length), players[op % PLAYERS])) {
+                    passed++;
+                }
+            }
+            return passed;
+        });
+        double compiled = Microbenchmark.nsPerOp("compiled condition", OPS, 5, 10, () -> {
+            long passed = 0;
+            for (int op = 0; op < OPS; op++) {
+                if (conditions[op % conditions.length].test(contexts[op % PLAYERS])) {
+                    passed++;
+                }
+            }
+            return passed;
+        });
+        System.out.printf("compiled / map = %.2f%n", compiled / map);
+    }
+
+    /**
+     * 编译之前 GameService.checkAttributes 的方式
+     */
+    private static boolean interpret(Map<String, Integer> required, PlayerAttributes attrs) {
+        for (Map.Entry<String, Integer> entry : required.entrySet()) {
+            if (attrs.getAttribute(entry.getKey()) < entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 只有属性的求值环境（与 GameState 一样按下标读取 PlayerAttributes）
+     */
+    private static final class AttributesContext implements ChoiceContext {
+        private final PlayerAttributes attrs;
+
+        private AttributesContext(PlayerAttributes attrs) {
+            this.attrs = attrs;
+        }
+
+        @Override
+        public int attribute(int index) {
+            return attrs.getAttribute(index);
+        }
+
+        @Override
+        public void setAttribute(int index, int value) {
+            attrs.setAttribute(index, value);
+        }
+
+        @Override
+        public boolean hasFlag(String flag) {
+            return false;
+        }
+
+        @Override
+        public void setFlag(String flag, boolean value) {
+        }
+
+        @Override
+        public boolean hasVisited(String nodeId) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.StoryScript;
+import com.example.textgame.model.GameChoice;
+import com.example.textgame.model.GameNode;
+import com.example.textgame.model.PlayerAttributes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 选项解析：编译后的故事图 vs 编译之前的方式
+ * （ConcurrentHashMap 按节点ID查找、stream 查找选项、按属性名逐项判定和更新属性）
+ * 每次操作：找到当前节点和选项，判定属性要求，满足时应用属性变化并找到下一个节点。
+ * 默认只检查两种方式的结果一致；计时需要 -Dbenchmark=true，例如
+ *   mvn test -Dtest=CompiledStoryGraphBenchmarkTest -Dbenchmark=true
+ */
+class CompiledStoryGraphBenchmarkTest {
+
+    private static final int OPS = 2_000_000;
+
+    private static CompiledStoryGraph graph;
+    private static Map<String, GameNode> nodesById;
+    private static String[] nodeIds; // 每次操作所在的节点（包括别名）
+    private static String[] choiceIds;
+    private static int[] cachedOrdinals; // GameState 中缓存的节点序号
+
+    @BeforeAll
+    static void loadStory() throws IOException {
+        StoryScript script;
+        try (InputStream in = CompiledStoryGraphBenchmarkTest.class.getResourceAsStream("/stories/mind-trial.json")) {
+            script = new ObjectMapper().readValue(in, StoryScript.class);
+        }
+        graph = StoryScriptLoader.compile(script);
+        nodesById = new ConcurrentHashMap<>();
+        for (GameNode node : script.getNodes()) {
+            nodesById.put(node.getNodeId(), node);
+        }
+        script.getAliases().forEach((alias, target) -> nodesById.put(alias, nodesById.get(target)));
+
+        List<String[]> pairs = new ArrayList<>();
+        for (Map.Entry<String, GameNode> entry : nodesById.entrySet()) {
+            for (GameChoice choice : choicesOf(entry.getValue())) {
+                pairs.add(new String[]{entry.getKey(), choice.getChoiceId()});
+            }
+        }
+        nodeIds = new String[pairs.size()];
+        choiceIds = new String[pairs.size()];
+        cachedOrdinals = new int[pairs.size()];
+        for (int i = 0; i < pairs.size(); i++) {
+            nodeIds[i] = pairs.get(i)[0];
+            choiceIds[i] = pairs.get(i)[1];
+            cachedOrdinals[i] = graph.ordinalOf(nodeIds[i]);
+        }
+    }
+
+    @Test
+    void compiledPathMatchesMapPath() {
+        assertThat(nodeIds).isNotEmpty();
+        PlayerAttributes mapAttrs = PlayerAttributes.of(new int[]{5, 5, 5});
+        PlayerAttributes compiledAttrs = PlayerAttributes.of(new int[]{5, 5, 5});
+        for (int i = 0; i < nodeIds.length; i++) {
+            String mapNext = mapChoice(mapAttrs, i);
+            int compiledNext = compiledChoice(compiledAttrs, i);
+            assertThat(compiledNext == CompiledStoryGraph.NOT_FOUND ? null : graph.nodeAt(compiledNext).getNodeId())
+                    .as("%s / %s", nodeIds[i], choiceIds[i])
+                    .isEqualTo(mapNext);
+            assertThat(compiledAttrs).isEqualTo(mapAttrs);
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void choiceResolution() {
+        PlayerAttributes mapAttrs = PlayerAttributes.of(new int[]{5, 5, 5});
+        double map = Microbenchmark.nsPerOp("map + stream", OPS, 5, 10, () -> {
+            long sum = 0;
+            for (int op = 0; op < OPS; op++) {
+                String next = mapChoice(mapAttrs, op % nodeIds.length);
+                sum += next != null ? next.length() : 0;
+            }
+            return sum;
+        });
+        PlayerAttributes compiledAttrs = PlayerAttributes.of(new int[]{5, 5, 5});
+        double compiled = Microbenchmark.nsPerOp("compiled graph", OPS, 5, 10, () -> {
+            long sum = 0;
+            for (int op = 0; op < OPS; op++) {
+                sum += compiledChoice(compiledAttrs, op % nodeIds.length);
+            }
+            return sum;
+        });
+        System.out.printf("compiled / map = %.2f%n", compiled / map);
+    }
+
+    /**
+     * 编译之前的方式；属性要求不满足时返回 null
+     */
+    private static String mapChoice(PlayerAttributes attrs, int op) {
+        GameNode node = nodesById.get(nodeIds[op]);
+        String choiceId = choiceIds[op];
+        GameChoice choice = node.getChoices().stream()
+                .filter(c -> c.getChoiceId().equals(choiceId))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("无效的选择ID: " + choiceId));
+        Map<String, Integer> required = choice.getRequiredAttributes();
+        if (required != null) {
+            for (Map.Entry<String, Integer> entry : required.entrySet()) {
+                if (attrs.getAttribute(entry.getKey()) < entry.getValue()) {
+                    return null;
+                }
+            }
+        }
+        Map<String, Integer> changes = choice.getAttributeChanges();
+        if (changes != null) {
+            for (Map.Entry<String, Integer> entry : changes.entrySet()) {
+                attrs.changeAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+        return nodesById.get(choice.getNextNodeId()).getNodeId();
+    }
+
+    /**
+     * GameService.makeChoice 使用的方式；属性要求不满足时返回 NOT_FOUND，否则返回下一个节点的序号
+     */
+    private static int compiledChoice(PlayerAttributes attrs, int op) {
+        int node = graph.resolve(nodeIds[op], cachedOrdinals[op]);
+        int choice = graph.findChoice(node, choiceIds[op]);
+        if (choice == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalArgumentException("无效的选择ID: " + choiceIds[op]);
+        }
+        if (graph.hasRequirements(choice)) {
+            for (int attr = 0; attr < graph.attributeCount(); attr++) {
+                int required = graph.requirement(choice, attr);
+                if (required != CompiledStoryGraph.NO_REQUIREMENT && attrs.getAttribute(attr) < required) {
+                    return CompiledStoryGraph.NOT_FOUND;
+                }
+            }
+        }
+        if (graph.hasChanges(choice)) {
+            for (int attr = 0; attr < graph.attributeCount(); attr++) {
+                int delta = graph.change(choice, attr);
+                if (delta != 0) {
+                    attrs.changeAttribute(attr, delta);
+                }
+            }
+        }
+        return graph.targetOf(choice);
+    }
+
+    private static List<GameChoice> choicesOf(GameNode node) {
+        return node.getChoices() != null ? node.getChoices() : List.of();
+    }
+}
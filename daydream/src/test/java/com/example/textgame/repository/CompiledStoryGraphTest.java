@@ -0,0 +1,43 @@
+package com.example.textgame.repository;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompiledStoryGraphTest {
+
+    private static CompiledStoryGraph graph;
+
+    @BeforeAll
+    static void loadStory() throws IOException {
+        try (InputStream in = CompiledStoryGraphTest.class.getResourceAsStream("/stories/mind-trial.json")) {
+            graph = StoryScriptLoader.load(in);
+        }
+    }
+
+    /**
+     * 别名与它指向的节点共享选项：同一个选项无论从哪个ID到达，编码都按节点自身的ID计算，并且可以按编码找回
+     */
+    @Test
+    void aliasChoicesShareTheCanonicalCode() {
+        int alias = graph.ordinalOf("LIB_IGNORE");
+        int node = graph.ordinalOf("LIB_LEAVE_QUIETLY");
+        assertThat(alias).isNotEqualTo(node);
+        assertThat(graph.slotOf(alias)).isEqualTo(graph.slotOf(node));
+        assertThat(graph.endChoice(alias) - graph.firstChoice(alias)).isPositive();
+
+        for (int c = graph.firstChoice(alias); c < graph.endChoice(alias); c++) {
+            String choiceId = graph.choiceIdAt(c);
+            int code = CompiledStoryGraph.choiceCode("LIB_LEAVE_QUIETLY", choiceId);
+            assertThat(graph.choiceCodeAt(c)).isEqualTo(code);
+            assertThat(graph.choiceCodeAt(graph.findChoice(node, choiceId))).isEqualTo(code);
+            int found = graph.findChoiceByCode(code);
+            assertThat(found).isNotEqualTo(CompiledStoryGraph.NOT_FOUND);
+            assertThat(graph.choiceIdAt(found)).isEqualTo(choiceId);
+        }
+    }
+}
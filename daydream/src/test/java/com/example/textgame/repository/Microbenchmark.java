@@ -0,0 +1,36 @@
+package com.example.textgame.repository;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * 基准测试的计时工具：先预热，再多轮计时，输出每次操作的耗时（最快一轮和中位数）
+ * 每轮返回一个校验值并累加到 sink，避免 JIT 把被测代码当作无用代码删掉
+ */
+final class Microbenchmark {
+
+    private static volatile long sink;
+
+    private Microbenchmark() {
+    }
+
+    /**
+     * @param ops 每轮执行的操作数
+     * @param round 执行一轮，返回校验值
+     * @return 最快一轮的每次操作纳秒数
+     */
+    static double nsPerOp(String name, int ops, int warmups, int rounds, LongSupplier round) {
+        for (int i = 0; i < warmups; i++) {
+            sink += round.getAsLong();
+        }
+        double[] results = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            sink += round.getAsLong();
+            results[i] = (double) (System.nanoTime() - start) / ops;
+        }
+        Arrays.sort(results);
+        System.out.printf("%-40s best %8.2f ns/op, median %8.2f ns/op%n", name, results[0], results[rounds / 2]);
+        return results[0];
+    }
+}
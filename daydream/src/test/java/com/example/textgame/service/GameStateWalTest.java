@@ -0,0 +1,109 @@
+package com.example.textgame.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GameStateWalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordsAreReadBackInOrderAfterReopening() throws IOException {
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            wal.sync(wal.append(bytes("a")));
+            wal.rotate();
+            wal.append(bytes("b"));
+            wal.sync(wal.append(bytes("c")));
+        }
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(strings(wal.readExisting())).containsExactly("a", "b", "c");
+        }
+    }
+
+    /**
+     * 最后一条记录的内容与 CRC 不一致（写入时崩溃）：忽略这条记录，之前的记录照常读出
+     */
+    @Test
+    void recordWithBadChecksumAtTheTailIsIgnored() throws IOException {
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            wal.append(bytes("first"));
+            wal.append(bytes("second"));
+            wal.sync(wal.append(bytes("third")));
+        }
+        Path segment = dir.resolve("state-0.wal");
+        byte[] content = Files.readAllBytes(segment);
+        content[content.length - 1] ^= 1;
+        Files.write(segment, content);
+
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(strings(wal.readExisting())).containsExactly("first", "second");
+        }
+    }
+
+    /**
+     * 最后一条记录只写了一部分：内容不完整或只有半个记录头时都被忽略
+     */
+    @Test
+    void incompleteRecordAtTheTailIsIgnored() throws IOException {
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            wal.append(bytes("first"));
+            wal.sync(wal.append(bytes("second")));
+        }
+        Path segment = dir.resolve("state-0.wal");
+        byte[] content = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(content, content.length - 3));
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(strings(wal.readExisting())).containsExactly("first");
+        }
+
+        int firstRecord = 8 + "first".length();
+        Files.write(segment, Arrays.copyOf(content, firstRecord + 5));
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(strings(wal.readExisting())).containsExactly("first");
+        }
+    }
+
+    @Test
+    void rotateStartsANewSegmentAndDeleteBeforeRemovesOlderOnes() throws IOException {
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(wal.rotate()).isZero(); // 当前段为空时不切换
+            wal.sync(wal.append(bytes("a")));
+            assertThat(wal.rotate()).isEqualTo(1);
+            wal.sync(wal.append(bytes("b")));
+            assertThat(wal.rotate()).isEqualTo(2);
+            assertThat(segments()).containsExactly("state-0.wal", "state-1.wal", "state-2.wal");
+
+            wal.deleteBefore(1);
+            assertThat(segments()).containsExactly("state-1.wal", "state-2.wal");
+        }
+        try (GameStateWal wal = new GameStateWal(dir)) {
+            assertThat(strings(wal.readExisting())).containsExactly("b");
+            assertThat(segments()).containsExactly("state-1.wal", "state-2.wal", "state-3.wal"); // 新打开的段
+        }
+    }
+
+    private List<String> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(List<byte[]> records) {
+        return records.stream().map(record -> new String(record, StandardCharsets.UTF_8)).toList();
+    }
+}
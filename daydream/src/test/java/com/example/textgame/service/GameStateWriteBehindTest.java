@@ -0,0 +1,200 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.model.ChoiceLogEntry;
+import com.example.textgame.model.GameState;
+import com.example.textgame.model.PlayerAttributes;
+import com.example.textgame.repository.ChoiceLogRepository;
+import com.example.textgame.repository.GameStateRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 数据库由两个 Map 模拟：game_state 中每个玩家最后写入的状态（GameStateJson），以及 game_choice_log 中的行。
+ * 玩家 1 在分片 a，玩家 2 在分片 b；failing 中的玩家的历史插入失败（所在分片的事务失败），重复插入同一行也失败
+ */
+class GameStateWriteBehindTest {
+
+    @TempDir
+    Path dir;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final GameStateRepository stateRepository = mock(GameStateRepository.class);
+    private final ChoiceLogRepository choiceLogRepository = mock(ChoiceLogRepository.class);
+    private final ShardRoutingDataSource shardRouting = mock(ShardRoutingDataSource.class);
+    private final Map<Long, String> stateRows = new HashMap<>();
+    private final Set<ChoiceLogEntry.Key> historyRows = new HashSet<>();
+    private final Set<Long> failing = new HashSet<>();
+
+    @BeforeEach
+    void mockDatabase() {
+        doAnswer(call -> {
+            List<GameState> rows = new ArrayList<>();
+            for (Long userId : call.<Iterable<Long>>getArgument(0)) {
+                rows.add(newState(userId));
+            }
+            return rows;
+        }).when(stateRepository).findAllById(any());
+        doAnswer(call -> {
+            GameState state = call.getArgument(0);
+            stateRows.put(state.getId(), GameStateJson.write(objectMapper, state));
+            return 1;
+        }).when(stateRepository).updateState(any(), anyLong());
+        doAnswer(call -> {
+            ChoiceLogEntry entry = call.getArgument(0);
+            if (failing.contains(entry.getUserId())) {
+                throw new IllegalStateException("连接断开");
+            }
+            if (!historyRows.add(entry.getId())) {
+                throw new IllegalStateException("主键重复: " + entry.getId());
+            }
+            return entry;
+        }).when(choiceLogRepository).save(any());
+        doAnswer(call -> historyRows.contains(call.<ChoiceLogEntry.Key>getArgument(0)))
+                .when(choiceLogRepository).existsById(any());
+        doAnswer(call -> call.<Long>getArgument(0) == 1 ? "a" : "b").when(shardRouting).shardOf(any());
+    }
+
+    /**
+     * 两次修改只写入最新的状态，历史行都插入；写入后删除日志段并释放会话
+     */
+    @Test
+    void flushWritesTheLatestStateAndDeletesTheLog() throws IOException {
+        GameStateWriteBehind writeBehind = open();
+        GameState state = newState(1L);
+        writeBehind.record(state, choose("N1"));
+        writeBehind.record(state, choose("N2"));
+
+        writeBehind.flush();
+
+        assertThat(state(1L).path("currentNodeId").asText()).isEqualTo("N2");
+        assertThat(state(1L).path("version").asLong()).isEqualTo(2);
+        assertThat(historyRows).containsExactlyInAnyOrder(new ChoiceLogEntry.Key(1L, 0), new ChoiceLogEntry.Key(1L, 1));
+        assertThat(writeBehind.session(1L)).isNull();
+        assertThat(segments()).containsExactly("state-1.wal");
+        writeBehind.close();
+    }
+
+    /**
+     * 分片 a 的事务已经提交、分片 b 的事务失败之后进程崩溃（日志段保留）：
+     * 重新启动时两个玩家的最新状态都写入，分片 a 中已经插入的历史行不再插入，日志段被删除
+     */
+    @Test
+    void recoverReplaysTheLogAfterACrashMidFlush() throws IOException {
+        GameStateWriteBehind writeBehind = open();
+        GameState first = newState(1L);
+        GameState second = newState(2L);
+        writeBehind.record(first, choose("N1"));
+        writeBehind.record(second, choose("M1"));
+        writeBehind.record(second, choose("M2"));
+        failing.add(2L);
+
+        writeBehind.flush();
+
+        assertThat(historyRows).containsExactly(new ChoiceLogEntry.Key(1L, 0));
+        assertThat(writeBehind.session(2L)).isNotNull(); // 放回内存，下一次重试
+        assertThat(segments()).contains("state-0.wal");
+
+        failing.clear();
+        stateRows.clear();
+        GameStateWriteBehind restarted = open(); // 崩溃：没有调用 close
+        restarted.recover();
+
+        assertThat(state(1L).path("currentNodeId").asText()).isEqualTo("N1");
+        assertThat(state(2L).path("currentNodeId").asText()).isEqualTo("M2");
+        assertThat(state(2L).path("version").asLong()).isEqualTo(2);
+        assertThat(historyRows).containsExactlyInAnyOrder(new ChoiceLogEntry.Key(1L, 0),
+                new ChoiceLogEntry.Key(2L, 0), new ChoiceLogEntry.Key(2L, 1));
+        assertThat(segments()).containsExactly("state-2.wal");
+        restarted.close();
+    }
+
+    /**
+     * 日志末尾的记录校验失败（写入时崩溃）：恢复到它之前的状态
+     */
+    @Test
+    void recoverStopsAtACorruptedTailRecord() throws IOException {
+        GameStateWriteBehind writeBehind = open();
+        GameState state = newState(1L);
+        writeBehind.record(state, choose("N1"));
+        writeBehind.record(state, choose("N2"));
+        Path segment = dir.resolve("state-0.wal");
+        byte[] content = Files.readAllBytes(segment);
+        content[content.length - 2] ^= 1;
+        Files.write(segment, content);
+
+        GameStateWriteBehind restarted = open();
+        restarted.recover();
+
+        assertThat(state(1L).path("currentNodeId").asText()).isEqualTo("N1");
+        assertThat(state(1L).path("version").asLong()).isEqualTo(1);
+        assertThat(historyRows).containsExactly(new ChoiceLogEntry.Key(1L, 0));
+        restarted.close();
+    }
+
+    private GameStateWriteBehind open() throws IOException {
+        return new GameStateWriteBehind(new GameStateWal(dir), stateRepository,
+                new GameStateWriter(stateRepository, mock(EntityManager.class)), choiceLogRepository, objectMapper,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), shardRouting);
+    }
+
+    /**
+     * 一次选择：到达 nodeId 并追加一行历史
+     */
+    private static Function<GameState, ChoiceLogEntry> choose(String nodeId) {
+        return state -> {
+            ChoiceLogEntry entry = new ChoiceLogEntry(state.getId(), state.getHistoryEnd(), null, 1, 0, 0,
+                    state.nextHistoryPrev());
+            state.setCurrentNodeId(nodeId);
+            state.markVisited(nodeId);
+            state.appendHistory();
+            state.markModified();
+            return entry;
+        };
+    }
+
+    private static GameState newState(Long userId) {
+        GameState state = new GameState();
+        state.setId(userId);
+        state.setCurrentNodeId("START");
+        state.setLastSaveNodeId("START");
+        state.setAttributes(PlayerAttributes.of(new int[0]));
+        state.markVisited("START");
+        return state;
+    }
+
+    private JsonNode state(Long userId) throws IOException {
+        assertThat(stateRows).containsKey(userId);
+        return objectMapper.readTree(stateRows.get(userId));
+    }
+
+    private List<String> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.textgame.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UserCommandSequencerTest {
+
+    private static final int THREADS = 8;
+    private static final int COMMANDS_PER_THREAD = 2_000;
+
+    private UserCommandSequencer sequencer;
+
+    @AfterEach
+    void shutdown() throws InterruptedException {
+        if (sequencer != null) {
+            sequencer.shutdown();
+        }
+    }
+
+    /**
+     * 多个请求线程同时为同一个玩家提交命令：命令修改不加锁的计数器和列表（与 GameState 一样），
+     * 逐个执行时结果不会丢失，并且每个请求线程的命令按提交顺序执行
+     */
+    @Test
+    void commandsForOneUserRunOneAtATime() throws Exception {
+        sequencer = new UserCommandSequencer(THREADS, THREADS * COMMANDS_PER_THREAD);
+        int[] counter = new int[1];
+        List<Integer> history = new ArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Integer>> submitted = new ArrayList<>();
+        try {
+            List<Future<List<CompletableFuture<Integer>>>> perClient = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int client = t;
+                perClient.add(clients.submit(() -> {
+                    start.await();
+                    List<CompletableFuture<Integer>> futures = new ArrayList<>(COMMANDS_PER_THREAD);
+                    for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                        int entry = client * COMMANDS_PER_THREAD + i;
+                        futures.add(sequencer.submit("alice", () -> {
+                            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            counter[0]++;
+                            history.add(entry);
+                            running.decrementAndGet();
+                            return entry;
+                        }));
+                    }
+                    return futures;
+                }));
+            }
+            start.countDown();
+            for (Future<List<CompletableFuture<Integer>>> client : perClient) {
+                submitted.addAll(client.get(30, TimeUnit.SECONDS));
+            }
+            CompletableFuture.allOf(submitted.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        } finally {
+            clients.shutdownNow();
+        }
+
+        assertThat(maxRunning.get()).isEqualTo(1);
+        assertThat(counter[0]).isEqualTo(THREADS * COMMANDS_PER_THREAD);
+        assertThat(history).hasSize(THREADS * COMMANDS_PER_THREAD);
+        int[] last = new int[THREADS];
+        Arrays.fill(last, -1);
+        for (int entry : history) {
+            int client = entry / COMMANDS_PER_THREAD;
+            assertThat(entry % COMMANDS_PER_THREAD).as("client %d", client).isGreaterThan(last[client]);
+            last[client] = entry % COMMANDS_PER_THREAD;
+        }
+        assertThat(sequencer.activeUsers()).isZero();
+    }
+
+    @Test
+    void blockedUserDoesNotBlockOtherUsers() throws Exception {
+        sequencer = new UserCommandSequencer(2, 8);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> alice = sequencer.submit("alice", () -> {
+            await(release);
+            return "alice";
+        });
+        CompletableFuture<String> aliceNext = sequencer.submit("alice", () -> "alice-next");
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(sequencer.submit("bob", () -> "bob").get(5, TimeUnit.SECONDS)).isEqualTo("bob");
+        }
+        assertThat(alice).isNotDone();
+        assertThat(aliceNext).isNotDone();
+
+        release.countDown();
+        assertThat(alice.get(5, TimeUnit.SECONDS)).isEqualTo("alice");
+        assertThat(aliceNext.get(5, TimeUnit.SECONDS)).isEqualTo("alice-next");
+    }
+
+    @Test
+    void rejectsCommandsBeyondTheQueueLimit() throws Exception {
+        sequencer = new UserCommandSequencer(2, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> running = sequencer.submit("alice", () -> {
+            await(release);
+            return 0;
+        });
+        CompletableFuture<Integer> first = sequencer.submit("alice", () -> 1);
+        CompletableFuture<Integer> second = sequencer.submit("alice", () -> 2);
+        CompletableFuture<Integer> rejected = sequencer.submit("alice", () -> 3);
+
+        assertThatThrownBy(() -> rejected.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+        release.countDown();
+        assertThat(running.get(5, TimeUnit.SECONDS)).isZero();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(2);
+    }
+
+    @Test
+    void failedCommandDoesNotStallTheQueue() throws Exception {
+        sequencer = new UserCommandSequencer(1, 8);
+        CompletableFuture<Integer> failed = sequencer.submit("alice", () -> {
+            throw new IllegalStateException("boom");
+        });
+        CompletableFuture<Integer> next = sequencer.submit("alice", () -> 1);
+
+        assertThatThrownBy(() -> failed.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(next.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("等待超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.example.textgame.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * (新) 读写分离：只读事务使用副本，其他使用主库
+ * 1. 只读事务（@Transactional(readOnly = true)）在可用的副本之间轮流分配；没有可用的副本时使用主库
+ * 2. 副本延迟：每隔 heartbeat-interval 先从各副本读回本实例在 replica_heartbeat 中的行，再在主库更新这一行；
+ *    延迟 = 上一次写入的时间 - 副本上看到的时间（同一个时钟）。超过 max-lag、读取失败或取连接失败的副本暂停使用，
+ *    追上之后自动恢复
+ * 3. 每个连接池分别统计分配的连接数、失败次数和延迟；连接池的指标由 Hikari 发布到 Micrometer（hikaricp.*）
+ * 需要放在 LazyConnectionDataSourceProxy 后面：事务开始时还不知道是否只读，第一次执行语句时才取连接。
+ * 表结构变更（在主库执行，副本通过复制得到）:
+ *   CREATE TABLE replica_heartbeat (instance_id VARCHAR(64) NOT NULL PRIMARY KEY, beat_at BIGINT NOT NULL);
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource implements Closeable {
+
+    private static final ThreadLocal<Boolean> PRIMARY_REQUIRED = new ThreadLocal<>();
+
+    private final Pool primary;
+    private final List<Pool> replicas = new ArrayList<>();
+    private final long maxLagMs;
+    // 早于这个时间的写入在所有正在使用的副本上都已经可见（最大延迟 + 一次心跳的测量误差）
+    private final long visibleAfterNanos;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder primaryRequired = new LongAdder();
+    private final ScheduledExecutorService heartbeat;
+    private volatile long lastBeat = -1;
+
+    private static final class Pool {
+        private final String name;
+        private final HikariDataSource dataSource;
+        private final LongAdder connections = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile boolean available;
+        private volatile long lagMs = -1;
+
+        private Pool(String name, HikariDataSource dataSource, boolean available) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.available = available;
+        }
+    }
+
+    /**
+     * @param replicas 没有副本时所有连接都来自主库，也不写心跳
+     */
+    public ReplicaRoutingDataSource(HikariDataSource primary, List<HikariDataSource> replicas,
+                                    long maxLagMs, long heartbeatIntervalMs) {
+        if (maxLagMs < 0 || heartbeatIntervalMs <= 0) {
+            throw new IllegalArgumentException("无效的副本配置: max-replica-lag-ms=" + maxLagMs
+                    + ", heartbeat-interval-ms=" + heartbeatIntervalMs);
+        }
+        this.primary = new Pool(primary.getPoolName(), primary, true);
+        for (HikariDataSource replica : replicas) {
+            this.replicas.add(new Pool(replica.getPoolName(), replica, false)); // 第一次检查通过之前不使用
+        }
+        this.maxLagMs = maxLagMs;
+        this.visibleAfterNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMs + heartbeatIntervalMs);
+        if (replicas.isEmpty()) {
+            this.heartbeat = null;
+            return;
+        }
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 当前事务改用主库（需要读到刚写入的数据时）；在事务第一次访问数据库之前调用才有效，事务结束时恢复
+     * 被 REQUIRES_NEW 的事务挂起期间不影响里面的事务
+     */
+    public static void requirePrimary() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() || PRIMARY_REQUIRED.get() != null) {
+            return;
+        }
+        PRIMARY_REQUIRED.set(Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void suspend() {
+                PRIMARY_REQUIRED.remove();
+            }
+
+            @Override
+            public void resume() {
+                PRIMARY_REQUIRED.set(Boolean.TRUE);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                PRIMARY_REQUIRED.remove();
+            }
+        });
+    }
+
+    /**
+     * 在 modifiedAtNanos（System.nanoTime）写入的数据可能还没有复制到这个数据源的副本时，当前事务改用主库
+     */
+    public void requirePrimaryIfModifiedSince(long modifiedAtNanos) {
+        if (!replicas.isEmpty() && modifiedAtNanos != 0 && System.nanoTime() - modifiedAtNanos < visibleAfterNanos) {
+            requirePrimary();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (!replicas.isEmpty() && TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (PRIMARY_REQUIRED.get() != null) {
+                primaryRequired.increment();
+            } else {
+                Connection connection = replicaConnection();
+                if (connection != null) {
+                    replicaReads.increment();
+                    return connection;
+                }
+                fallbacks.increment();
+            }
+        }
+        return connect(primary);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("读写分离的数据源使用各连接池自己的账号");
+    }
+
+    /**
+     * 从下一个可用的副本取连接；都不可用时返回 null
+     */
+    private Connection replicaConnection() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Pool pool = replicas.get((start + i) % replicas.size());
+            if (!pool.available) {
+                continue;
+            }
+            try {
+                return connect(pool);
+            } catch (SQLException e) {
+                pool.available = false; // 下一次心跳检查通过后恢复
+                System.err.println("副本 " + pool.name + " 取连接失败，暂停使用: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private Connection connect(Pool pool) throws SQLException {
+        try {
+            Connection connection = pool.dataSource.getConnection();
+            pool.connections.increment();
+            return connection;
+        } catch (SQLException e) {
+            pool.failures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * 检查各副本的延迟，然后写入新的心跳
+     */
+    private void beat() {
+        for (Pool replica : replicas) {
+            long seen = -1;
+            try (Connection connection = replica.dataSource.getConnection();
+                 PreparedStatement select = connection.prepareStatement(
+                         "SELECT beat_at FROM replica_heartbeat WHERE instance_id = ?")) {
+                select.setString(1, instanceId);
+                try (ResultSet row = select.executeQuery()) {
+                    if (row.next()) {
+                        seen = row.getLong(1);
+                    }
+                }
+            } catch (SQLException e) {
+                replica.failures.increment();
+                if (replica.available) {
+                    System.err.println("读取副本 " + replica.name + " 的心跳失败，暂停使用: " + e.getMessage());
+                }
+            }
+            boolean wasAvailable = replica.available;
+            replica.lagMs = seen < 0 || lastBeat < 0 ? -1 : Math.max(0, lastBeat - seen);
+            replica.available = replica.lagMs >= 0 && replica.lagMs <= maxLagMs;
+            if (wasAvailable != replica.available) {
+                System.out.println("副本 " + replica.name + (replica.available ? " 恢复使用" : " 暂停使用")
+                        + "（延迟 " + (replica.lagMs < 0 ? "未知" : replica.lagMs + " ms") + "）");
+            }
+        }
+        long now = System.currentTimeMillis();
+        try (Connection connection = primary.dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE replica_heartbeat SET beat_at = ? WHERE instance_id = ?")) {
+                update.setLong(1, now);
+                update.setString(2, instanceId);
+                if (update.executeUpdate() == 0) {
+                    try (PreparedStatement insert = connection.prepareStatement(
+                            "INSERT INTO replica_heartbeat (instance_id, beat_at) VALUES (?, ?)")) {
+                        insert.setString(1, instanceId);
+                        insert.setLong(2, now);
+                        insert.executeUpdate();
+                    }
+                }
+            }
+            lastBeat = now;
+        } catch (SQLException e) {
+            // 上一次的心跳仍然有效：副本追上它之后延迟为 0，追不上时延迟照常增长
+            primary.failures.increment();
+            System.err.println("写入副本心跳失败: " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> pools = new ArrayList<>();
+        pools.add(poolStats(primary, "primary"));
+        for (Pool replica : replicas) {
+            pools.add(poolStats(replica, "replica"));
+        }
+        return Map.of(
+                "pools", pools,
+                "replicaReads", replicaReads.sum(),
+                "fallbacks", fallbacks.sum(), // 只读事务因为没有可用的副本而使用主库
+                "primaryRequired", primaryRequired.sum(), // 只读事务需要读到刚写入的数据而使用主库
+                "maxLagMs", maxLagMs
+        );
+    }
+
+    private static Map<String, Object> poolStats(Pool pool, String role) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", pool.name);
+        stats.put("role", role);
+        stats.put("available", pool.available);
+        stats.put("lagMs", pool.lagMs);
+        stats.put("connections", pool.connections.sum());
+        stats.put("failures", pool.failures.sum());
+        HikariPoolMXBean hikari = pool.dataSource.getHikariPoolMXBean(); // 连接池第一次使用之前为 null
+        if (hikari != null) {
+            stats.put("active", hikari.getActiveConnections());
+            stats.put("idle", hikari.getIdleConnections());
+            stats.put("waiting", hikari.getThreadsAwaitingConnection());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        for (Pool replica : replicas) {
+            replica.dataSource.close();
+        }
+        primary.dataSource.close();
+    }
+}
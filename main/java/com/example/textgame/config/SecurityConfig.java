@@ -1,6 +1,7 @@
 package com.example.textgame.config;
 
 import com.example.textgame.service.UserService;
+import jakarta.servlet.DispatcherType;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -29,11 +30,15 @@ public class SecurityConfig {
         return http
                 .csrf(AbstractHttpConfigurer::disable)
                 .authorizeHttpRequests(auth -> auth
+                        // (新) 异步请求（游戏命令）结束后的分派：原请求已经通过认证
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC, DispatcherType.ERROR).permitAll()
+
                         // 允许访问前端页面和白名单API
                         .requestMatchers("/", "/*.html", "/favicon.ico").permitAll()
 
                         // (修复 3.2) 允许访问正确的游戏资源路径
                         .requestMatchers("/backgrounds/**", "/sprites/**").permitAll()
+                        .requestMatchers("/assets/**").permitAll() // (新) 带指纹的场景图片
 
                         .requestMatchers("/api/auth/login").permitAll() // 登录
                         .requestMatchers("/api/auth/register").permitAll() // 注册
@@ -0,0 +1,80 @@
+package com.example.textgame.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * (新) 玩家 -> 分片的一致性哈希环（不可变）
+ * 1. 每个分片按名称在环上放 virtualNodes 个点；玩家按 user_id 的哈希落在环上，属于顺时针方向的第一个点所在的分片
+ * 2. 增加一个分片只会把约 1/(N+1) 的玩家移到新分片，其余玩家的分片不变；删除一个分片只影响原来在它上面的玩家
+ * 3. 位置只由分片名称和 user_id 决定（与 JVM、启动顺序、JDBC 地址无关），所有实例和 ShardRebalancer 得到相同的结果
+ */
+public final class ShardMap {
+
+    private final List<String> shards;
+    private final long[] points; // 环上的点，升序
+    private final int[] owners; // points[i] 所属分片在 shards 中的下标
+
+    public ShardMap(List<String> shards, int virtualNodes) {
+        if (shards.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("无效的分片配置: " + shards + ", virtual-nodes=" + virtualNodes);
+        }
+        if (new HashSet<>(shards).size() != shards.size()) {
+            throw new IllegalArgumentException("分片名称重复: " + shards);
+        }
+        this.shards = List.copyOf(shards);
+        int count = shards.size() * virtualNodes;
+        long[] hashes = new long[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(shards.get(i / virtualNodes) + "#" + (i % virtualNodes));
+            order[i] = i;
+        }
+        // 两个点哈希相同时配置中靠前的分片在前（极少发生，只需要结果确定）
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> hashes[i]).thenComparingInt(i -> i));
+        this.points = new long[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public List<String> shards() {
+        return shards;
+    }
+
+    public String shardOf(long userId) {
+        int i = Arrays.binarySearch(points, mix(userId));
+        if (i < 0) {
+            i = -i - 1; // 第一个大于它的点
+        }
+        return shards.get(owners[i == points.length ? 0 : i]);
+    }
+
+    /**
+     * 分片名称的哈希：FNV-1a（UTF-8）再打散
+     */
+    private static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * 64 位打散（MurmurHash3 的 fmix64），连续的 user_id 均匀分布在环上
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.textgame.controller;
+
+import com.example.textgame.repository.AssetCatalog;
+import com.example.textgame.repository.AssetCatalog.Asset;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (新) 带指纹的场景图片
+ * 地址中的指纹随内容变化，所以响应可以被浏览器永久缓存，回访的玩家不会再为场景图片发起验证请求
+ */
+@RestController
+@RequestMapping("/assets")
+@RequiredArgsConstructor
+public class AssetController {
+
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable();
+
+    private final AssetCatalog assetCatalog;
+
+    /**
+     * 1. 支持 If-None-Match (304)、单个字节区间 Range / If-Range (206 / 416)
+     * 2. 客户端接受时返回预压缩版本 (br 优先于 gzip)；区间请求总是针对原始内容
+     * 3. 指纹已过期时重定向到同名资源的当前地址（页面跨越了一次部署）
+     */
+    @GetMapping("/{kind}/{file}")
+    public ResponseEntity<byte[]> getAsset(@PathVariable String kind, @PathVariable String file,
+                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                           @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                           @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                           @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        Asset asset = assetCatalog.find(kind, file);
+        if (asset == null) {
+            String current = assetCatalog.currentUrlOf(kind, file);
+            if (current == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .header(HttpHeaders.LOCATION, current)
+                    .cacheControl(CacheControl.noStore())
+                    .build();
+        }
+
+        byte[] bytes = asset.getBytes();
+        if (range != null && (ifRange == null || ifRange.trim().equals(asset.getEtag()))) {
+            long[] bounds = parseRange(range, bytes.length);
+            if (bounds != null && bounds.length == 0) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + bytes.length)
+                        .build();
+            }
+            if (bounds != null) {
+                int start = (int) bounds[0];
+                int end = (int) bounds[1];
+                return headers(ResponseEntity.status(HttpStatus.PARTIAL_CONTENT), asset, asset.getEtag())
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + bytes.length)
+                        .body(Arrays.copyOfRange(bytes, start, end + 1));
+            }
+        }
+
+        String encoding = chooseEncoding(asset, acceptEncoding);
+        String etag = encoding == null ? asset.getEtag() : asset.etagOf(encoding);
+        if (etagMatches(ifNoneMatch, etag)) {
+            return headers(ResponseEntity.status(HttpStatus.NOT_MODIFIED), asset, etag).build();
+        }
+        ResponseEntity.BodyBuilder builder = headers(ResponseEntity.ok(), asset, etag);
+        if (encoding != null) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, encoding);
+            bytes = asset.getEncodings().get(encoding);
+        }
+        return builder.body(bytes);
+    }
+
+    private static ResponseEntity.BodyBuilder headers(ResponseEntity.BodyBuilder builder, Asset asset, String etag) {
+        builder.contentType(asset.getContentType())
+                .eTag(etag)
+                .cacheControl(IMMUTABLE)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (!asset.getEncodings().isEmpty()) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return builder;
+    }
+
+    /**
+     * 解析单个字节区间: "bytes=a-b"、"bytes=a-"、"bytes=-n"
+     * 返回 [start, end]（包含 end）；多个区间或无法识别的格式返回 null（按完整内容响应）；
+     * 区间超出内容范围时返回空数组
+     */
+    private static long[] parseRange(String range, long length) {
+        String spec = range.trim();
+        if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        spec = spec.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // 后缀区间：最后 n 个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return new long[0];
+                }
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            if (start >= length) {
+                return new long[0];
+            }
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            return new long[]{start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 按资源的优先级选择客户端接受的第一个内容编码；都不接受时返回 null（原始内容）
+     */
+    private static String chooseEncoding(Asset asset, String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        for (Map.Entry<String, byte[]> entry : asset.getEncodings().entrySet()) {
+            if (accepts(acceptEncoding, entry.getKey())) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase(encoding)) {
+                // "gzip;q=0" 表示明确拒绝
+                return parts.length < 2 || !parts[1].replace(" ", "").equalsIgnoreCase("q=0");
+            }
+        }
+        return false;
+    }
+
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
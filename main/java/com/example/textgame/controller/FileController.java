@@ -64,10 +64,18 @@ public class FileController {
     /** * 下载心理测试报告
      */
     @GetMapping("/download/report")
-    public ResponseEntity<Resource> downloadReport(Principal principal) {
+    public ResponseEntity<Resource> downloadReport(Principal principal,
+                                                   @RequestParam(defaultValue = "false") boolean rescore) {
         // 允许匿名下载（如果 principal 为 null）或认证下载
         String userId = (principal != null) ? principal.getName() : "anonymous_report";
-        Resource resource = fileStorageService.generatePsychologicalReport(userId);
+        Resource resource;
+        try {
+            resource = fileStorageService.generatePsychologicalReport(userId, rescore);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage(), e);
+        }
 
         String filename = "Psychological_Report_" + userId + ".txt";
 
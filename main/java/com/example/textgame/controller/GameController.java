@@ -1,17 +1,37 @@
 package com.example.textgame.controller;
 
+import com.example.textgame.dto.NodePayload;
 import com.example.textgame.model.GameNode;
 import com.example.textgame.model.GameState;
 import com.example.textgame.dto.GameChoiceRequest;
 import com.example.textgame.service.GameService;
+import com.example.textgame.service.IdempotencyCache;
+import com.example.textgame.service.UserCommandSequencer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.persistence.OptimisticLockException;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.HttpStatus; // 导入 HttpStatus
+import org.springframework.http.HttpStatusCode;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
 import java.security.Principal;
+import java.util.List;
 import java.util.Map; // 导入 Map
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/game")
@@ -19,33 +39,130 @@ import java.util.Map; // 导入 Map
 public class GameController {
 
     private final GameService gameService;
+    private final UserCommandSequencer sequencer;
+    private final IdempotencyCache idempotencyCache;
+    private final ObjectMapper objectMapper;
+
+    // (新) 客户端重试游戏命令时带上同一个值，服务器返回第一次的响应而不是再执行一次
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    // 响应可以被浏览器缓存，但每次使用前都要用 ETag 重新验证
+    private static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
 
     /** * 获取当前游戏节点
      */
     @GetMapping("/current-node")
-    public ResponseEntity<GameNode> getCurrentNode(Principal principal) {
+    public CompletableFuture<ResponseEntity<byte[]>> getCurrentNode(Principal principal,
+                                                                    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                    @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         String userId = principal.getName(); // Spring Security 会注入用户名
-        GameNode currentNode = gameService.getCurrentNode(userId);
-        return ResponseEntity.ok(currentNode);
+        return sequencer.submit(userId, () -> {
+            NodePayload payload = gameService.getCurrentNodePayload(userId);
+            return nodeResponse(HttpStatus.OK, payload, ifNoneMatch, acceptEncoding);
+        });
+    }
+
+    /**
+     * (新) 以 Server-Sent Events 逐条推送当前场景：scene、sprites、每句对话 (line)、最后是 choices
+     * 长场景不必等整个节点下载完，第一句对话到达即可显示
+     * 直接写入响应流（不使用异步分派），第一句对话写完后立即 flush；读取当前节点仍然排在这个玩家的命令后面
+     */
+    @GetMapping(value = "/current-node/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public void streamCurrentNode(Principal principal,
+                                  @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                  HttpServletResponse response) throws IOException {
+        String userId = principal.getName();
+        NodePayload payload;
+        try {
+            payload = sequencer.submit(userId, () -> gameService.getCurrentNodePayload(userId)).join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof IllegalStateException)) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+            System.err.println("Stream node error: " + e.getCause().getMessage());
+            response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            return;
+        }
+        response.setContentType(MediaType.TEXT_EVENT_STREAM_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+        response.setHeader("X-Accel-Buffering", "no"); // 经过 nginx 时不缓冲整个响应
+        gameService.writeSceneEvents(payload, lastEventId, response.getOutputStream());
+    }
+
+    /**
+     * (新) 一步前瞻：当前选项指向的所有节点
+     * @param known 客户端已缓存的节点哈希（逗号分隔），这些节点只返回哈希
+     */
+    @GetMapping("/lookahead")
+    public CompletableFuture<ResponseEntity<byte[]>> getLookahead(Principal principal,
+                                                                  @RequestParam(value = "known", required = false) Set<String> known) {
+        String userId = principal.getName();
+        return sequencer.submit(userId, () -> {
+            try {
+                byte[] body = gameService.getLookahead(userId, known != null ? known : Set.of());
+                return ResponseEntity.ok()
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .cacheControl(CacheControl.noStore())
+                        .body(body);
+            } catch (IllegalStateException e) {
+                System.err.println("Lookahead error: " + e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
+            }
+        });
     }
 
     /** * 获取当前游戏状态（包括属性）
      */
     @GetMapping("/state")
-    public ResponseEntity<GameState> getGameState(Principal principal) {
+    public CompletableFuture<ResponseEntity<byte[]>> getGameState(Principal principal,
+                                                                  @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String userId = principal.getName();
+        return sequencer.submit(userId, () -> {
+            GameState state = gameService.getOrCreateGameState(userId);
+            // ETag 由用户ID和状态版本号组成，状态没有变化时不需要重新序列化
+            String etag = "\"" + state.getId() + "-" + state.getVersion() + "\"";
+            if (etagMatches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(REVALIDATE).build();
+            }
+            return ResponseEntity.ok().eTag(etag).cacheControl(REVALIDATE)
+                    .contentType(MediaType.APPLICATION_JSON).body(stateJson(state));
+        });
+    }
+
+    /**
+     * (新) 本轮游戏的选择历史，分页读取
+     * @param page 页码，从 0 开始
+     * @param size 每页条数（最多 200）
+     */
+    @GetMapping("/history")
+    public CompletableFuture<ResponseEntity<?>> getChoiceHistory(Principal principal,
+                                                                 @RequestParam(defaultValue = "0") int page,
+                                                                 @RequestParam(defaultValue = "50") int size) {
         String userId = principal.getName();
-        GameState state = gameService.getOrCreateGameState(userId);
-        return ResponseEntity.ok(state);
+        return sequencer.submit(userId, () -> {
+            try {
+                List<String> entries = gameService.getChoiceHistory(userId, page, size);
+                GameState state = gameService.getOrCreateGameState(userId);
+                return ResponseEntity.ok(Map.of("page", page, "size", size,
+                        "total", state.getHistoryLength(), "entries", entries));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        });
     }
 
     /**
      * 重新掷骰分配属性
      */
     @PostMapping("/roll-attributes")
-    public ResponseEntity<GameState> rollAttributes(Principal principal) {
+    public CompletableFuture<ResponseEntity<byte[]>> rollAttributes(Principal principal,
+                                                                    @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
-        GameState newState = gameService.rollAttributes(userId);
-        return ResponseEntity.ok(newState);
+        return sequenced(userId, idempotencyKey, "roll-attributes", () -> {
+            GameState newState = gameService.rollAttributes(userId);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(stateJson(newState));
+        });
     }
 
     /**
@@ -55,78 +172,328 @@ public class GameController {
      * @return 更新后的游戏状态或错误信息
      */
     @PostMapping("/set-attributes")
-    public ResponseEntity<?> setManualAttributes(Principal principal, @RequestBody Map<String, Integer> attributes) {
+    public CompletableFuture<ResponseEntity<?>> setManualAttributes(Principal principal, @RequestBody Map<String, Integer> attributes,
+                                                                    @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
-        try {
-            GameState updatedState = gameService.setManualAttributes(userId, attributes);
-            return ResponseEntity.ok(updatedState);
-        } catch (IllegalArgumentException e) {
-            // 如果 GameService 抛出验证错误，返回 400
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
-        } catch (Exception e) {
-            // 其他未知错误
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("设置属性时发生错误");
-        }
+        return sequenced(userId, idempotencyKey, "set-attributes:" + attributes, () -> {
+            try {
+                GameState updatedState = gameService.setManualAttributes(userId, attributes);
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(stateJson(updatedState));
+            } catch (IllegalArgumentException e) {
+                // 如果 GameService 抛出验证错误，返回 400
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            } catch (Exception e) {
+                // 其他未知错误
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("设置属性时发生错误");
+            }
+        });
     }
 
 
     /** * 做出选择
      */
     @PostMapping("/choice")
-    public ResponseEntity<GameNode> makeChoice(Principal principal, @Valid @RequestBody GameChoiceRequest choiceRequest) {
+    public CompletableFuture<ResponseEntity<byte[]>> makeChoice(Principal principal, @Valid @RequestBody GameChoiceRequest choiceRequest,
+                                                                @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                                @RequestHeader(value = "X-Scene-Base", required = false) String sceneBase,
+                                                                @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
+        return sequenced(userId, idempotencyKey, "choice:" + choiceRequest.getChoiceId() + ":" + sceneBase, acceptEncoding, () -> {
+            try {
+                // (新) 客户端带上正在显示的场景哈希时，可能返回场景差异 {"delta": true, ...}
+                ResponseEntity<NodePayload> result = gameService.makeChoice(userId, choiceRequest.getChoiceId(), sceneBase);
+                return nodeResponse(result.getStatusCode(), result.getBody(), null, acceptEncoding);
+            } catch (IllegalArgumentException e) {
+                // 捕获无效选择 ID 的错误
+                System.err.println("Make choice error: " + e.getMessage()); // 打印错误到后端日志
+                // 返回 400 Bad Request，可以带上错误信息
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
+            } catch (IllegalStateException e) {
+                System.err.println("Make choice state error: " + e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null); // 游戏数据配置错误
+            }
+        });
+    }
+
+    /**
+     * (新) 可用的故事列表及故事目录缓存统计
+     */
+    @GetMapping("/stories")
+    public ResponseEntity<?> listStories() {
         try {
-            return gameService.makeChoice(userId, choiceRequest.getChoiceId());
-        } catch (IllegalArgumentException e) {
-            // 捕获无效选择 ID 的错误
-            System.err.println("Make choice error: " + e.getMessage()); // 打印错误到后端日志
-            // 返回 400 Bad Request，可以带上错误信息
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(null);
-        } catch (IllegalStateException e) {
-            System.err.println("Make choice state error: " + e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null); // 游戏数据配置错误
+            return ResponseEntity.ok(gameService.getStoryCatalog());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("读取故事目录失败");
         }
     }
 
+    /**
+     * (新) 切换故事并从头开始
+     * @param body 包含 storyId 的 Map
+     */
+    @PostMapping("/story")
+    public CompletableFuture<ResponseEntity<?>> startStory(Principal principal, @RequestBody Map<String, String> body,
+                                                           @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String userId = principal.getName();
+        return sequenced(userId, idempotencyKey, "story:" + body.get("storyId"), () -> {
+            try {
+                return ResponseEntity.ok(gameService.startStory(userId, body.get("storyId")));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        });
+    }
+
     /** * 重置游戏
      */
     @PostMapping("/reset")
-    public ResponseEntity<GameNode> resetGame(Principal principal) {
+    public CompletableFuture<ResponseEntity<GameNode>> resetGame(Principal principal,
+                                                                 @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
-        GameNode startNode = gameService.resetGame(userId);
-        return ResponseEntity.ok(startNode);
+        return sequenced(userId, idempotencyKey, "reset", () -> {
+            GameNode startNode = gameService.resetGame(userId);
+            return ResponseEntity.ok(startNode);
+        });
     }
 
     /**
      * (新) 保存游戏
+     * @param slot 存档位名称（字母、数字、_、-），同名时覆盖
      */
     @PostMapping("/save")
-    public ResponseEntity<?> saveGame(Principal principal) {
+    public CompletableFuture<ResponseEntity<?>> saveGame(Principal principal,
+                                                         @RequestParam(defaultValue = GameService.QUICK_SLOT) String slot,
+                                                         @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
-        boolean success = gameService.saveGame(userId);
-        if (success) {
-            return ResponseEntity.ok(Map.of("message", "游戏已保存"));
-        } else {
-            // 理论上内存保存不会失败
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("保存失败");
-        }
+        return sequenced(userId, idempotencyKey, "save:" + slot, () -> {
+            try {
+                boolean success = gameService.saveGame(userId, slot);
+                if (success) {
+                    return ResponseEntity.ok(Map.of("message", "游戏已保存", "slot", slot));
+                } else {
+                    // 理论上内存保存不会失败
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("保存失败");
+                }
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        });
     }
 
     /**
      * (新) 读取游戏
+     * @param slot 存档位名称
      */
     @PostMapping("/load")
-    public ResponseEntity<GameNode> loadGame(Principal principal) {
+    public CompletableFuture<ResponseEntity<GameNode>> loadGame(Principal principal,
+                                                                @RequestParam(defaultValue = GameService.QUICK_SLOT) String slot,
+                                                                @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String userId = principal.getName();
+        return sequenced(userId, idempotencyKey, "load:" + slot, () -> {
+            try {
+                GameNode loadedNode = gameService.loadGame(userId, slot);
+                return ResponseEntity.ok(loadedNode);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                System.err.println("Load game state error: " + e.getMessage());
+                // 如果存档点无效（理论上不会），返回错误
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+            }
+        });
+    }
+
+    /**
+     * (新) 存档列表，最近保存的在前
+     */
+    @GetMapping("/saves")
+    public CompletableFuture<ResponseEntity<List<Map<String, Object>>>> listSaves(Principal principal) {
+        String userId = principal.getName();
+        return sequencer.submit(userId, () -> ResponseEntity.ok(gameService.listSaves(userId)));
+    }
+
+    /**
+     * (新) 删除存档位
+     */
+    @DeleteMapping("/saves/{slot}")
+    public CompletableFuture<ResponseEntity<?>> deleteSave(Principal principal, @PathVariable String slot,
+                                                           @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        String userId = principal.getName();
+        return sequenced(userId, idempotencyKey, "delete-save:" + slot, () -> {
+            try {
+                return gameService.deleteSave(userId, slot)
+                        ? ResponseEntity.noContent().build()
+                        : ResponseEntity.status(HttpStatus.NOT_FOUND).body("存档不存在: " + slot);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * (新) 可以回退的选择次数
+     */
+    @GetMapping("/rewind")
+    public CompletableFuture<ResponseEntity<Map<String, Integer>>> getRewindableSteps(Principal principal) {
+        String userId = principal.getName();
+        return sequencer.submit(userId, () -> ResponseEntity.ok(Map.of("steps", gameService.getRewindableSteps(userId))));
+    }
+
+    /**
+     * (新) 回退最近的几次选择
+     * @param steps 回退的次数
+     */
+    @PostMapping("/rewind")
+    public CompletableFuture<ResponseEntity<?>> rewind(Principal principal, @RequestParam(defaultValue = "1") int steps,
+                                                       @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
         String userId = principal.getName();
+        return sequenced(userId, idempotencyKey, "rewind:" + steps, () -> {
+            try {
+                return ResponseEntity.ok(gameService.rewind(userId, steps));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * (新) 同一玩家排队的请求过多（例如连续点击）
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> tooManyCommands(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(e.getMessage());
+    }
+
+    /**
+     * (新) 游戏状态在读取之后被其他修改改过（例如节点ID迁移）；内存中的会话已被移除，重试时读取最新的状态
+     */
+    @ExceptionHandler({OptimisticLockingFailureException.class, OptimisticLockException.class})
+    public ResponseEntity<String> staleState(RuntimeException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+    }
+
+    /**
+     * (新) 在排队的命令中把状态序列化为 JSON：命令返回之后，这个玩家的下一个命令可能已经在修改同一个 GameState，
+     * 交给 Spring 在请求线程上序列化会读到修改到一半的集合
+     */
+    private byte[] stateJson(GameState state) {
         try {
-            GameNode loadedNode = gameService.loadGame(userId);
-            return ResponseEntity.ok(loadedNode);
-        } catch (IllegalStateException e) {
-            System.err.println("Load game state error: " + e.getMessage());
-            // 如果存档点无效（理论上不会），返回错误
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+            return objectMapper.writeValueAsBytes(state);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("无法序列化游戏状态: " + e.getMessage(), e);
         }
     }
 
-}
+    /**
+     * (新) 修改游戏状态的请求按玩家排队执行：同一玩家的请求依次执行，不同玩家并行
+     * 读取游戏状态的请求也排在同一个队列中（直接调用 sequencer.submit，不使用 Idempotency-Key），
+     * 不会与执行中的命令同时访问 GameState
+     * 请求线程不等待，结果通过异步分派返回
+     * 带 Idempotency-Key 时：
+     * 1. 已经保存了这个 key 的响应时直接返回（不排队、不执行）
+     * 2. 第一次请求还在排队或执行时，重试排在它后面，轮到时再查一次，得到第一次的响应
+     * 3. 同一个 key 用于不同的请求时返回 422
+     * @param request 请求内容摘要（命令名和参数）
+     */
+    private <R extends ResponseEntity<?>> CompletableFuture<R> sequenced(String userId, String idempotencyKey,
+                                                                         String request, Supplier<R> command) {
+        return sequenced(userId, idempotencyKey, request, null, command);
+    }
 
+    /**
+     * (新) 响应随 Accept-Encoding 变化的命令：重放时按这一次请求的 acceptEncoding 选择是否压缩
+     */
+    private <R extends ResponseEntity<?>> CompletableFuture<R> sequenced(String userId, String idempotencyKey, String request,
+                                                                         String acceptEncoding, Supplier<R> command) {
+        if (idempotencyKey == null) {
+            return sequencer.submit(userId, command);
+        }
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > 255) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Idempotency-Key 必须是 1 到 255 个字符");
+        }
+        R replay = replay(userId, idempotencyKey, request, acceptEncoding);
+        if (replay != null) {
+            return CompletableFuture.completedFuture(replay);
+        }
+        return sequencer.submit(userId, () -> {
+            R again = replay(userId, idempotencyKey, request, acceptEncoding);
+            if (again != null) {
+                return again;
+            }
+            R response = command.get();
+            idempotencyCache.put(userId, idempotencyKey, request, response);
+            return response;
+        });
+    }
+
+    @SuppressWarnings("unchecked") // 重放的响应体是保存下来的字节，Spring 按实际类型输出
+    private <R extends ResponseEntity<?>> R replay(String userId, String idempotencyKey, String request,
+                                                   String acceptEncoding) {
+        IdempotencyCache.StoredResponse stored = idempotencyCache.get(userId, idempotencyKey);
+        if (stored == null) {
+            return null;
+        }
+        if (!stored.request().equals(request)) {
+            throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Idempotency-Key 已用于另一个请求");
+        }
+        return (R) stored.toResponse(acceptsGzip(acceptEncoding));
+    }
+
+    /**
+     * 直接输出预序列化的节点字节
+     * 1. 客户端接受 gzip 时输出压缩版本，否则输出原始 JSON
+     * 2. If-None-Match 与当前表示的 ETag 一致时返回 304，不输出响应体
+     */
+    private ResponseEntity<byte[]> nodeResponse(HttpStatusCode status, NodePayload payload,
+                                                String ifNoneMatch, String acceptEncoding) {
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String etag = gzip ? payload.getGzipEtag() : payload.getEtag();
+        if (status.is2xxSuccessful() && etagMatches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(etag)
+                    .cacheControl(REVALIDATE)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(etag)
+                .cacheControl(REVALIDATE)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.body(gzip ? payload.getGzip() : payload.getJson());
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // "gzip;q=0" 表示明确拒绝
+                return parts.length < 2 || !parts[1].replace(" ", "").equalsIgnoreCase("q=0");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If-None-Match 使用弱比较：忽略 W/ 前缀，"*" 匹配任何表示
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.textgame.dto;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 预先序列化好的节点响应体
+ * 1. json: 节点的 JSON 字节（UTF-8）
+ * 2. gzip: 同一份 JSON 的 gzip 压缩结果
+ * 3. etag: 由 JSON 内容的 SHA-256 派生的强 ETag；gzip 版本是不同的表示，使用带 "-gz" 后缀的 ETag
+ * 创建后不再修改，可以在线程之间共享。
+ */
+public final class NodePayload {
+
+    private static final String GZIP_ETAG_SUFFIX = "-gz";
+
+    private final byte[] json;
+    private final byte[] gzip;
+    private final String hash;
+    private final String etag;
+    private final String gzipEtag;
+
+    private NodePayload(byte[] json, byte[] gzip, String hash) {
+        this.json = json;
+        this.gzip = gzip;
+        this.hash = hash;
+        this.etag = "\"" + hash + "\"";
+        this.gzipEtag = "\"" + hash + GZIP_ETAG_SUFFIX + "\"";
+    }
+
+    public static NodePayload encode(ObjectMapper mapper, Object value) {
+        try {
+            byte[] json = mapper.writeValueAsBytes(value);
+            return new NodePayload(json, gzip(json), hash(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("节点序列化失败: " + e.getMessage(), e);
+        }
+    }
+
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 内存流不会出现 IO 错误
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * (新) 同一份 JSON 的 gzip 表示的 ETag
+     */
+    public static String gzipEtagOf(String etag) {
+        return etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + "\"";
+    }
+
+    /**
+     * (新) gzip 表示的 ETag 换回 JSON 表示的 ETag；不是 gzip 表示的 ETag 时原样返回
+     */
+    public static String etagOfGzip(String etag) {
+        String suffix = GZIP_ETAG_SUFFIX + "\"";
+        return etag.endsWith(suffix) ? etag.substring(0, etag.length() - suffix.length()) + "\"" : etag;
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            // 128 位足以区分同一个 URL 下的不同内容
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // 每个 JRE 都必须提供 SHA-256
+        }
+    }
+
+    public byte[] getJson() {
+        return json;
+    }
+
+    public byte[] getGzip() {
+        return gzip;
+    }
+
+    /**
+     * 内容哈希（不带引号），客户端用它标识已经缓存的节点
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getGzipEtag() {
+        return gzipEtag;
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.textgame.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 故事目录中单个故事的缓存统计
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StoryStats {
+    private String storyId;
+    private boolean loaded;      // 当前是否驻留在内存中
+    private Integer version;     // 驻留版本，未驻留时为 null
+    private long hits;
+    private long misses;         // 未命中即一次加载
+    private long evictions;
+    private long totalLoadMillis;
+    private long lastLoadMillis;
+}
@@ -0,0 +1,198 @@
+package com.example.textgame.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+/**
+ * 属性定义：N 个具名属性、每项初始值的范围，以及初始点数总和
+ * 1. 属性值按下标存放在 int[] 中，下标就是定义顺序；存档按位置保存，新属性只能追加在末尾
+ * 2. 构造时预先计算“从第 i 项开始、剩余 t 点”的合法分配数，随机分配一次遍历即可在所有合法分配上均匀抽样
+ * 3. (新) 游戏使用的定义来自配置 game.attributes（见 AttributeConfig），在加载故事和读取存档之前安装；
+ *    故事脚本按属性名引用属性，存档和故事包按下标保存，所以已有属性的顺序不能改变
+ * 创建后不再修改，可以被多个线程共享。
+ */
+public final class AttributeSchema {
+
+    /** 没有配置时使用的属性：洞察、决心、同理心，每项 1~10，总和 15 */
+    public static final AttributeSchema DEFAULT = new AttributeSchema(
+            new String[]{"insight", "resolve", "empathy"},
+            new String[]{"洞察力", "決心", "同理心"},
+            new int[]{1, 1, 1},
+            new int[]{10, 10, 10},
+            15);
+
+    private static volatile AttributeSchema current = DEFAULT;
+
+    private final String[] names;
+    private final String[] labels;
+    private final int[] min;
+    private final int[] max;
+    private final int total;
+    private final Map<String, Integer> indexes;
+
+    // ways[i][t]: 属性 i..N-1 的取值之和恰好为 t 的分配数
+    private final long[][] ways;
+
+    public AttributeSchema(String[] names, int[] min, int[] max, int total) {
+        this(names, names, min, max, total);
+    }
+
+    /**
+     * @param labels 显示名称（报告等），与 names 一一对应
+     */
+    public AttributeSchema(String[] names, String[] labels, int[] min, int[] max, int total) {
+        if (names.length == 0 || names.length != labels.length
+                || names.length != min.length || names.length != max.length) {
+            throw new IllegalArgumentException("属性名、显示名称与取值范围的数量不一致");
+        }
+        this.names = names.clone();
+        this.labels = labels.clone();
+        this.min = min.clone();
+        this.max = max.clone();
+        this.total = total;
+        this.indexes = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (min[i] < 0 || min[i] > max[i]) {
+                throw new IllegalArgumentException("属性 " + names[i] + " 的取值范围无效");
+            }
+            if (indexes.put(names[i], i) != null) {
+                throw new IllegalArgumentException("重复的属性名: " + names[i]);
+            }
+        }
+
+        int n = names.length;
+        this.ways = new long[n + 1][total + 1];
+        ways[n][0] = 1;
+        for (int i = n - 1; i >= 0; i--) {
+            for (int t = 0; t <= total; t++) {
+                long count = 0;
+                for (int v = min[i]; v <= max[i] && v <= t; v++) {
+                    count += ways[i + 1][t - v];
+                }
+                ways[i][t] = count;
+            }
+        }
+        if (ways[0][total] == 0) {
+            throw new IllegalArgumentException("没有满足总点数 " + total + " 的属性分配");
+        }
+    }
+
+    /**
+     * 游戏当前使用的属性定义
+     */
+    public static AttributeSchema current() {
+        return current;
+    }
+
+    /**
+     * 替换游戏使用的属性定义；在加载故事和读取存档之前调用（AttributeConfig 在启动时调用一次）
+     */
+    public static void install(AttributeSchema schema) {
+        current = schema;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * 属性名 -> 下标，未知属性返回 -1
+     */
+    public int indexOf(String name) {
+        Integer index = name != null ? indexes.get(name) : null;
+        return index != null ? index : -1;
+    }
+
+    public String nameOf(int index) {
+        if (index < 0 || index >= names.length) {
+            throw new IllegalArgumentException("未知属性下标: " + index);
+        }
+        return names[index];
+    }
+
+    public String labelOf(int index) {
+        return labels[index];
+    }
+
+    public int min(int index) {
+        return min[index];
+    }
+
+    public int max(int index) {
+        return max[index];
+    }
+
+    public int total() {
+        return total;
+    }
+
+    /**
+     * 合法的初始分配总数
+     */
+    public long allocationCount() {
+        return ways[0][total];
+    }
+
+    public boolean isValidAllocation(int[] values) {
+        if (values.length != names.length) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < min[i] || values[i] > max[i]) {
+                return false;
+            }
+            sum += values[i];
+        }
+        return sum == total;
+    }
+
+    /**
+     * 在所有合法分配上均匀抽样，结果写入 target（不分配对象，不重试）
+     * 第 i 项取 v 的概率 = 剩余属性在剩余点数下的分配数 / 当前的分配数
+     */
+    public void roll(int[] target, RandomGenerator random) {
+        int remaining = total;
+        for (int i = 0; i < names.length; i++) {
+            long r = random.nextLong(ways[i][remaining]);
+            int v = min[i];
+            while (r >= ways[i + 1][remaining - v]) {
+                r -= ways[i + 1][remaining - v];
+                v++;
+            }
+            target[i] = v;
+            remaining -= v;
+        }
+    }
+
+    /**
+     * 列出所有合法分配（按字典序）
+     */
+    public List<int[]> allocations() {
+        List<int[]> result = new ArrayList<>((int) Math.min(allocationCount(), Integer.MAX_VALUE - 8));
+        collect(0, total, new int[names.length], result);
+        return result;
+    }
+
+    private void collect(int index, int remaining, int[] current, List<int[]> result) {
+        if (index == names.length) {
+            result.add(current.clone());
+            return;
+        }
+        for (int v = min[index]; v <= max[index] && v <= remaining; v++) {
+            if (ways[index + 1][remaining - v] > 0) {
+                current[index] = v;
+                collect(index + 1, remaining - v, current, result);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeSchema" + Arrays.toString(names) + " total=" + total;
+    }
+}
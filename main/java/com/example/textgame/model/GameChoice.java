@@ -1,5 +1,6 @@
 package com.example.textgame.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -19,4 +20,17 @@ public class GameChoice {
 
     // 属性变化：选择后引起的属性增减
     private Map<String, Integer> attributeChanges;
+
+    // (新) 条件表达式，与 requiredAttributes 同时满足才能选择，例如 "insight >= 8 || flag(met_guide)"
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String condition;
+
+    // (新) 效果表达式，在 attributeChanges 之后执行，例如 "resolve += 1; set(met_guide)"
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String effects;
+
+    public GameChoice(String choiceId, String text, String nextNodeId,
+                      Map<String, Integer> requiredAttributes, Map<String, Integer> attributeChanges) {
+        this(choiceId, text, nextNodeId, requiredAttributes, attributeChanges, null, null);
+    }
 }
\ No newline at end of file
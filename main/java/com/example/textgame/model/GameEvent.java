@@ -0,0 +1,192 @@
+package com.example.textgame.model;
+
+import jakarta.persistence.*;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * (新) 游戏事件：事件溯源模式下玩家的每一次操作（选择、掷骰、重置、存档、读档）记为一行
+ * 事件创建后不再修改；当前状态是从快照（见 GameStateSnapshot）开始按顺序应用事件得到的结果（见 GameEventStore）
+ * 随机的结果（掷骰、重置时的新属性）记录在事件中，重放时不再掷骰
+ * 表结构变更:
+ *   CREATE TABLE game_event (
+ *       user_id        BIGINT       NOT NULL,
+ *       seq            BIGINT       NOT NULL, -- 该玩家的第几个事件，从 0 开始
+ *       type           VARCHAR(16)  NOT NULL,
+ *       story_id       VARCHAR(64)  NULL,     -- CHOICE / START_STORY
+ *       story_version  INT          NULL,     -- CHOICE：choice_ordinal 所属的故事图版本
+ *       node_id        VARCHAR(255) NULL,     -- CHOICE：做出选择时所在的节点
+ *       choice_id      VARCHAR(255) NULL,     -- CHOICE
+ *       choice_ordinal INT          NULL,     -- CHOICE
+ *       attributes     VARCHAR(255) NULL,     -- ROLL / SET_ATTRIBUTES / RESET / START_STORY：之后的属性
+ *       state          TEXT         NULL,     -- (新) LOAD_SLOT：读取的存档内容（存档之后可能被覆盖，所以记在事件中）；REWIND：回退后的进度
+ *       rewind_steps   INT          NULL,     -- (新) REWIND：回退的选择次数
+ *       created_at     TIMESTAMP    NOT NULL,
+ *       PRIMARY KEY (user_id, seq)
+ *   );
+ *   (新) 存档位: ALTER TABLE game_event ADD COLUMN state TEXT NULL;
+ *   (新) 回退: ALTER TABLE game_event ADD COLUMN rewind_steps INT NULL;
+ */
+@Getter
+@NoArgsConstructor(access = AccessLevel.PROTECTED)
+@Entity
+@Table(name = "game_event")
+@IdClass(GameEvent.Key.class)
+public class GameEvent implements Persistable<GameEvent.Key> {
+
+    public enum Type {
+        ROLL, SET_ATTRIBUTES, CHOICE, START_STORY, RESET, SAVE, LOAD, LOAD_SLOT, REWIND
+    }
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    // 主键冲突说明另一个请求已经写入了这个序号，本次操作失败（不会覆盖）
+    @Id
+    @Column(name = "seq")
+    private long seq;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "type", length = 16, nullable = false)
+    private Type type;
+
+    @Column(name = "story_id", length = 64)
+    private String storyId;
+
+    @Column(name = "story_version")
+    private Integer storyVersion;
+
+    @Column(name = "node_id")
+    private String nodeId;
+
+    @Column(name = "choice_id")
+    private String choiceId;
+
+    @Column(name = "choice_ordinal")
+    private Integer choiceOrdinal;
+
+    @Convert(converter = PlayerAttributesConverter.class)
+    @Column(name = "attributes")
+    private PlayerAttributes attributes;
+
+    @Lob
+    @Column(name = "state", columnDefinition = "TEXT")
+    private String state;
+
+    @Column(name = "rewind_steps")
+    private Integer rewindSteps;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Transient
+    private transient boolean fresh = true;
+
+    private GameEvent(GameState state, Type type) {
+        this.userId = state.getId();
+        this.seq = state.getEventSeq();
+        this.type = type;
+        this.createdAt = Instant.now();
+    }
+
+    /**
+     * 在当前节点做出选择
+     */
+    public static GameEvent choice(GameState state, int storyVersion, String choiceId, int choiceOrdinal) {
+        GameEvent event = new GameEvent(state, Type.CHOICE);
+        event.storyId = state.getStoryId();
+        event.storyVersion = storyVersion;
+        event.nodeId = state.getCurrentNodeId();
+        event.choiceId = choiceId;
+        event.choiceOrdinal = choiceOrdinal;
+        return event;
+    }
+
+    /**
+     * 属性变为 attributes（ROLL、SET_ATTRIBUTES、RESET）
+     */
+    public static GameEvent attributes(GameState state, Type type, PlayerAttributes attributes) {
+        GameEvent event = new GameEvent(state, type);
+        event.attributes = PlayerAttributes.of(attributes.toArray());
+        return event;
+    }
+
+    /**
+     * 切换到另一个故事并从头开始
+     */
+    public static GameEvent startStory(GameState state, String storyId, PlayerAttributes attributes) {
+        GameEvent event = attributes(state, Type.START_STORY, attributes);
+        event.storyId = storyId;
+        return event;
+    }
+
+    /**
+     * (新) 读取存档位
+     * @param saved 存档内容（GameStateJson 格式）
+     */
+    public static GameEvent loadSlot(GameState state, String saved) {
+        GameEvent event = new GameEvent(state, Type.LOAD_SLOT);
+        event.state = saved;
+        return event;
+    }
+
+    /**
+     * (新) 回退最近的 steps 次选择
+     * @param rewound 回退后的进度（GameStateJson 格式）；重放时内存中没有撤销链，直接读取这个结果。
+     *                不记录事件的模式下为 null，应用时沿撤销链回退
+     */
+    public static GameEvent rewind(GameState state, int steps, String rewound) {
+        GameEvent event = new GameEvent(state, Type.REWIND);
+        event.rewindSteps = steps;
+        event.state = rewound;
+        return event;
+    }
+
+    /**
+     * 不带数据的事件（SAVE、LOAD）
+     */
+    public static GameEvent of(GameState state, Type type) {
+        return new GameEvent(state, type);
+    }
+
+    /**
+     * 属性的副本，应用到状态上之后事件本身不会被修改
+     */
+    public PlayerAttributes copyAttributes() {
+        return PlayerAttributes.of(attributes.toArray());
+    }
+
+    @Override
+    public Key getId() {
+        return new Key(userId, seq);
+    }
+
+    @Override
+    public boolean isNew() {
+        return fresh;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        fresh = false;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Long userId;
+        private long seq;
+    }
+}
@@ -1,17 +1,20 @@
 package com.example.textgame.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
 import java.io.Serializable; // (新) 导入
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 @Data
 @NoArgsConstructor
 @Entity
 @Table(name = "game_state")
-public class GameState implements Serializable { // (新) 实现 Serializable
+public class GameState implements Serializable, ChoiceContext { // (新) 实现 Serializable
 
     // (新) 添加 serialVersionUID
     private static final long serialVersionUID = 1L;
@@ -20,24 +23,195 @@ public class GameState implements Serializable { // (新) 实现 Serializable
     @Column(name = "user_id")
     private Long id;
 
+    // 活跃会话中的状态已经脱离加载它的事务，不能再加载关联的用户（也不应把用户的密码哈希返回给前端）
+    @JsonIgnore
     @OneToOne(fetch = FetchType.LAZY)
     @MapsId // 告诉 JPA 这个 User 映射的 ID 就是本实体的 ID
     @JoinColumn(name = "user_id")
     private User user;
 
+    // 当前所在的故事ID；旧存档没有这一列的值（null），按默认故事处理
+    // 表结构变更: ALTER TABLE game_state ADD COLUMN story_id VARCHAR(64) NULL;
+    @Column(name = "story_id", length = 64)
+    private String storyId;
+
+    // 状态版本号：每次修改后递增，用来生成 /api/game/state 的 ETag
+    // (新) 同时是乐观锁的版本号：写入时检查数据库中的版本号没有被改过（见 GameStateWriter）
+    // 表结构变更: ALTER TABLE game_state ADD COLUMN state_version BIGINT NOT NULL DEFAULT 0;
+    @Version
+    @Column(name = "state_version", nullable = false)
+    private long version;
+
     @Column(name = "current_node_id", nullable = false)
     private String currentNodeId;
 
     @Column(name = "last_save_node_id", nullable = false)
     private String lastSaveNodeId;
 
-    @Embedded
+    // 所有属性存为一列（例如 "5,6,4"），增加属性不需要修改表结构
+    // 表结构变更:
+    //   ALTER TABLE game_state ADD COLUMN attributes VARCHAR(255) NULL;
+    //   UPDATE game_state SET attributes = CONCAT_WS(',', attr_insight, attr_resolve, attr_empathy);
+    //   ALTER TABLE game_state DROP COLUMN attr_insight, DROP COLUMN attr_resolve, DROP COLUMN attr_empathy;
+    @Convert(converter = PlayerAttributesConverter.class)
+    @Column(name = "attributes")
     private PlayerAttributes attributes;
 
+    // (新) 选择历史存放在只追加的 game_choice_log 表中（见 ChoiceLogEntry），读取状态时不再加载
+    // 本轮游戏的历史是从 historyHead 沿 prev_seq 往前的 historyLength 行（持久化链表，读档时与存档共享）；
+    // 最近的 historyLength - historyBase 行的 seq 是连续的，只有更早的部分需要沿链查找
+    // historyEnd 是下一行的 seq（只增不减）；重新开始时清空 historyHead / historyLength，旧的行保留
+    // 表结构变更:
+    //   ALTER TABLE game_state ADD COLUMN history_start INT NOT NULL DEFAULT 0, ADD COLUMN history_end INT NOT NULL DEFAULT 0;
+    //   旧的 game_choice_history 表（每次保存都会整表删除再插入）不再读写
+    //   (新) 存档位:
+    //   ALTER TABLE game_state ADD COLUMN history_head INT NOT NULL DEFAULT -1,
+    //       ADD COLUMN history_length INT NOT NULL DEFAULT 0, ADD COLUMN history_base INT NOT NULL DEFAULT 0;
+    //   UPDATE game_state SET history_length = history_end - history_start,
+    //       history_head = IF(history_end > history_start, history_end - 1, -1);
+    //   ALTER TABLE game_state DROP COLUMN history_start;
+    @Column(name = "history_head", nullable = false)
+    private int historyHead = -1;
+
+    @Column(name = "history_length", nullable = false)
+    private int historyLength;
+
+    @Column(name = "history_base", nullable = false)
+    private int historyBase;
+
+    @Column(name = "history_end", nullable = false)
+    private int historyEnd;
+
+    // (新) 剧情标记，由选项的效果表达式设置，供条件表达式 flag(X) 判断
+    // 表结构变更: CREATE TABLE game_state_flag (user_id BIGINT NOT NULL, flag VARCHAR(64) NOT NULL, PRIMARY KEY (user_id, flag));
+    // 多个 EAGER 集合用单独的查询加载，避免连接成笛卡尔积
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SELECT)
+    @CollectionTable(name = "game_state_flag", joinColumns = @JoinColumn(name = "user_id"))
+    @Column(name = "flag", length = 64)
+    private Set<String> flags = new LinkedHashSet<>();
+
+    // (新) 本轮到达过的节点ID，供条件表达式 visited(X) 判断
+    // 表结构变更: CREATE TABLE game_visited_node (user_id BIGINT NOT NULL, node_id VARCHAR(255) NOT NULL, PRIMARY KEY (user_id, node_id));
     @ElementCollection(fetch = FetchType.EAGER)
-    @CollectionTable(name = "game_choice_history", joinColumns = @JoinColumn(name = "user_id"))
-    @Column(name = "choice_text")
-    private List<String> choiceHistory = new ArrayList<>();
+    @Fetch(FetchMode.SELECT)
+    @CollectionTable(name = "game_visited_node", joinColumns = @JoinColumn(name = "user_id"))
+    @Column(name = "node_id")
+    private Set<String> visitedNodes = new LinkedHashSet<>();
+
+    // 当前节点在编译后故事图中的序号缓存（不持久化，也不返回给前端）
+    // 与 currentNodeId 不一致时会被 CompiledStoryGraph.resolve 自动忽略
+    @Transient
+    @JsonIgnore
+    private transient int currentNodeOrdinal = -1;
+
+    // (新) 事件溯源模式下已经应用的事件数，也就是下一个事件的序号（见 GameEventStore）
+    // 不持久化到 game_state，但随缓存一起序列化
+    @Transient
+    @JsonIgnore
+    private long eventSeq;
+
+    // (新) 撤销链的链头（见 RewindStep）；只在内存中，随活跃会话保留，重新从数据库加载后为空
+    @Transient
+    @JsonIgnore
+    private transient RewindStep rewindTip;
+
+    // (新) 最近一次修改的时间（System.nanoTime）；只读请求用来判断副本上是否已经能读到这次修改（见 ReplicaRoutingDataSource）
+    @Transient
+    @JsonIgnore
+    private transient long modifiedAt;
+
+    // (新) 上一次读取或写入时数据库中的剧情标记和到达过的节点（entity 模式下只写入有变化的行，见 GameEventStore）
+    // 为 null 时数据库中的内容未知，写入时整体替换
+    @Transient
+    @JsonIgnore
+    private transient Set<String> persistedFlags;
+
+    @Transient
+    @JsonIgnore
+    private transient Set<String> persistedVisitedNodes;
+
+    /**
+     * 标记状态已修改（在保存之前调用）
+     */
+    public void markModified() {
+        version++;
+        modifiedAt = System.nanoTime();
+    }
+
+    /**
+     * (新) 记下当前的剧情标记和到达过的节点就是数据库中的内容（读取或写入之后调用）
+     */
+    public void markPersisted() {
+        persistedFlags = new LinkedHashSet<>(flags);
+        persistedVisitedNodes = new LinkedHashSet<>(visitedNodes);
+    }
+
+    /**
+     * (新) 下一条历史记录的 prev_seq：紧接在 historyHead 之后时为 null（前一条就是 seq - 1）
+     */
+    public Integer nextHistoryPrev() {
+        return historyLength == 0 || historyHead == historyEnd - 1 ? null : historyHead;
+    }
+
+    /**
+     * (新) 追加一条历史记录（seq = historyEnd）；不紧接在 historyHead 之后时开始新的连续段
+     */
+    public void appendHistory() {
+        if (nextHistoryPrev() != null) {
+            historyBase = historyLength;
+        }
+        historyHead = historyEnd;
+        historyLength++;
+        historyEnd++;
+    }
+
+    /**
+     * (新) 清空本轮游戏的历史（表中的行保留）
+     */
+    public void clearHistory() {
+        historyHead = -1;
+        historyLength = 0;
+        historyBase = 0;
+    }
+
+    /**
+     * 记录到达的节点（选项指向的ID，可能是别名）
+     */
+    public void markVisited(String nodeId) {
+        visitedNodes.add(nodeId);
+    }
+
+    // --- ChoiceContext：表达式求值 ---
+
+    @Override
+    public int attribute(int index) {
+        return attributes.getAttribute(index);
+    }
+
+    @Override
+    public void setAttribute(int index, int value) {
+        attributes.setAttribute(index, value);
+    }
+
+    @Override
+    public boolean hasFlag(String flag) {
+        return flags.contains(flag);
+    }
+
+    @Override
+    public void setFlag(String flag, boolean value) {
+        if (value) {
+            flags.add(flag);
+        } else {
+            flags.remove(flag);
+        }
+    }
+
+    @Override
+    public boolean hasVisited(String nodeId) {
+        return visitedNodes.contains(nodeId);
+    }
 
     // 构造函数：需要 User 才能创建
     public GameState(User user) {
@@ -47,6 +221,6 @@ public class GameState implements Serializable { // (新) 实现 Serializable
         this.currentNodeId = "START";
         this.attributes = new PlayerAttributes();
         this.lastSaveNodeId = "START";
-        this.choiceHistory = new ArrayList<>();
+        this.visitedNodes.add("START");
     }
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package com.example.textgame.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Persistable;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+/**
+ * (新) 事件溯源模式下的状态快照：应用了前 seq 个事件之后的游戏状态
+ * 每 N 个事件追加一个，读取状态时从最新的快照开始只重放其后的事件；
+ * seq = 0 的快照是开启事件模式时 game_state 中的状态，从它开始可以按当前规则重放全部事件
+ * 表结构变更:
+ *   CREATE TABLE game_state_snapshot (
+ *       user_id    BIGINT    NOT NULL,
+ *       seq        BIGINT    NOT NULL,
+ *       state      TEXT      NOT NULL, -- JSON，见 GameEventStore
+ *       created_at TIMESTAMP NOT NULL,
+ *       PRIMARY KEY (user_id, seq)
+ *   );
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "game_state_snapshot")
+@IdClass(GameStateSnapshot.Key.class)
+public class GameStateSnapshot implements Persistable<GameStateSnapshot.Key> {
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "seq")
+    private long seq;
+
+    @Lob
+    @Column(name = "state", nullable = false, columnDefinition = "TEXT")
+    private String state;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Transient
+    private transient boolean fresh = true;
+
+    public GameStateSnapshot(Long userId, long seq, String state) {
+        this.userId = userId;
+        this.seq = seq;
+        this.state = state;
+        this.createdAt = Instant.now();
+    }
+
+    @Override
+    public Key getId() {
+        return new Key(userId, seq);
+    }
+
+    @Override
+    public boolean isNew() {
+        return fresh;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        fresh = false;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Long userId;
+        private long seq;
+    }
+}
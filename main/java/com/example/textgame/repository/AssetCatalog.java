@@ -0,0 +1,201 @@
+package com.example.textgame.repository;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * (新) 场景图片资源清单
+ * 1. 启动时扫描 backgrounds/ 和 sprites/，按内容的 SHA-256 生成带指纹的地址，例如
+ *    bg_white_room.jpg -> /assets/backgrounds/bg_white_room.3f2a9c1b7d0e4a55.jpg
+ * 2. 内容改变时地址随之改变，所以这些地址可以永久缓存 (Cache-Control: immutable)
+ * 3. 同目录下的 X.br / X.gz 作为 X 的预压缩版本；文本类资源没有 .gz 时启动时压缩一份
+ * 资源全部读入内存，创建后只读，可以在线程之间共享。
+ */
+@Repository
+public class AssetCatalog {
+
+    public static final String URL_PREFIX = "/assets/";
+    private static final List<String> KINDS = List.of("backgrounds", "sprites");
+    // 文件名中的指纹: name.<16位十六进制>.ext
+    private static final Pattern FINGERPRINTED = Pattern.compile("(.+)\\.([0-9a-f]{16})(\\.[^.]+)?");
+
+    private final Map<String, Asset> byUrlPath = new HashMap<>();   // "backgrounds/bg.3f2a...jpg" -> 资源
+    private final Map<String, String> urlByName = new HashMap<>();  // "backgrounds/bg.jpg" -> "/assets/backgrounds/bg.3f2a...jpg"
+
+    public AssetCatalog(@Value("${asset.location:classpath:static/}") String location) throws IOException {
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        String base = location.endsWith("/") ? location : location + "/";
+        long totalBytes = 0;
+        int precompressed = 0;
+        for (String kind : KINDS) {
+            Map<String, Resource> files = new HashMap<>();
+            for (Resource resource : resolver.getResources(base + kind + "/*")) {
+                if (resource.isReadable() && resource.getFilename() != null) {
+                    files.put(resource.getFilename(), resource);
+                }
+            }
+            for (Map.Entry<String, Resource> entry : files.entrySet()) {
+                String name = entry.getKey();
+                if (name.endsWith(".br") || name.endsWith(".gz")) {
+                    continue; // 预压缩版本跟随原文件一起登记
+                }
+                Asset asset = load(kind, name, entry.getValue(), files);
+                byUrlPath.put(asset.url.substring(URL_PREFIX.length()), asset);
+                urlByName.put(kind + "/" + name, asset.url);
+                totalBytes += asset.bytes.length;
+                precompressed += asset.encodings.size();
+            }
+        }
+        System.out.println("已登记场景资源 " + urlByName.size() + " 个 (" + totalBytes / 1024 + " KB, "
+                + precompressed + " 个预压缩版本) 来自 " + base);
+    }
+
+    private static Asset load(String kind, String name, Resource resource, Map<String, Resource> siblings) throws IOException {
+        byte[] bytes = read(resource);
+        String hash = hash(bytes);
+        MediaType type = MediaTypeFactory.getMediaType(name).orElse(MediaType.APPLICATION_OCTET_STREAM);
+        // 按优先级排列：br 优先于 gzip
+        Map<String, byte[]> encodings = new LinkedHashMap<>();
+        if (siblings.containsKey(name + ".br")) {
+            encodings.put("br", read(siblings.get(name + ".br")));
+        }
+        if (siblings.containsKey(name + ".gz")) {
+            encodings.put("gzip", read(siblings.get(name + ".gz")));
+        } else if (isCompressible(type)) {
+            byte[] gzip = gzip(bytes);
+            // 压缩收益不足 10% 时不值得多一种表示
+            if (gzip.length < bytes.length * 0.9) {
+                encodings.put("gzip", gzip);
+            }
+        }
+        int dot = name.lastIndexOf('.');
+        String fingerprinted = dot > 0
+                ? name.substring(0, dot) + "." + hash.substring(0, 16) + name.substring(dot)
+                : name + "." + hash.substring(0, 16);
+        return new Asset(URL_PREFIX + kind + "/" + fingerprinted, type, bytes, hash, encodings);
+    }
+
+    /**
+     * 节点中引用的文件名 -> 带指纹的地址；资源不存在时返回 null
+     */
+    public String urlOf(String kind, String name) {
+        return urlByName.get(kind + "/" + name);
+    }
+
+    /**
+     * 按请求地址查找资源
+     */
+    public Asset find(String kind, String file) {
+        return byUrlPath.get(kind + "/" + file);
+    }
+
+    /**
+     * 指纹已经过期（资源在部署之间改变了内容）时，同名资源的当前地址；没有同名资源时返回 null
+     */
+    public String currentUrlOf(String kind, String file) {
+        Matcher m = FINGERPRINTED.matcher(file);
+        if (!m.matches()) {
+            return null;
+        }
+        return urlOf(kind, m.group(1) + (m.group(3) != null ? m.group(3) : ""));
+    }
+
+    private static boolean isCompressible(MediaType type) {
+        return type.getType().equals("text")
+                || type.getSubtype().equals("json")
+                || type.getSubtype().equals("javascript")
+                || type.getSubtype().endsWith("+xml");
+    }
+
+    private static byte[] read(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 内存流不会出现 IO 错误
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // 每个 JRE 都必须提供 SHA-256
+        }
+    }
+
+    /**
+     * 一个资源的全部表示
+     * 1. bytes: 原始内容，etag 是由内容哈希派生的强 ETag
+     * 2. encodings: 内容编码 (br / gzip) -> 压缩后的内容，ETag 带 "-br" / "-gz" 后缀
+     */
+    public static final class Asset {
+
+        private final String url;
+        private final MediaType contentType;
+        private final byte[] bytes;
+        private final String hash;
+        private final String etag;
+        private final Map<String, byte[]> encodings;
+
+        private Asset(String url, MediaType contentType, byte[] bytes, String hash, Map<String, byte[]> encodings) {
+            this.url = url;
+            this.contentType = contentType;
+            this.bytes = bytes;
+            this.hash = hash;
+            this.etag = "\"" + hash + "\"";
+            this.encodings = Collections.unmodifiableMap(encodings);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public MediaType getContentType() {
+            return contentType;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public Map<String, byte[]> getEncodings() {
+            return encodings;
+        }
+
+        public String etagOf(String encoding) {
+            return "\"" + hash + (encoding.equals("gzip") ? "-gz" : "-" + encoding) + "\"";
+        }
+    }
+}
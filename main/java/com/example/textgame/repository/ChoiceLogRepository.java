@@ -0,0 +1,18 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.ChoiceLogEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ChoiceLogRepository extends JpaRepository<ChoiceLogEntry, ChoiceLogEntry.Key> {
+
+    // (新) 按主键范围读取一段历史（包含两端），不使用 OFFSET
+    List<ChoiceLogEntry> findByUserIdAndSeqBetweenOrderBySeq(Long userId, int fromSeq, int toSeq);
+
+    // (新) [fromSeq, toSeq] 中最后一个带 prev_seq 的行（历史链上一个连续段的起点）
+    Optional<ChoiceLogEntry> findFirstByUserIdAndSeqBetweenAndPrevSeqIsNotNullOrderBySeqDesc(Long userId, int fromSeq, int toSeq);
+}
@@ -0,0 +1,520 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.NodePayload;
+import com.example.textgame.model.ChoiceContext;
+import com.example.textgame.model.GameChoice;
+import com.example.textgame.model.GameNode;
+import com.example.textgame.model.PlayerAttributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * 编译后的故事图（只读）
+ * 1. 每个节点ID（包括别名）在加载时分配一个连续的 int 序号
+ * 2. 所有选项按节点顺序存放在扁平数组中，节点通过 [choiceStart[n], choiceStart[n + 1]) 引用自己的选项
+ * 3. 属性要求和属性变化预编译为 int 向量，按 PlayerAttributes 的属性下标排列（向量长度是构建时的属性数量）
+ * 4. 节点内容（GameNode）由 NodeSource 提供，可以是堆内对象，也可以是按需解码的内存映射故事包
+ * 5. 每个槽位可以附带一份预先序列化好的响应体（NodePayload），随故事图一起替换和淘汰
+ * 6. 选项的条件/效果表达式在构建时编译为 lambda（见 ChoiceExpressions），没有表达式的故事不占用额外空间
+ * 7. (新) 每个选项有一个稳定编码（节点ID和选项ID的哈希），故事版本改变、序号重新排布后仍能找到同一个选项
+ * 构建完成后不再修改，可以被多个线程无锁共享。
+ */
+public final class CompiledStoryGraph {
+
+    /** 查找失败时返回的序号 */
+    public static final int NOT_FOUND = -1;
+
+    /** 表示“没有编码”的选项编码（旧记录）；choiceCode 不会返回这个值 */
+    public static final int NO_CODE = 0;
+
+    /** 属性要求向量中表示“没有要求”的值 */
+    public static final int NO_REQUIREMENT = Integer.MIN_VALUE;
+
+    /**
+     * 节点内容来源
+     * 别名共享同一个节点，所以节点按“槽位”编号：多个节点序号可以映射到同一个槽位
+     */
+    public interface NodeSource {
+        GameNode node(int slot);
+
+        GameChoice choice(int choiceOrdinal);
+
+        /**
+         * (新) 槽位上节点自身的ID（不是别名）；故事包可以不解码整个节点直接读取
+         */
+        default String nodeId(int slot) {
+            return node(slot).getNodeId();
+        }
+    }
+
+    private final String storyId;
+    private final int version;
+
+    private final String[] nodeIds;
+    private final int[] nodeSlots;
+    private final int slotCount;
+    private final Map<String, Integer> ordinals;
+
+    private final int[] choiceStart;
+    private final String[] choiceIds;
+    private final int[] choiceCodes;
+    private final Map<Integer, Integer> codeOrdinals; // 编码 -> 选项序号；冲突的编码映射到 NOT_FOUND
+    private final int[] choiceTargets;
+    private final int attrs; // 每个选项的属性向量长度
+    private final int[] requirements;
+    private final int[] changes;
+    private final boolean[] hasRequirements;
+    private final boolean[] hasChanges;
+    private final ChoiceExpressions.Condition[] conditions; // 没有任何条件表达式时为 null
+    private final ChoiceExpressions.Effect[] effects;       // 没有任何效果表达式时为 null
+
+    private final NodeSource source;
+    private final AtomicReferenceArray<NodePayload> payloads;
+    private final AtomicReferenceArray<NodePayload> deltas; // 每个选项：来源场景 -> 目标场景的差异
+
+    private CompiledStoryGraph(String storyId, int version, String[] nodeIds, int[] nodeSlots, int slotCount,
+                               int[] choiceStart, String[] choiceIds, int[] choiceTargets,
+                               int[] requirements, int[] changes, String[] conditionSources, String[] effectSources,
+                               NodeSource source) {
+        this.storyId = storyId;
+        this.version = version;
+        this.nodeIds = nodeIds;
+        this.nodeSlots = nodeSlots;
+        this.slotCount = slotCount;
+        this.choiceStart = choiceStart;
+        this.choiceIds = choiceIds;
+        this.choiceTargets = choiceTargets;
+        this.attrs = PlayerAttributes.attributeCount();
+        if (requirements.length != choiceIds.length * attrs || changes.length != choiceIds.length * attrs) {
+            throw new IllegalStateException("属性向量的长度与属性数量 " + attrs + " 不一致");
+        }
+        this.requirements = requirements;
+        this.changes = changes;
+        this.source = source;
+        this.payloads = new AtomicReferenceArray<>(slotCount);
+        this.deltas = new AtomicReferenceArray<>(choiceIds.length);
+
+        this.ordinals = new HashMap<>(nodeIds.length * 2);
+        for (int n = 0; n < nodeIds.length; n++) {
+            ordinals.put(nodeIds[n], n);
+        }
+
+        // (新) 编码使用节点自身的ID：通过别名到达的同一个选项与通过节点ID到达时编码相同
+        int choiceCount = choiceIds.length;
+        this.choiceCodes = new int[choiceCount];
+        this.codeOrdinals = new HashMap<>(choiceCount * 2);
+        String[] canonicalIds = new String[slotCount];
+        Map<Integer, Integer> codeSlots = new HashMap<>(choiceCount * 2);
+        for (int n = 0; n < nodeIds.length; n++) {
+            int slot = nodeSlots[n];
+            if (canonicalIds[slot] == null) {
+                canonicalIds[slot] = source.nodeId(slot);
+            }
+            for (int c = choiceStart[n]; c < choiceStart[n + 1]; c++) {
+                choiceCodes[c] = choiceCode(canonicalIds[slot], choiceIds[c]);
+                Integer previous = codeSlots.putIfAbsent(choiceCodes[c], slot);
+                if (previous == null) {
+                    codeOrdinals.put(choiceCodes[c], c);
+                } else if (previous != slot) {
+                    codeOrdinals.put(choiceCodes[c], NOT_FOUND); // 两个选项哈希相同：都不能按编码查找
+                }
+            }
+        }
+        this.hasRequirements = new boolean[choiceCount];
+        this.hasChanges = new boolean[choiceCount];
+        for (int c = 0; c < choiceCount; c++) {
+            for (int attr = 0; attr < attrs; attr++) {
+                hasRequirements[c] |= requirements[c * attrs + attr] != NO_REQUIREMENT;
+                hasChanges[c] |= changes[c * attrs + attr] != 0;
+            }
+        }
+
+        ChoiceExpressions.Condition[] compiledConditions = null;
+        ChoiceExpressions.Effect[] compiledEffects = null;
+        for (int c = 0; c < choiceCount; c++) {
+            try {
+                if (conditionSources[c] != null && !conditionSources[c].isBlank()) {
+                    if (compiledConditions == null) {
+                        compiledConditions = new ChoiceExpressions.Condition[choiceCount];
+                    }
+                    compiledConditions[c] = ChoiceExpressions.compileCondition(conditionSources[c], this::idsSharingNode);
+                }
+                if (effectSources[c] != null && !effectSources[c].isBlank()) {
+                    if (compiledEffects == null) {
+                        compiledEffects = new ChoiceExpressions.Effect[choiceCount];
+                    }
+                    compiledEffects[c] = ChoiceExpressions.compileEffects(effectSources[c]);
+                }
+            } catch (IllegalStateException e) {
+                throw new IllegalStateException("选项 " + choiceIds[c] + " 的表达式有误: " + e.getMessage(), e);
+            }
+        }
+        this.conditions = compiledConditions;
+        this.effects = compiledEffects;
+    }
+
+    /**
+     * 与 nodeId 共享槽位的所有节点ID（节点本身及其别名）；节点不存在时返回 null
+     */
+    private String[] idsSharingNode(String nodeId) {
+        int ordinal = ordinalOf(nodeId);
+        if (ordinal == NOT_FOUND) {
+            return null;
+        }
+        List<String> ids = new ArrayList<>();
+        for (int n = 0; n < nodeIds.length; n++) {
+            if (nodeSlots[n] == nodeSlots[ordinal]) {
+                ids.add(nodeIds[n]);
+            }
+        }
+        return ids.toArray(new String[0]);
+    }
+
+    /**
+     * 由已经编译好的数组直接组装故事图（例如从故事包中读取）
+     * 数组的布局与 compile 生成的一致，调用方负责校验。
+     */
+    public static CompiledStoryGraph assemble(String storyId, int version, String[] nodeIds, int[] nodeSlots, int slotCount,
+                                              int[] choiceStart, String[] choiceIds, int[] choiceTargets,
+                                              int[] requirements, int[] changes, String[] conditionSources,
+                                              String[] effectSources, NodeSource source) {
+        return new CompiledStoryGraph(storyId, version, nodeIds, nodeSlots, slotCount,
+                choiceStart, choiceIds, choiceTargets, requirements, changes, conditionSources, effectSources, source);
+    }
+
+    /**
+     * 将“节点ID -> 节点”的映射编译为故事图。
+     * 多个ID指向同一个 GameNode 实例（别名）时，它们共享同一个槽位和同一组选项。
+     */
+    public static CompiledStoryGraph compile(String storyId, int version, Map<String, GameNode> nodesById) {
+        int nodeCount = nodesById.size();
+        String[] nodeIds = new String[nodeCount];
+        int[] nodeSlots = new int[nodeCount];
+        Map<String, Integer> ordinals = new HashMap<>(nodeCount * 2);
+
+        // 同一个 GameNode 实例只占一个槽位
+        Map<GameNode, Integer> slotsByNode = new IdentityHashMap<>();
+        List<GameNode> slots = new ArrayList<>();
+
+        int ordinal = 0;
+        for (Map.Entry<String, GameNode> entry : nodesById.entrySet()) {
+            GameNode node = entry.getValue();
+            Integer slot = slotsByNode.get(node);
+            if (slot == null) {
+                slot = slots.size();
+                slots.add(node);
+                slotsByNode.put(node, slot);
+            }
+            nodeIds[ordinal] = entry.getKey();
+            nodeSlots[ordinal] = slot;
+            ordinals.put(entry.getKey(), ordinal);
+            ordinal++;
+        }
+
+        // 别名共享选项，这里按节点序号重新排布，保证 choiceStart 单调
+        int[] choiceStart = new int[nodeCount + 1];
+        int total = 0;
+        for (int n = 0; n < nodeCount; n++) {
+            choiceStart[n] = total;
+            total += choicesOf(slots.get(nodeSlots[n])).size();
+        }
+        choiceStart[nodeCount] = total;
+
+        GameChoice[] choices = new GameChoice[total];
+        String[] choiceIds = new String[total];
+        int[] choiceTargets = new int[total];
+        int attrs = PlayerAttributes.attributeCount();
+        int[] requirements = new int[total * attrs];
+        int[] changes = new int[total * attrs];
+        String[] conditionSources = new String[total];
+        String[] effectSources = new String[total];
+        Arrays.fill(requirements, NO_REQUIREMENT);
+
+        for (int n = 0; n < nodeCount; n++) {
+            int c = choiceStart[n];
+            for (GameChoice choice : choicesOf(slots.get(nodeSlots[n]))) {
+                choices[c] = choice;
+                choiceIds[c] = choice.getChoiceId();
+                Integer target = ordinals.get(choice.getNextNodeId());
+                choiceTargets[c] = target != null ? target : NOT_FOUND;
+                compileVector(choice.getRequiredAttributes(), requirements, c * attrs, choice);
+                compileVector(choice.getAttributeChanges(), changes, c * attrs, choice);
+                conditionSources[c] = choice.getCondition();
+                effectSources[c] = choice.getEffects();
+                c++;
+            }
+        }
+
+        NodeSource heap = new HeapNodes(slots.toArray(new GameNode[0]), choices);
+        return new CompiledStoryGraph(storyId, version, nodeIds, nodeSlots, slots.size(),
+                choiceStart, choiceIds, choiceTargets, requirements, changes, conditionSources, effectSources, heap);
+    }
+
+    private static List<GameChoice> choicesOf(GameNode node) {
+        return node.getChoices() != null ? node.getChoices() : List.of();
+    }
+
+    private static void compileVector(Map<String, Integer> source, int[] target, int offset, GameChoice choice) {
+        if (source == null || source.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : source.entrySet()) {
+            int attr = PlayerAttributes.indexOf(entry.getKey());
+            if (attr < 0) {
+                throw new IllegalStateException("选项 " + choice.getChoiceId() + " 引用了未知属性: " + entry.getKey());
+            }
+            target[offset + attr] = entry.getValue();
+        }
+    }
+
+    /**
+     * 堆内节点来源：直接持有脚本解析出来的 GameNode
+     */
+    private static final class HeapNodes implements NodeSource {
+        private final GameNode[] slots;
+        private final GameChoice[] choices;
+
+        private HeapNodes(GameNode[] slots, GameChoice[] choices) {
+            this.slots = slots;
+            this.choices = choices;
+        }
+
+        @Override
+        public GameNode node(int slot) {
+            return slots[slot];
+        }
+
+        @Override
+        public GameChoice choice(int choiceOrdinal) {
+            return choices[choiceOrdinal];
+        }
+    }
+
+    public String getStoryId() {
+        return storyId;
+    }
+
+    /**
+     * 节点内容是否是堆内对象；为 false 时节点按需从故事包解码
+     */
+    public boolean isOnHeap() {
+        return source instanceof HeapNodes;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * 属性要求/变化向量的长度：构建故事图时 PlayerAttributes 定义的属性数量
+     */
+    public int attributeCount() {
+        return attrs;
+    }
+
+    // --- 节点 ---
+
+    public int nodeCount() {
+        return nodeIds.length;
+    }
+
+    /**
+     * 按节点ID查找序号（会计算一次字符串哈希，只在入口处使用）
+     */
+    public int ordinalOf(String nodeId) {
+        if (nodeId == null) {
+            return NOT_FOUND;
+        }
+        Integer ordinal = ordinals.get(nodeId);
+        return ordinal != null ? ordinal : NOT_FOUND;
+    }
+
+    /**
+     * 优先使用调用方缓存的序号：如果该序号上的ID与 nodeId 相同则直接返回，否则退回哈希查找
+     */
+    public int resolve(String nodeId, int cachedOrdinal) {
+        if (cachedOrdinal >= 0 && cachedOrdinal < nodeIds.length && nodeIds[cachedOrdinal].equals(nodeId)) {
+            return cachedOrdinal;
+        }
+        return ordinalOf(nodeId);
+    }
+
+    public String nodeIdAt(int nodeOrdinal) {
+        return nodeIds[nodeOrdinal];
+    }
+
+    public GameNode nodeAt(int nodeOrdinal) {
+        return source.node(nodeSlots[nodeOrdinal]);
+    }
+
+    /**
+     * 节点序号对应的槽位；别名与它指向的节点共享槽位
+     */
+    public int slotOf(int nodeOrdinal) {
+        return nodeSlots[nodeOrdinal];
+    }
+
+    public int slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * 节点的预序列化响应体；槽位第一次被请求时用 encoder 生成并缓存
+     * 加载故事时会对所有槽位预先调用一次，所以请求路径上通常不会再序列化。
+     * 并发首次访问时可能重复编码，但结果相同，只有一份会被保留。
+     */
+    public NodePayload payloadAt(int nodeOrdinal, Function<GameNode, NodePayload> encoder) {
+        int slot = nodeSlots[nodeOrdinal];
+        NodePayload payload = payloads.get(slot);
+        if (payload == null) {
+            payload = encoder.apply(source.node(slot));
+            if (!payloads.compareAndSet(slot, null, payload)) {
+                payload = payloads.get(slot);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * 选项所在场景到目标场景的差异响应体；与 payloadAt 一样第一次请求时生成并缓存
+     */
+    public NodePayload deltaAt(int choiceOrdinal, IntFunction<NodePayload> encoder) {
+        NodePayload delta = deltas.get(choiceOrdinal);
+        if (delta == null) {
+            delta = encoder.apply(choiceOrdinal);
+            if (!deltas.compareAndSet(choiceOrdinal, null, delta)) {
+                delta = deltas.get(choiceOrdinal);
+            }
+        }
+        return delta;
+    }
+
+    // --- 选项 ---
+
+    public int choiceCount() {
+        return choiceIds.length;
+    }
+
+    public int firstChoice(int nodeOrdinal) {
+        return choiceStart[nodeOrdinal];
+    }
+
+    public int endChoice(int nodeOrdinal) {
+        return choiceStart[nodeOrdinal + 1];
+    }
+
+    /**
+     * 在节点自己的选项段内查找选项序号（线性扫描，不分配对象）
+     */
+    public int findChoice(int nodeOrdinal, String choiceId) {
+        for (int c = choiceStart[nodeOrdinal], end = choiceStart[nodeOrdinal + 1]; c < end; c++) {
+            if (choiceIds[c].equals(choiceId)) {
+                return c;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    public String choiceIdAt(int choiceOrdinal) {
+        return choiceIds[choiceOrdinal];
+    }
+
+    /**
+     * (新) 选项的稳定编码：只取决于节点ID和选项ID，与故事版本和选项在数组中的位置无关
+     * 选择历史保存这个 4 字节的编码，而不是选项文字；nodeId 应当是节点自身的ID（见 choiceCodeAt），不是别名
+     */
+    public static int choiceCode(String nodeId, String choiceId) {
+        // FNV-1a，节点ID和选项ID之间用 0 分隔
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < nodeId.length(); i++) {
+            hash = (hash ^ nodeId.charAt(i)) * 0x01000193;
+        }
+        hash *= 0x01000193;
+        for (int i = 0; i < choiceId.length(); i++) {
+            hash = (hash ^ choiceId.charAt(i)) * 0x01000193;
+        }
+        return hash == NO_CODE ? 1 : hash;
+    }
+
+    /**
+     * 选项的稳定编码（按选项所在节点自身的ID计算，别名上的选项与节点上的同一个选项编码相同）
+     */
+    public int choiceCodeAt(int choiceOrdinal) {
+        return choiceCodes[choiceOrdinal];
+    }
+
+    /**
+     * (新) 按稳定编码查找选项序号；选项已被删除、改名或编码有冲突时返回 NOT_FOUND
+     */
+    public int findChoiceByCode(int code) {
+        Integer ordinal = codeOrdinals.get(code);
+        return ordinal != null ? ordinal : NOT_FOUND;
+    }
+
+    public GameChoice choiceAt(int choiceOrdinal) {
+        return source.choice(choiceOrdinal);
+    }
+
+    /**
+     * 选项的目标节点序号；目标节点不存在时为 NOT_FOUND
+     */
+    public int targetOf(int choiceOrdinal) {
+        return choiceTargets[choiceOrdinal];
+    }
+
+    public boolean hasRequirements(int choiceOrdinal) {
+        return hasRequirements[choiceOrdinal];
+    }
+
+    public boolean hasChanges(int choiceOrdinal) {
+        return hasChanges[choiceOrdinal];
+    }
+
+    public boolean hasCondition(int choiceOrdinal) {
+        return conditions != null && conditions[choiceOrdinal] != null;
+    }
+
+    /**
+     * 选项的条件表达式是否成立；没有条件表达式时为 true（属性要求向量需另外检查）
+     */
+    public boolean conditionHolds(int choiceOrdinal, ChoiceContext context) {
+        ChoiceExpressions.Condition condition = conditions != null ? conditions[choiceOrdinal] : null;
+        return condition == null || condition.test(context);
+    }
+
+    public boolean hasEffects(int choiceOrdinal) {
+        return effects != null && effects[choiceOrdinal] != null;
+    }
+
+    /**
+     * 执行选项的效果表达式（在属性变化向量之后）
+     */
+    public void applyEffects(int choiceOrdinal, ChoiceContext context) {
+        ChoiceExpressions.Effect effect = effects != null ? effects[choiceOrdinal] : null;
+        if (effect != null) {
+            effect.apply(context);
+        }
+    }
+
+    /**
+     * 选项对某个属性的最低要求；没有要求时为 NO_REQUIREMENT
+     */
+    public int requirement(int choiceOrdinal, int attr) {
+        return requirements[choiceOrdinal * attrs + attr];
+    }
+
+    /**
+     * 选项对某个属性的增减值；没有变化时为 0
+     */
+    public int change(int choiceOrdinal, int attr) {
+        return changes[choiceOrdinal * attrs + attr];
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.GameEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface GameEventRepository extends JpaRepository<GameEvent, GameEvent.Key> {
+
+    // (新) 快照之后的事件，按主键范围读取
+    List<GameEvent> findByUserIdAndSeqGreaterThanEqualOrderBySeq(Long userId, long fromSeq);
+}
@@ -0,0 +1,16 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.GameSaveSlot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface GameSaveSlotRepository extends JpaRepository<GameSaveSlot, GameSaveSlot.Key> {
+
+    // (新) 玩家的所有存档，最近保存的在前
+    List<GameSaveSlot> findByUserIdOrderBySavedAtDesc(Long userId);
+
+    long countByUserId(Long userId);
+}
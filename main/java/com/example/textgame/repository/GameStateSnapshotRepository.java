@@ -0,0 +1,17 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.GameStateSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface GameStateSnapshotRepository extends JpaRepository<GameStateSnapshot, GameStateSnapshot.Key> {
+
+    // (新) 最新的快照：读取状态时从这里开始重放
+    Optional<GameStateSnapshot> findTopByUserIdOrderBySeqDesc(Long userId);
+
+    // (新) 最早的快照：按当前规则重放全部事件时从这里开始
+    Optional<GameStateSnapshot> findTopByUserIdOrderBySeqAsc(Long userId);
+}
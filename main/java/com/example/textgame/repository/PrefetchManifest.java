@@ -0,0 +1,207 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.CharacterSprite;
+import com.example.textgame.model.GameNode;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * (新) 预取清单：每个节点在接下来 N 步之内可能用到的场景图片（带指纹的地址）
+ * 1. 按槽位计算（别名共享同一个槽位），地址按距离由近到远排列，同一距离内按选项顺序；节点自身的图片不在清单中
+ * 2. 故事重新加载时与上一个版本比较，只重新计算 N 步之内能到达"变化槽位"的槽位，其余沿用上一个版本的结果
+ *    变化槽位：上一个版本中没有、自身图片改变或出边（目标节点ID）改变的槽位
+ * 创建后不再修改，可以在线程之间共享。
+ */
+final class PrefetchManifest {
+
+    static final String[] NONE = new String[0];
+    // 清单过长时只保留最近的部分，避免一次预取过多图片
+    private static final int MAX_ASSETS = 20;
+
+    private final WeakReference<CompiledStoryGraph> graph; // 只用于核对版本，不阻止已淘汰的故事图被回收
+    private final int hops;
+    private final Map<String, Integer> slotById;  // 节点自身的ID -> 槽位
+    private final String[][] ownAssets;
+    private final String[][] successorIds;
+    private final String[][] manifests;
+    private final int recomputed;
+
+    private PrefetchManifest(CompiledStoryGraph graph, int hops, Map<String, Integer> slotById,
+                             String[][] ownAssets, String[][] successorIds, String[][] manifests, int recomputed) {
+        this.graph = new WeakReference<>(graph);
+        this.hops = hops;
+        this.slotById = slotById;
+        this.ownAssets = ownAssets;
+        this.successorIds = successorIds;
+        this.manifests = manifests;
+        this.recomputed = recomputed;
+    }
+
+    /**
+     * @param previous 同一故事上一个版本的清单，没有时为 null（全部重新计算）
+     */
+    static PrefetchManifest build(CompiledStoryGraph graph, AssetCatalog assets, int hops, PrefetchManifest previous) {
+        int slotCount = graph.slotCount();
+        int[] representative = new int[slotCount];
+        Arrays.fill(representative, CompiledStoryGraph.NOT_FOUND);
+        for (int n = 0; n < graph.nodeCount(); n++) {
+            if (representative[graph.slotOf(n)] == CompiledStoryGraph.NOT_FOUND) {
+                representative[graph.slotOf(n)] = n;
+            }
+        }
+
+        Map<String, Integer> slotById = new HashMap<>();
+        String[][] ownAssets = new String[slotCount][];
+        int[][] successors = new int[slotCount][];
+        String[][] successorIds = new String[slotCount][];
+        List<List<Integer>> predecessors = new ArrayList<>(slotCount);
+        for (int s = 0; s < slotCount; s++) {
+            predecessors.add(new ArrayList<>());
+        }
+        for (int s = 0; s < slotCount; s++) {
+            int ordinal = representative[s];
+            GameNode node = graph.nodeAt(ordinal);
+            slotById.put(node.getNodeId(), s);
+            ownAssets[s] = assetsOf(node, assets);
+            Set<Integer> targets = new LinkedHashSet<>();
+            for (int c = graph.firstChoice(ordinal), end = graph.endChoice(ordinal); c < end; c++) {
+                int target = graph.targetOf(c);
+                if (target != CompiledStoryGraph.NOT_FOUND) {
+                    targets.add(graph.slotOf(target));
+                }
+            }
+            successors[s] = targets.stream().mapToInt(Integer::intValue).toArray();
+        }
+        for (int s = 0; s < slotCount; s++) {
+            successorIds[s] = new String[successors[s].length];
+            for (int i = 0; i < successors[s].length; i++) {
+                int t = successors[s][i];
+                successorIds[s][i] = graph.nodeAt(representative[t]).getNodeId();
+                predecessors.get(t).add(s);
+            }
+        }
+
+        // 1. 找出变化的槽位，再沿反向边扩展 N 步，得到清单可能改变的槽位
+        boolean reuse = previous != null && previous.hops == hops;
+        boolean[] affected = new boolean[slotCount];
+        int[] queue = new int[slotCount];
+        int head = 0;
+        int tail = 0;
+        int[] depth = new int[slotCount];
+        for (int s = 0; s < slotCount; s++) {
+            if (!reuse || !previous.sameSlot(graph.nodeAt(representative[s]).getNodeId(), ownAssets[s], successorIds[s])) {
+                affected[s] = true;
+                queue[tail++] = s;
+            }
+        }
+        while (head < tail) {
+            int s = queue[head++];
+            if (depth[s] == hops) {
+                continue;
+            }
+            for (int p : predecessors.get(s)) {
+                if (!affected[p]) {
+                    affected[p] = true;
+                    depth[p] = depth[s] + 1;
+                    queue[tail++] = p;
+                }
+            }
+        }
+
+        // 2. 受影响的槽位做 N 步广度优先搜索，其余从上一个版本复制
+        String[][] manifests = new String[slotCount][];
+        int[] seenStamp = new int[slotCount];
+        int recomputed = 0;
+        for (int s = 0; s < slotCount; s++) {
+            if (!affected[s]) {
+                manifests[s] = previous.manifestOf(graph.nodeAt(representative[s]).getNodeId());
+                continue;
+            }
+            recomputed++;
+            Set<String> urls = new LinkedHashSet<>();
+            Set<String> own = Set.of(ownAssets[s]);
+            int stamp = s + 1;
+            seenStamp[s] = stamp;
+            head = 0;
+            tail = 0;
+            queue[tail++] = s;
+            depth[s] = 0;
+            while (head < tail && urls.size() < MAX_ASSETS) {
+                int u = queue[head++];
+                if (u != s) {
+                    for (String url : ownAssets[u]) {
+                        if (!own.contains(url) && urls.size() < MAX_ASSETS) {
+                            urls.add(url);
+                        }
+                    }
+                }
+                if (depth[u] == hops) {
+                    continue;
+                }
+                for (int t : successors[u]) {
+                    if (seenStamp[t] != stamp) {
+                        seenStamp[t] = stamp;
+                        depth[t] = depth[u] + 1;
+                        queue[tail++] = t;
+                    }
+                }
+            }
+            manifests[s] = urls.isEmpty() ? NONE : urls.toArray(NONE);
+        }
+        return new PrefetchManifest(graph, hops, slotById, ownAssets, successorIds, manifests, recomputed);
+    }
+
+    private static String[] assetsOf(GameNode node, AssetCatalog assets) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (node.getBackground() != null) {
+            String url = assets.urlOf("backgrounds", node.getBackground());
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        if (node.getSprites() != null) {
+            for (CharacterSprite sprite : node.getSprites()) {
+                String url = sprite.getImage() != null ? assets.urlOf("sprites", sprite.getImage()) : null;
+                if (url != null) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls.toArray(NONE);
+    }
+
+    private boolean sameSlot(String nodeId, String[] own, String[] successors) {
+        Integer slot = slotById.get(nodeId);
+        return slot != null && Arrays.equals(ownAssets[slot], own) && Arrays.equals(successorIds[slot], successors);
+    }
+
+    private String[] manifestOf(String nodeId) {
+        return manifests[slotById.get(nodeId)];
+    }
+
+    /**
+     * 清单属于哪一个故事图版本
+     */
+    boolean isFor(CompiledStoryGraph graph) {
+        return this.graph.get() == graph;
+    }
+
+    String[] urlsOfSlot(int slot) {
+        return manifests[slot];
+    }
+
+    int recomputedSlots() {
+        return recomputed;
+    }
+
+    int slotCount() {
+        return manifests.length;
+    }
+}
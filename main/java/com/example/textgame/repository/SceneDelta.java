@@ -0,0 +1,120 @@
+package com.example.textgame.repository;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * (新) 两个相邻场景之间的差异，客户端把它应用到正在显示的场景上得到下一个场景
+ * 结构: {"delta": true, "base": 上一个场景的哈希, "hash": 下一个场景的哈希, ...改变的字段}
+ * 1. 其余字段按 JSON Merge Patch (RFC 7386) 的规则：没有出现的字段沿用上一个场景，值为 null 的字段删除
+ * 2. 立绘按图片地址对应，用 spriteChanges: {"remove": [地址], "move": [立绘], "add": [立绘]} 表示（空列表省略）；
+ *    按这个顺序应用后与下一个场景的立绘列表（包括顺序）不一致时（例如同一张图片出现两次），改为直接给出完整的 sprites
+ */
+final class SceneDelta {
+
+    private SceneDelta() {
+    }
+
+    static ObjectNode diff(ObjectMapper mapper, JsonNode from, String fromHash, JsonNode to, String toHash) {
+        ObjectNode delta = mapper.createObjectNode();
+        delta.put("delta", true);
+        delta.put("base", fromHash);
+        delta.put("hash", toHash);
+        for (Iterator<Map.Entry<String, JsonNode>> it = to.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = it.next();
+            String name = field.getKey();
+            if (field.getValue().equals(from.get(name)) || name.equals("sprites")) {
+                continue;
+            }
+            delta.set(name, field.getValue());
+        }
+        for (Iterator<String> it = from.fieldNames(); it.hasNext(); ) {
+            String name = it.next();
+            if (!to.has(name)) {
+                delta.putNull(name);
+            }
+        }
+
+        JsonNode before = from.path("sprites");
+        JsonNode after = to.path("sprites");
+        if (!before.equals(after)) {
+            ObjectNode changes = spriteChanges(mapper, before, after);
+            if (changes != null) {
+                delta.set("spriteChanges", changes);
+            } else {
+                delta.set("sprites", after.isMissingNode() ? mapper.nullNode() : after);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * 无法用增删改表示时返回 null
+     */
+    private static ObjectNode spriteChanges(ObjectMapper mapper, JsonNode before, JsonNode after) {
+        if (!before.isArray() || !after.isArray()) {
+            return null;
+        }
+        Map<String, JsonNode> beforeByImage = byImage(before);
+        Map<String, JsonNode> afterByImage = byImage(after);
+        if (beforeByImage == null || afterByImage == null) {
+            return null;
+        }
+        ArrayNode remove = mapper.createArrayNode();
+        ArrayNode move = mapper.createArrayNode();
+        ArrayNode add = mapper.createArrayNode();
+        ArrayNode applied = mapper.createArrayNode();
+        for (JsonNode sprite : before) {
+            JsonNode next = afterByImage.get(sprite.path("image").asText());
+            if (next == null) {
+                remove.add(sprite.path("image").asText());
+            } else {
+                if (!next.equals(sprite)) {
+                    move.add(next);
+                }
+                applied.add(next);
+            }
+        }
+        for (JsonNode sprite : after) {
+            if (!beforeByImage.containsKey(sprite.path("image").asText())) {
+                add.add(sprite);
+                applied.add(sprite);
+            }
+        }
+        if (!applied.equals(after)) {
+            return null; // 顺序改变了
+        }
+        ObjectNode changes = mapper.createObjectNode();
+        if (!remove.isEmpty()) {
+            changes.set("remove", remove);
+        }
+        if (!move.isEmpty()) {
+            changes.set("move", move);
+        }
+        if (!add.isEmpty()) {
+            changes.set("add", add);
+        }
+        return changes;
+    }
+
+    private static Map<String, JsonNode> byImage(JsonNode sprites) {
+        Map<String, JsonNode> result = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (JsonNode sprite : sprites) {
+            String image = sprite.path("image").asText(null);
+            if (image == null || !seen.add(image)) {
+                return null;
+            }
+            result.put(image, sprite);
+        }
+        return result;
+    }
+}
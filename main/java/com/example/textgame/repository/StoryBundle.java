@@ -0,0 +1,422 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.model.CharacterSprite;
+import com.example.textgame.model.DialogueLine;
+import com.example.textgame.model.GameChoice;
+import com.example.textgame.model.GameNode;
+import com.example.textgame.model.PlayerAttributes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 预编译的二进制故事包 (*.bundle)
+ *
+ * 启动时只做“映射 + 校验”：文件通过 MappedByteBuffer 映射到内存，
+ * 节点ID、选项ID和属性向量这些热路径数据读入堆内数组，
+ * 背景、立绘、对话和选项文本仍留在映射区中，以 UTF-8 存放，访问节点时才解码为 GameNode。
+ *
+ * 文件布局（大端序 int）：
+ * 1. 头部：magic, format, version, storyId, 各表记录数, 字符串区偏移/长度, 正文 CRC32, 属性数量, 属性名（逗号分隔）
+ * 2. 节点序号表：nodeId, slot
+ * 3. 选项起始表：ordinalCount + 1 个 int
+ * 4. 槽位表：nodeId, background, 立绘起点/数量, 对话起点/数量, 首个节点序号
+ * 5. 立绘表：image, position
+ * 6. 对话表：character, text
+ * 7. 选项表：choiceId, text, nextNodeId, 目标序号, 条件表达式, 效果表达式, 属性要求向量, 属性变化向量
+ *    （向量按属性下标排列；属性定义与生成时不同的故事包不能加载，需要重新生成）
+ * 8. 字符串区：每个字符串为 [int 字节数][UTF-8 字节]，其它表用字符串区内的偏移引用它，-1 表示 null
+ *
+ * 用法：java ... com.example.textgame.repository.StoryBundle stories/mind-trial.json stories/mind-trial.bundle
+ */
+public final class StoryBundle implements CompiledStoryGraph.NodeSource {
+
+    public static final String FILE_SUFFIX = ".bundle";
+
+    private static final int MAGIC = 0x53544231; // "STB1"
+    private static final int FORMAT = 3; // 2: 选项增加条件/效果表达式；3: 头部记录属性定义
+    private static final int NULL_REF = -1;
+
+    private static final int HEADER_INTS = 14;
+    private static final int ORDINAL_INTS = 2;
+    private static final int SLOT_INTS = 7;
+    private static final int SPRITE_INTS = 2;
+    private static final int LINE_INTS = 2;
+    private static final int CHOICE_VECTORS = 24; // 选项记录中属性向量的字节偏移
+
+    private final ByteBuffer buffer;
+    private final int attrs;
+    private final int choiceInts;
+    private final int[] choiceStart;
+    private final int slotsOffset;
+    private final int spritesOffset;
+    private final int linesOffset;
+    private final int choicesOffset;
+    private final int stringsOffset;
+
+    private StoryBundle(ByteBuffer buffer, int attrs, int[] choiceStart, int slotsOffset, int spritesOffset,
+                        int linesOffset, int choicesOffset, int stringsOffset) {
+        this.buffer = buffer;
+        this.attrs = attrs;
+        this.choiceInts = choiceInts(attrs);
+        this.choiceStart = choiceStart;
+        this.slotsOffset = slotsOffset;
+        this.spritesOffset = spritesOffset;
+        this.linesOffset = linesOffset;
+        this.choicesOffset = choicesOffset;
+        this.stringsOffset = stringsOffset;
+    }
+
+    // --- 读取 ---
+
+    /**
+     * 映射故事包并校验，返回以它为节点来源的故事图
+     * 发布新版本时请先写临时文件再原子重命名（write 就是这样做的），不要原地覆盖正在映射的文件。
+     */
+    public static CompiledStoryGraph open(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalStateException("故事包过大: " + file);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return read(mapped);
+    }
+
+    static CompiledStoryGraph read(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        require(limit >= HEADER_INTS * 4, "文件头不完整");
+        require(buffer.getInt(0) == MAGIC, "不是故事包文件");
+        require(buffer.getInt(4) == FORMAT, "不支持的故事包格式: " + buffer.getInt(4) + "，请重新生成");
+
+        int version = buffer.getInt(8);
+        int storyIdRef = buffer.getInt(12);
+        int ordinalCount = buffer.getInt(16);
+        int slotCount = buffer.getInt(20);
+        int spriteCount = buffer.getInt(24);
+        int lineCount = buffer.getInt(28);
+        int choiceCount = buffer.getInt(32);
+        int stringsOffset = buffer.getInt(36);
+        int stringsLength = buffer.getInt(40);
+        int crc = buffer.getInt(44);
+        int attrs = buffer.getInt(48);
+        int attributesRef = buffer.getInt(52);
+        require(attrs == PlayerAttributes.attributeCount(), "属性数量 " + attrs + " 与当前定义的 "
+                + PlayerAttributes.attributeCount() + " 项不一致，请重新生成");
+
+        int ordinalsOffset = HEADER_INTS * 4;
+        int choiceStartOffset = ordinalsOffset + ordinalCount * ORDINAL_INTS * 4;
+        int slotsOffset = choiceStartOffset + (ordinalCount + 1) * 4;
+        int spritesOffset = slotsOffset + slotCount * SLOT_INTS * 4;
+        int linesOffset = spritesOffset + spriteCount * SPRITE_INTS * 4;
+        int choicesOffset = linesOffset + lineCount * LINE_INTS * 4;
+        require(ordinalCount > 0 && slotCount > 0 && spriteCount >= 0 && lineCount >= 0 && choiceCount >= 0,
+                "记录数无效");
+        require(stringsOffset == choicesOffset + choiceCount * choiceInts(attrs) * 4, "字符串区偏移无效");
+        require(stringsLength >= 0 && (long) stringsOffset + stringsLength == limit, "文件长度与头部不一致");
+
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate().position(ordinalsOffset).limit(limit));
+        require((int) checksum.getValue() == crc, "故事包校验和不匹配");
+
+        StoryBundle bundle = new StoryBundle(buffer, attrs, new int[ordinalCount + 1], slotsOffset, spritesOffset,
+                linesOffset, choicesOffset, stringsOffset);
+
+        // 校验所有字符串引用都落在字符串区内
+        for (int ref = 0; ref < stringsLength; ) {
+            int length = buffer.getInt(stringsOffset + ref);
+            require(length >= 0 && ref + 4L + length <= stringsLength, "字符串区损坏");
+            ref += 4 + length;
+        }
+
+        require(attributeNames().equals(bundle.string(attributesRef)),
+                "属性定义 " + bundle.string(attributesRef) + " 与当前的 " + attributeNames() + " 不一致，请重新生成");
+
+        String[] nodeIds = new String[ordinalCount];
+        int[] nodeSlots = new int[ordinalCount];
+        for (int n = 0; n < ordinalCount; n++) {
+            int at = ordinalsOffset + n * ORDINAL_INTS * 4;
+            nodeIds[n] = bundle.string(buffer.getInt(at));
+            nodeSlots[n] = buffer.getInt(at + 4);
+            require(nodeIds[n] != null && nodeSlots[n] >= 0 && nodeSlots[n] < slotCount, "节点序号表损坏");
+        }
+
+        int[] choiceStart = bundle.choiceStart;
+        for (int n = 0; n <= ordinalCount; n++) {
+            choiceStart[n] = buffer.getInt(choiceStartOffset + n * 4);
+            require(choiceStart[n] >= (n == 0 ? 0 : choiceStart[n - 1]) && choiceStart[n] <= choiceCount, "选项起始表损坏");
+        }
+        require(choiceStart[0] == 0 && choiceStart[ordinalCount] == choiceCount, "选项起始表损坏");
+
+        for (int s = 0; s < slotCount; s++) {
+            int at = slotsOffset + s * SLOT_INTS * 4;
+            int spriteStart = buffer.getInt(at + 8);
+            int sprites = buffer.getInt(at + 12);
+            int lineStart = buffer.getInt(at + 16);
+            int lines = buffer.getInt(at + 20);
+            int firstOrdinal = buffer.getInt(at + 24);
+            require(spriteStart >= 0 && sprites >= 0 && spriteStart + sprites <= spriteCount
+                    && lineStart >= 0 && lines >= 0 && lineStart + lines <= lineCount
+                    && firstOrdinal >= 0 && firstOrdinal < ordinalCount && nodeSlots[firstOrdinal] == s, "槽位表损坏");
+        }
+
+        String[] choiceIds = new String[choiceCount];
+        int[] choiceTargets = new int[choiceCount];
+        int[] requirements = new int[choiceCount * attrs];
+        int[] changes = new int[choiceCount * attrs];
+        String[] conditions = new String[choiceCount];
+        String[] effects = new String[choiceCount];
+        for (int c = 0; c < choiceCount; c++) {
+            int at = choicesOffset + c * bundle.choiceInts * 4;
+            choiceIds[c] = bundle.string(buffer.getInt(at));
+            choiceTargets[c] = buffer.getInt(at + 12);
+            require(choiceIds[c] != null && choiceTargets[c] >= 0 && choiceTargets[c] < ordinalCount, "选项表损坏");
+            conditions[c] = bundle.string(buffer.getInt(at + 16));
+            effects[c] = bundle.string(buffer.getInt(at + 20));
+            for (int attr = 0; attr < attrs; attr++) {
+                requirements[c * attrs + attr] = buffer.getInt(at + CHOICE_VECTORS + attr * 4);
+                changes[c * attrs + attr] = buffer.getInt(at + CHOICE_VECTORS + (attrs + attr) * 4);
+            }
+        }
+
+        return CompiledStoryGraph.assemble(bundle.string(storyIdRef), version, nodeIds, nodeSlots, slotCount,
+                choiceStart, choiceIds, choiceTargets, requirements, changes, conditions, effects, bundle);
+    }
+
+    private static int choiceInts(int attrs) {
+        return 6 + 2 * attrs;
+    }
+
+    /**
+     * 当前定义的属性名（按下标，逗号分隔）
+     */
+    private static String attributeNames() {
+        StringBuilder names = new StringBuilder();
+        for (int attr = 0; attr < PlayerAttributes.attributeCount(); attr++) {
+            names.append(attr == 0 ? "" : ",").append(PlayerAttributes.keyOf(attr));
+        }
+        return names.toString();
+    }
+
+    private static void require(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("无效的故事包: " + message);
+        }
+    }
+
+    private String string(int ref) {
+        if (ref == NULL_REF) {
+            return null;
+        }
+        int at = stringsOffset + ref;
+        byte[] bytes = new byte[buffer.getInt(at)];
+        buffer.get(at + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public GameNode node(int slot) {
+        int at = slotsOffset + slot * SLOT_INTS * 4;
+        int spriteStart = buffer.getInt(at + 8);
+        int spriteCount = buffer.getInt(at + 12);
+        int lineStart = buffer.getInt(at + 16);
+        int lineCount = buffer.getInt(at + 20);
+        int firstOrdinal = buffer.getInt(at + 24);
+
+        List<CharacterSprite> sprites = new ArrayList<>(spriteCount);
+        for (int i = spriteStart; i < spriteStart + spriteCount; i++) {
+            int rec = spritesOffset + i * SPRITE_INTS * 4;
+            sprites.add(new CharacterSprite(string(buffer.getInt(rec)), string(buffer.getInt(rec + 4))));
+        }
+        List<DialogueLine> dialogue = new ArrayList<>(lineCount);
+        for (int i = lineStart; i < lineStart + lineCount; i++) {
+            int rec = linesOffset + i * LINE_INTS * 4;
+            dialogue.add(new DialogueLine(string(buffer.getInt(rec)), string(buffer.getInt(rec + 4))));
+        }
+        List<GameChoice> choices = new ArrayList<>();
+        for (int c = choiceStart[firstOrdinal]; c < choiceStart[firstOrdinal + 1]; c++) {
+            choices.add(choice(c));
+        }
+        return new GameNode(string(buffer.getInt(at)), string(buffer.getInt(at + 4)), sprites, dialogue, choices);
+    }
+
+    @Override
+    public String nodeId(int slot) {
+        return string(buffer.getInt(slotsOffset + slot * SLOT_INTS * 4));
+    }
+
+    @Override
+    public GameChoice choice(int choiceOrdinal) {
+        int at = choicesOffset + choiceOrdinal * choiceInts * 4;
+        Map<String, Integer> required = null;
+        Map<String, Integer> changes = null;
+        for (int attr = 0; attr < attrs; attr++) {
+            int requirement = buffer.getInt(at + CHOICE_VECTORS + attr * 4);
+            if (requirement != CompiledStoryGraph.NO_REQUIREMENT) {
+                required = required != null ? required : new LinkedHashMap<>();
+                required.put(PlayerAttributes.keyOf(attr), requirement);
+            }
+            int delta = buffer.getInt(at + CHOICE_VECTORS + (attrs + attr) * 4);
+            if (delta != 0) {
+                changes = changes != null ? changes : new LinkedHashMap<>();
+                changes.put(PlayerAttributes.keyOf(attr), delta);
+            }
+        }
+        return new GameChoice(string(buffer.getInt(at)), string(buffer.getInt(at + 4)), string(buffer.getInt(at + 8)),
+                required, changes, string(buffer.getInt(at + 16)), string(buffer.getInt(at + 20)));
+    }
+
+    // --- 写入 ---
+
+    /**
+     * 把故事图写成故事包：先写到同目录的临时文件，再原子替换目标文件
+     */
+    public static void write(CompiledStoryGraph graph, Path target) throws IOException {
+        Strings strings = new Strings();
+        int ordinalCount = graph.nodeCount();
+        int slotCount = graph.slotCount();
+
+        int[] firstOrdinal = new int[slotCount];
+        Arrays.fill(firstOrdinal, -1);
+        for (int n = 0; n < ordinalCount; n++) {
+            if (firstOrdinal[graph.slotOf(n)] < 0) {
+                firstOrdinal[graph.slotOf(n)] = n;
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        for (int n = 0; n < ordinalCount; n++) {
+            out.writeInt(strings.ref(graph.nodeIdAt(n)));
+            out.writeInt(graph.slotOf(n));
+        }
+        for (int n = 0; n < ordinalCount; n++) {
+            out.writeInt(graph.firstChoice(n));
+        }
+        out.writeInt(graph.choiceCount());
+
+        List<CharacterSprite> sprites = new ArrayList<>();
+        List<DialogueLine> lines = new ArrayList<>();
+        for (int s = 0; s < slotCount; s++) {
+            GameNode node = graph.nodeAt(firstOrdinal[s]);
+            List<CharacterSprite> nodeSprites = node.getSprites() != null ? node.getSprites() : List.of();
+            List<DialogueLine> nodeLines = node.getDialogue() != null ? node.getDialogue() : List.of();
+            out.writeInt(strings.ref(node.getNodeId()));
+            out.writeInt(strings.ref(node.getBackground()));
+            out.writeInt(sprites.size());
+            out.writeInt(nodeSprites.size());
+            out.writeInt(lines.size());
+            out.writeInt(nodeLines.size());
+            out.writeInt(firstOrdinal[s]);
+            sprites.addAll(nodeSprites);
+            lines.addAll(nodeLines);
+        }
+        for (CharacterSprite sprite : sprites) {
+            out.writeInt(strings.ref(sprite.getImage()));
+            out.writeInt(strings.ref(sprite.getPosition()));
+        }
+        for (DialogueLine line : lines) {
+            out.writeInt(strings.ref(line.getCharacter()));
+            out.writeInt(strings.ref(line.getText()));
+        }
+        for (int c = 0; c < graph.choiceCount(); c++) {
+            GameChoice choice = graph.choiceAt(c);
+            out.writeInt(strings.ref(choice.getChoiceId()));
+            out.writeInt(strings.ref(choice.getText()));
+            out.writeInt(strings.ref(choice.getNextNodeId()));
+            out.writeInt(graph.targetOf(c));
+            out.writeInt(strings.ref(choice.getCondition()));
+            out.writeInt(strings.ref(choice.getEffects()));
+            for (int attr = 0; attr < graph.attributeCount(); attr++) {
+                out.writeInt(graph.requirement(c, attr));
+            }
+            for (int attr = 0; attr < graph.attributeCount(); attr++) {
+                out.writeInt(graph.change(c, attr));
+            }
+        }
+        int storyIdRef = strings.ref(graph.getStoryId());
+        int attributesRef = strings.ref(attributeNames());
+        int stringsOffset = HEADER_INTS * 4 + out.size();
+        strings.bytes.writeTo(out);
+        out.flush();
+
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(bodyBytes);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * 4);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(graph.getVersion()).putInt(storyIdRef)
+                .putInt(ordinalCount).putInt(slotCount).putInt(sprites.size()).putInt(lines.size())
+                .putInt(graph.choiceCount()).putInt(stringsOffset).putInt(strings.bytes.size())
+                .putInt((int) checksum.getValue()).putInt(graph.attributeCount()).putInt(attributesRef);
+
+        Path dir = target.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.flip();
+            channel.write(header);
+            channel.write(ByteBuffer.wrap(bodyBytes));
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 去重的字符串区
+     */
+    private static final class Strings {
+        private final Map<String, Integer> refs = new HashMap<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        int ref(String value) throws IOException {
+            if (value == null) {
+                return NULL_REF;
+            }
+            Integer existing = refs.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            int ref = bytes.size();
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+            refs.put(value, ref);
+            return ref;
+        }
+    }
+
+    /**
+     * 命令行：把 JSON 故事脚本预编译为故事包
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("用法: StoryBundle <脚本.json> <输出.bundle>");
+            System.exit(1);
+        }
+        CompiledStoryGraph graph = StoryScriptLoader.load(Paths.get(args[0]));
+        write(graph, Paths.get(args[1]));
+        System.out.println("已写入故事包 " + args[1] + " (" + graph.nodeCount() + " 个节点ID, "
+                + graph.choiceCount() + " 个选项)");
+    }
+}
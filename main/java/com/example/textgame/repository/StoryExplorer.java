@@ -0,0 +1,539 @@
+package com.example.textgame.repository;
+
+import com.example.textgame.dto.StoryReport;
+import com.example.textgame.model.ChoiceContext;
+import com.example.textgame.model.PlayerAttributes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 故事路径分析器
+ * 1. 穷举：对每个合法的初始属性分配，在 (节点, 属性向量) 状态空间上做广度优先搜索（最多 maxSteps 步），
+ *    得到可达节点以及“所有选项都被属性锁住”的死路节点
+ * 2. 采样：每个分配按“在可选的选项中均匀随机选择”的玩家模型做蒙特卡洛模拟，
+ *    统计结局、死路和未结束的比例；PlayerAttributes.roll() 在合法分配上均匀抽样，所以各分配权重相同
+ * 属性不足的选项在游戏中会进入 FAILURE 节点并回到原节点，状态不变，所以这里视为不可选。
+ * 条件表达式（flag/visited 等）只在采样中求值；穷举只跟踪属性，把带条件表达式的选项当作可选，
+ * 所以对使用表达式的故事，穷举得到的可达节点是上界。
+ * 每个分配是一个 ForkJoin 任务，采样再按固定大小拆分；随机数只由种子和样本区间决定，结果与线程数无关。
+ */
+public final class StoryExplorer {
+
+    public static final int DEFAULT_SAMPLES = 20_000;
+    public static final int DEFAULT_MAX_STEPS = 50;
+    public static final long DEFAULT_SEED = 42L;
+
+    private static final int SAMPLE_CHUNK = 4096;
+
+    private final CompiledStoryGraph graph;
+    private final int attrCount;
+    private final int attrBits;
+    private final int attrBias;
+    private final int samples;
+    private final int maxSteps;
+    private final long seed;
+    private final int startOrdinal;
+
+    public StoryExplorer(CompiledStoryGraph graph, int samples, int maxSteps, long seed) {
+        if (samples < 0 || maxSteps < 1) {
+            throw new IllegalArgumentException("samples 不能为负数，maxSteps 至少为 1");
+        }
+        this.graph = graph;
+        this.attrCount = graph.attributeCount();
+        this.attrBits = 64 / attrCount;
+        if (attrBits < 4) {
+            throw new IllegalStateException("属性数量 " + attrCount + " 过多，无法打包属性向量");
+        }
+        this.attrBias = 1 << (attrBits - 1);
+        this.samples = samples;
+        this.maxSteps = maxSteps;
+        this.seed = seed;
+        this.startOrdinal = graph.ordinalOf(StoryScriptLoader.START_NODE_ID);
+        if (startOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalStateException("故事缺少 START 节点: " + graph.getStoryId());
+        }
+    }
+
+    public StoryReport explore(ForkJoinPool pool) {
+        long begin = System.nanoTime();
+        List<int[]> allocations = PlayerAttributes.validAllocations();
+        List<AllocationTask> tasks = new ArrayList<>(allocations.size());
+        for (int i = 0; i < allocations.size(); i++) {
+            tasks.add(new AllocationTask(allocations.get(i), i));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+        int nodeCount = graph.nodeCount();
+        double[] endingProbability = new double[nodeCount];
+        int[] endingAllocations = new int[nodeCount];
+        boolean[] reached = new boolean[nodeCount];
+        boolean[] stuck = new boolean[nodeCount];
+        double deadEndRate = 0;
+        double unfinishedRate = 0;
+        long states = 0;
+
+        for (AllocationTask task : tasks) {
+            AllocationResult result = task.join();
+            double weight = 1.0 / tasks.size() / Math.max(samples, 1);
+            for (int n = 0; n < nodeCount; n++) {
+                endingProbability[n] += weight * result.counts.endings[n];
+                if (result.reached[n]) {
+                    reached[n] = true;
+                    if (isEnding(n)) {
+                        endingAllocations[n]++;
+                    }
+                }
+                stuck[n] |= result.stuck[n];
+            }
+            deadEndRate += weight * result.counts.deadEnds;
+            unfinishedRate += weight * result.counts.unfinished;
+            states += result.states;
+        }
+
+        StoryReport report = new StoryReport();
+        report.setStoryId(graph.getStoryId());
+        report.setVersion(graph.getVersion());
+        report.setAllocations(allocations.size());
+        report.setSamplesPerAllocation(samples);
+        report.setMaxSteps(maxSteps);
+
+        // 别名和它指向的节点共享槽位：节点本身只通过别名进入时也算可达
+        boolean[] slotReached = new boolean[graph.slotCount()];
+        for (int n = 0; n < nodeCount; n++) {
+            slotReached[graph.slotOf(n)] |= reached[n];
+        }
+
+        Map<String, Double> probabilities = new LinkedHashMap<>();
+        Map<String, Integer> allocationCounts = new LinkedHashMap<>();
+        List<String> unreachable = new ArrayList<>();
+        List<String> deadEnds = new ArrayList<>();
+        for (int n = 0; n < nodeCount; n++) {
+            if (isEnding(n)) {
+                probabilities.put(graph.nodeIdAt(n), endingProbability[n]);
+                allocationCounts.put(graph.nodeIdAt(n), endingAllocations[n]);
+            }
+            if (!reached[n] && !(slotReached[graph.slotOf(n)] && isCanonical(n))) {
+                unreachable.add(graph.nodeIdAt(n));
+            }
+            if (stuck[n]) {
+                deadEnds.add(graph.nodeIdAt(n));
+            }
+        }
+        report.setEndingProbability(probabilities);
+        report.setEndingAllocations(allocationCounts);
+        report.setDeadEndRate(deadEndRate);
+        report.setUnfinishedRate(unfinishedRate);
+        report.setUnreachableNodes(unreachable);
+        report.setDeadEndNodes(deadEnds);
+        report.setExploredStates(states);
+        report.setElapsedMillis((System.nanoTime() - begin) / 1_000_000);
+        return report;
+    }
+
+    private boolean isEnding(int nodeOrdinal) {
+        return graph.firstChoice(nodeOrdinal) == graph.endChoice(nodeOrdinal);
+    }
+
+    private boolean isCanonical(int nodeOrdinal) {
+        return graph.nodeIdAt(nodeOrdinal).equals(graph.nodeAt(nodeOrdinal).getNodeId());
+    }
+
+    private boolean meets(int[] attrs, int choiceOrdinal) {
+        if (!graph.hasRequirements(choiceOrdinal)) {
+            return true;
+        }
+        for (int attr = 0; attr < attrCount; attr++) {
+            int required = graph.requirement(choiceOrdinal, attr);
+            if (required != CompiledStoryGraph.NO_REQUIREMENT && attrs[attr] < required) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 执行属性变化向量和效果表达式；context 必须包装同一个 attrs 数组
+     */
+    private void apply(int[] attrs, int choiceOrdinal, SimContext context) {
+        if (graph.hasChanges(choiceOrdinal)) {
+            for (int attr = 0; attr < attrCount; attr++) {
+                attrs[attr] += graph.change(choiceOrdinal, attr);
+            }
+        }
+        graph.applyEffects(choiceOrdinal, context);
+    }
+
+    /**
+     * 分析用的表达式求值环境；flags/visited 为 null 时（穷举）不跟踪标记和到达记录
+     */
+    private final class SimContext implements ChoiceContext {
+        private final int[] attrs;
+        private final Set<String> flags;
+        private final boolean[] visited;
+
+        private SimContext(int[] attrs, Set<String> flags, boolean[] visited) {
+            this.attrs = attrs;
+            this.flags = flags;
+            this.visited = visited;
+        }
+
+        private void reset(int[] allocation) {
+            System.arraycopy(allocation, 0, attrs, 0, attrCount);
+            flags.clear();
+            Arrays.fill(visited, false);
+            visited[startOrdinal] = true;
+        }
+
+        @Override
+        public int attribute(int index) {
+            return attrs[index];
+        }
+
+        @Override
+        public void setAttribute(int index, int value) {
+            attrs[index] = value;
+        }
+
+        @Override
+        public boolean hasFlag(String flag) {
+            return flags != null && flags.contains(flag);
+        }
+
+        @Override
+        public void setFlag(String flag, boolean value) {
+            if (flags != null) {
+                if (value) {
+                    flags.add(flag);
+                } else {
+                    flags.remove(flag);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasVisited(String nodeId) {
+            int ordinal = graph.ordinalOf(nodeId);
+            return visited != null && ordinal != CompiledStoryGraph.NOT_FOUND && visited[ordinal];
+        }
+    }
+
+    /**
+     * 属性向量打包为 long：每项属性加上偏移量后占 64 / 属性数量 位，偏移保证结果不为 0
+     */
+    private long pack(int[] attrs) {
+        long key = 0;
+        for (int attr = 0; attr < attrCount; attr++) {
+            int value = attrs[attr];
+            if (value <= -attrBias || value >= attrBias) {
+                throw new IllegalStateException("属性值 " + value + " 超出分析范围，请减小 maxSteps");
+            }
+            key = (key << attrBits) | (value + attrBias);
+        }
+        return key;
+    }
+
+    private void unpack(long key, int[] attrs) {
+        long mask = (1L << attrBits) - 1;
+        for (int attr = attrCount - 1; attr >= 0; attr--) {
+            attrs[attr] = (int) (key & mask) - attrBias;
+            key >>>= attrBits;
+        }
+    }
+
+    /**
+     * 单个初始分配：穷举可达状态，同时并行采样
+     */
+    private final class AllocationTask extends RecursiveTask<AllocationResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] allocation;
+        private final int index;
+
+        private AllocationTask(int[] allocation, int index) {
+            this.allocation = allocation;
+            this.index = index;
+        }
+
+        @Override
+        protected AllocationResult compute() {
+            SampleTask sampling = new SampleTask(allocation, index, 0, samples);
+            sampling.fork();
+            AllocationResult result = exhaust(allocation);
+            result.counts = sampling.join();
+            return result;
+        }
+    }
+
+    /**
+     * 广度优先搜索 (节点, 属性向量) 状态
+     * 属性要求都是下限、属性变化是加法，所以同一节点上属性全面不低于另一状态的状态能走通对方的所有路径：
+     * 每个节点只保留不被支配的属性向量（Pareto 前沿），被支配的状态不再展开，可达性结果不变。
+     * 死路检查在生成状态时进行（包括被支配的状态），未展开状态的后继不再检查，所以死路节点是下界。
+     */
+    private AllocationResult exhaust(int[] allocation) {
+        int nodeCount = graph.nodeCount();
+        AllocationResult result = new AllocationResult(nodeCount);
+        Front[] fronts = new Front[nodeCount];
+        int[] attrs = new int[attrCount];
+        SimContext context = new SimContext(attrs, null, null);
+
+        Frontier frontier = new Frontier();
+        fronts[startOrdinal] = new Front(attrCount);
+        fronts[startOrdinal].add(allocation);
+        frontier.add(startOrdinal, pack(allocation));
+        result.reached[startOrdinal] = true;
+        result.stuck[startOrdinal] = isStuck(startOrdinal, allocation);
+
+        for (int depth = 0; depth < maxSteps && frontier.size > 0; depth++) {
+            Frontier next = new Frontier();
+            for (int i = 0; i < frontier.size; i++) {
+                int node = frontier.nodes[i];
+                result.states++;
+                for (int c = graph.firstChoice(node), end = graph.endChoice(node); c < end; c++) {
+                    unpack(frontier.keys[i], attrs);
+                    int target = graph.targetOf(c);
+                    if (!meets(attrs, c) || target == CompiledStoryGraph.NOT_FOUND) {
+                        continue;
+                    }
+                    apply(attrs, c, context);
+                    result.reached[target] = true;
+                    if (isStuck(target, attrs)) {
+                        result.stuck[target] = true;
+                    }
+                    if (fronts[target] == null) {
+                        fronts[target] = new Front(attrCount);
+                    }
+                    if (fronts[target].add(attrs)) {
+                        next.add(target, pack(attrs));
+                    }
+                }
+            }
+            frontier = next;
+        }
+        result.states += frontier.size;
+        return result;
+    }
+
+    /**
+     * 节点有选项，但当前属性下一个都选不了
+     */
+    private boolean isStuck(int nodeOrdinal, int[] attrs) {
+        int first = graph.firstChoice(nodeOrdinal);
+        int end = graph.endChoice(nodeOrdinal);
+        for (int c = first; c < end; c++) {
+            if (meets(attrs, c)) {
+                return false;
+            }
+        }
+        return first != end;
+    }
+
+    /**
+     * 一段样本的蒙特卡洛模拟；区间大于 SAMPLE_CHUNK 时对半拆分
+     */
+    private final class SampleTask extends RecursiveTask<Counts> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] allocation;
+        private final int index;
+        private final int from;
+        private final int to;
+
+        private SampleTask(int[] allocation, int index, int from, int to) {
+            this.allocation = allocation;
+            this.index = index;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (to - from > SAMPLE_CHUNK) {
+                int mid = (from + to) >>> 1;
+                SampleTask left = new SampleTask(allocation, index, from, mid);
+                left.fork();
+                Counts right = new SampleTask(allocation, index, mid, to).compute();
+                return left.join().merge(right);
+            }
+            return simulate();
+        }
+
+        private Counts simulate() {
+            Counts counts = new Counts(graph.nodeCount());
+            SplittableRandom random = new SplittableRandom(seed + index * 1_000_003L + from);
+            int[] attrs = new int[attrCount];
+            SimContext context = new SimContext(attrs, new HashSet<>(), new boolean[graph.nodeCount()]);
+            int[] options = new int[16];
+            for (int s = from; s < to; s++) {
+                context.reset(allocation);
+                int node = startOrdinal;
+                for (int step = 0; ; step++) {
+                    int first = graph.firstChoice(node);
+                    int end = graph.endChoice(node);
+                    if (first == end) {
+                        counts.endings[node]++;
+                        break;
+                    }
+                    if (step == maxSteps) {
+                        counts.unfinished++;
+                        break;
+                    }
+                    if (end - first > options.length) {
+                        options = new int[end - first];
+                    }
+                    int n = 0;
+                    for (int c = first; c < end; c++) {
+                        if (meets(attrs, c) && graph.conditionHolds(c, context)
+                                && graph.targetOf(c) != CompiledStoryGraph.NOT_FOUND) {
+                            options[n++] = c;
+                        }
+                    }
+                    if (n == 0) {
+                        counts.deadEnds++;
+                        break;
+                    }
+                    int choice = options[random.nextInt(n)];
+                    apply(attrs, choice, context);
+                    node = graph.targetOf(choice);
+                    context.visited[node] = true;
+                }
+            }
+            return counts;
+        }
+    }
+
+    private static final class AllocationResult {
+        private final boolean[] reached;
+        private final boolean[] stuck;
+        private long states;
+        private Counts counts;
+
+        private AllocationResult(int nodeCount) {
+            this.reached = new boolean[nodeCount];
+            this.stuck = new boolean[nodeCount];
+        }
+    }
+
+    private static final class Counts {
+        private final long[] endings;
+        private long deadEnds;
+        private long unfinished;
+
+        private Counts(int nodeCount) {
+            this.endings = new long[nodeCount];
+        }
+
+        private Counts merge(Counts other) {
+            for (int n = 0; n < endings.length; n++) {
+                endings[n] += other.endings[n];
+            }
+            deadEnds += other.deadEnds;
+            unfinished += other.unfinished;
+            return this;
+        }
+    }
+
+    /**
+     * BFS 的一层：节点序号和打包后的属性向量
+     */
+    private static final class Frontier {
+        private int[] nodes = new int[64];
+        private long[] keys = new long[64];
+        private int size;
+
+        private void add(int node, long key) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            nodes[size] = node;
+            keys[size] = key;
+            size++;
+        }
+    }
+
+    /**
+     * 一个节点上互不支配的属性向量（按属性数量个 int 一组平铺存放）
+     */
+    private static final class Front {
+        private final int width;
+        private int[] values;
+        private int size;
+
+        private Front(int width) {
+            this.width = width;
+            this.values = new int[width * 4];
+        }
+
+        /**
+         * 已有向量支配 attrs 时返回 false；否则移除被 attrs 支配的向量，加入 attrs 并返回 true
+         */
+        private boolean add(int[] attrs) {
+            for (int i = 0; i < size; i++) {
+                if (dominates(values, i * width, attrs)) {
+                    return false;
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!dominatedBy(values, i * width, attrs)) {
+                    System.arraycopy(values, i * width, values, kept * width, width);
+                    kept++;
+                }
+            }
+            size = kept;
+            if ((size + 1) * width > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            System.arraycopy(attrs, 0, values, size * width, width);
+            size++;
+            return true;
+        }
+
+        private static boolean dominates(int[] values, int offset, int[] attrs) {
+            for (int attr = 0; attr < attrs.length; attr++) {
+                if (values[offset + attr] < attrs[attr]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean dominatedBy(int[] values, int offset, int[] attrs) {
+            for (int attr = 0; attr < attrs.length; attr++) {
+                if (values[offset + attr] > attrs[attr]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 命令行：分析故事脚本并输出 JSON 报告
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("用法: StoryExplorer <脚本.json|故事包.bundle> [每个分配的采样次数] [最大步数]");
+            System.exit(1);
+        }
+        CompiledStoryGraph graph = StoryScriptLoader.load(Paths.get(args[0]));
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SAMPLES;
+        int maxSteps = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_STEPS;
+        StoryReport report = new StoryExplorer(graph, samples, maxSteps, DEFAULT_SEED).explore(ForkJoinPool.commonPool());
+        System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.textgame.service;
+
+import com.example.textgame.model.GameState;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * (新) 活跃玩家的游戏状态（进程内）
+ * 1. 按用户名保存最近 N 分钟内有操作的玩家的 GameState；命中时不查询用户表和状态表
+ * 2. 每次操作后由 GameService 写入修改后的状态（write-through）；所在事务回滚时移除，下次从数据库重新读取
+ * 3. 超过空闲时间的会话视为未命中；数量超过上限时先淘汰空闲会话，再淘汰最久未访问的会话
+ * 读路径（命中）只有一次 ConcurrentHashMap 查找，不加锁。
+ * 状态只在本实例内有效：多个实例时同一玩家的请求需要路由到同一个实例。
+ */
+@Service
+public class ActiveSessionStore {
+
+    private final int maxSessions;
+    private final long idleNanos;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ActiveSessionStore(@Value("${game.sessions.max:10000}") int maxSessions,
+                              @Value("${game.sessions.idle-minutes:30}") long idleMinutes) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("game.sessions.max 必须大于 0: " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+        this.idleNanos = TimeUnit.MINUTES.toNanos(idleMinutes);
+    }
+
+    private static final class Session {
+        private final GameState state;
+        private volatile long lastAccess;
+
+        private Session(GameState state) {
+            this.state = state;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private record Candidate(String username, Session session, long lastAccess) {
+    }
+
+    /**
+     * 活跃玩家的状态；没有或已经空闲过久时返回 null
+     */
+    public GameState get(String username) {
+        Session session = sessions.get(username);
+        long now = System.nanoTime();
+        if (session == null || now - session.lastAccess > idleNanos) {
+            if (session != null && sessions.remove(username, session)) {
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        session.lastAccess = now;
+        hits.increment();
+        return session.state;
+    }
+
+    /**
+     * 写入玩家的最新状态；在事务中调用时，事务回滚后移除（内存中的状态已经与数据库不一致）
+     */
+    public void put(String username, GameState state) {
+        Session session = new Session(state);
+        sessions.put(username, session);
+        removeOnRollback(username, session);
+        evictIfNeeded();
+    }
+
+    /**
+     * (新) 从数据库读取状态之后调用：已经有活跃的会话时保留它并返回它的状态（读取期间可能有更新的命令写入了会话），
+     * 否则写入 state 并返回 state。与 put 一样，事务回滚后移除写入的会话
+     */
+    public GameState putIfAbsent(String username, GameState state) {
+        Session created = new Session(state);
+        long now = created.lastAccess;
+        Session winner = sessions.compute(username, (key, existing) ->
+                existing != null && now - existing.lastAccess <= idleNanos ? existing : created);
+        if (winner != created) {
+            winner.lastAccess = now;
+            return winner.state;
+        }
+        removeOnRollback(username, created);
+        evictIfNeeded();
+        return state;
+    }
+
+    private void removeOnRollback(String username, Session session) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        sessions.remove(username, session);
+                    }
+                }
+            });
+        }
+    }
+
+    public void remove(String username) {
+        sessions.remove(username);
+    }
+
+    /**
+     * (新) 移除状态满足条件的会话（数据库中的行在外部被修改过，下次重新读取）
+     * @return 移除的会话数
+     */
+    public int removeIf(Predicate<GameState> condition) {
+        int removed = 0;
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (condition.test(entry.getValue().state) && sessions.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of(
+                "sessions", sessions.size(),
+                "max", maxSessions,
+                "hits", hits.sum(),
+                "misses", misses.sum(),
+                "evictions", evictions.sum()
+        );
+    }
+
+    /**
+     * 超过上限时淘汰：先移除所有空闲的会话，仍然超过时按最久未访问淘汰到上限的 90%（避免每次写入都扫描）
+     */
+    private void evictIfNeeded() {
+        if (sessions.size() <= maxSessions) {
+            return;
+        }
+        synchronized (evictionLock) {
+            if (sessions.size() <= maxSessions) {
+                return;
+            }
+            long now = System.nanoTime();
+            List<Candidate> active = new ArrayList<>(sessions.size());
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                long lastAccess = entry.getValue().lastAccess; // 排序期间可能被读路径更新，先取一次
+                if (now - lastAccess > idleNanos) {
+                    if (sessions.remove(entry.getKey(), entry.getValue())) {
+                        evictions.increment();
+                    }
+                } else {
+                    active.add(new Candidate(entry.getKey(), entry.getValue(), lastAccess));
+                }
+            }
+            int target = maxSessions - maxSessions / 10;
+            if (active.size() <= target) {
+                return;
+            }
+            active.sort(Comparator.comparingLong(Candidate::lastAccess));
+            for (int i = 0; i < active.size() - target; i++) {
+                if (sessions.remove(active.get(i).username(), active.get(i).session())) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.model.ChoiceLogEntry;
+import com.example.textgame.repository.ChoiceLogRepository;
+import com.example.textgame.repository.CompiledStoryGraph;
+import com.example.textgame.repository.InMemoryGameRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * (新) 把选择历史转换为编码形式（game.history-migration.enabled=true 时在启动时执行，可以重复执行）
+ * 1. 旧的 game_choice_history 表（每行一段选项文字）：从 START 开始沿故事图走，在当前节点的选项中按文字找到对应的选项；
+ *    当前节点中没有时按文字在整个故事中查找（多个选项文字相同时取第一个，显示的文字相同）。转换后插入 game_choice_log 并删除旧行
+ * 2. 只转换还没有新历史、也没有状态快照的玩家；一个玩家有任何一条文字对应不上时整个玩家保持不变，留给人工处理
+ * 3. game_choice_log 中升级前写入的行（choice_code = 0）：故事版本没变时按序号补上编码
+ * 在接收请求之前执行（@PostConstruct），每个玩家一个事务。
+ * (新) 分片时逐个分片执行（见 ShardRoutingDataSource）。
+ */
+@Service
+public class ChoiceHistoryMigration {
+
+    private final boolean enabled;
+    private final EntityManager entityManager;
+    private final ChoiceLogRepository choiceLogRepository;
+    private final InMemoryGameRepository gameRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ShardRoutingDataSource shardRouting;
+
+    // 依赖 GameEventStore：write-behind 模式下先从预写日志恢复状态，再转换
+    public ChoiceHistoryMigration(@Value("${game.history-migration.enabled:false}") boolean enabled,
+                                  EntityManager entityManager,
+                                  ChoiceLogRepository choiceLogRepository,
+                                  InMemoryGameRepository gameRepository,
+                                  GameEventStore eventStore,
+                                  PlatformTransactionManager transactionManager,
+                                  ShardRoutingDataSource shardRouting) {
+        this.enabled = enabled;
+        this.entityManager = entityManager;
+        this.choiceLogRepository = choiceLogRepository;
+        this.gameRepository = gameRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.shardRouting = shardRouting;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        if (!enabled) {
+            return;
+        }
+        for (String shard : shardRouting.shardNames()) {
+            migrateLegacyHistory(shard);
+            backfillCodes(shard);
+        }
+    }
+
+    private void migrateLegacyHistory(String shard) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> users = transactionTemplate.execute(status -> {
+            ShardRoutingDataSource.useShard(shard);
+            return entityManager.createNativeQuery(
+                    "SELECT s.user_id, s.story_id FROM game_state s"
+                            + " WHERE s.history_end = 0"
+                            + " AND EXISTS (SELECT 1 FROM game_choice_history h WHERE h.user_id = s.user_id)"
+                            + " AND NOT EXISTS (SELECT 1 FROM game_state_snapshot p WHERE p.user_id = s.user_id)")
+                    .getResultList();
+        });
+        int converted = 0;
+        int skipped = 0;
+        long rows = 0;
+        long textBytes = 0;
+        for (Object[] user : users) {
+            Long userId = ((Number) user[0]).longValue();
+            String storyId = (String) user[1];
+            long[] result = transactionTemplate.execute(status -> {
+                ShardRoutingDataSource.useShard(shard);
+                return migrateUser(userId, storyId);
+            });
+            if (result == null) {
+                skipped++;
+            } else {
+                converted++;
+                rows += result[0];
+                textBytes += result[1];
+            }
+        }
+        if (converted + skipped > 0) {
+            // 新行: user_id 8 + seq 4 + story_version 4 + choice_ordinal 4 + choice_code 4 字节（另加 story_id）
+            System.out.println("已转换旧的选择历史" + (shard == null ? "" : "（分片 " + shard + "）") + ": " + converted + " 个玩家, " + rows + " 条, 选项文字共 " + textBytes
+                    + " 字节 -> 每条 24 字节定长列; " + skipped + " 个玩家保持不变");
+        }
+    }
+
+    /**
+     * 转换一个玩家的旧历史
+     * @return {条数, 原文字字节数}；无法转换时返回 null（事务回滚）
+     */
+    private long[] migrateUser(Long userId, String storyId) {
+        // 旧表没有顺序列，按行的物理顺序读取（与原来 JPA 加载的顺序相同）
+        @SuppressWarnings("unchecked")
+        List<String> texts = entityManager.createNativeQuery(
+                "SELECT choice_text FROM game_choice_history WHERE user_id = ?1")
+                .setParameter(1, userId)
+                .getResultList();
+        CompiledStoryGraph graph;
+        try {
+            graph = gameRepository.getGraph(storyId);
+        } catch (IllegalArgumentException e) {
+            System.err.println("玩家 " + userId + " 的故事已不存在，旧历史保持不变: " + storyId);
+            return null;
+        }
+        int[] ordinals = matchChoices(graph, texts);
+        if (ordinals == null) {
+            System.err.println("玩家 " + userId + " 的旧历史中有无法对应的选项，保持不变");
+            return null;
+        }
+        // 只在玩家仍然没有新历史时写入；期间产生了新历史时放弃
+        int updated = entityManager.createNativeQuery(
+                "UPDATE game_state SET history_head = ?1 - 1, history_length = ?1, history_base = 0, history_end = ?1"
+                        + " WHERE user_id = ?2 AND history_end = 0")
+                .setParameter(1, ordinals.length)
+                .setParameter(2, userId)
+                .executeUpdate();
+        if (updated == 0) {
+            return null; // 没有写入任何行，直接返回即可
+        }
+        List<ChoiceLogEntry> entries = new ArrayList<>(ordinals.length);
+        long textBytes = 0;
+        for (int seq = 0; seq < ordinals.length; seq++) {
+            entries.add(new ChoiceLogEntry(userId, seq, storyId, graph.getVersion(), ordinals[seq],
+                    graph.choiceCodeAt(ordinals[seq]), null));
+            textBytes += texts.get(seq).getBytes(StandardCharsets.UTF_8).length;
+        }
+        choiceLogRepository.saveAll(entries);
+        entityManager.createNativeQuery("DELETE FROM game_choice_history WHERE user_id = ?1")
+                .setParameter(1, userId)
+                .executeUpdate();
+        return new long[]{entries.size(), textBytes};
+    }
+
+    /**
+     * 按文字找到每一步的选项序号；有任何一步找不到时返回 null
+     * 旧版本在"读取存档"时不清空历史，所以当前节点中找不到时退回到整个故事中按文字查找
+     */
+    static int[] matchChoices(CompiledStoryGraph graph, List<String> texts) {
+        Map<String, Integer> byText = null;
+        int node = graph.ordinalOf("START");
+        int[] ordinals = new int[texts.size()];
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            int choice = CompiledStoryGraph.NOT_FOUND;
+            if (node != CompiledStoryGraph.NOT_FOUND) {
+                for (int c = graph.firstChoice(node), end = graph.endChoice(node); c < end; c++) {
+                    if (graph.choiceAt(c).getText().equals(text)) {
+                        choice = c;
+                        break;
+                    }
+                }
+            }
+            if (choice == CompiledStoryGraph.NOT_FOUND) {
+                if (byText == null) {
+                    byText = firstByText(graph);
+                }
+                choice = byText.getOrDefault(text, CompiledStoryGraph.NOT_FOUND);
+                if (choice == CompiledStoryGraph.NOT_FOUND) {
+                    return null;
+                }
+            }
+            ordinals[i] = choice;
+            node = graph.targetOf(choice);
+        }
+        return ordinals;
+    }
+
+    /**
+     * 文字 -> 第一个使用这段文字的选项序号
+     */
+    private static Map<String, Integer> firstByText(CompiledStoryGraph graph) {
+        Map<String, Integer> byText = new HashMap<>();
+        for (int c = 0; c < graph.choiceCount(); c++) {
+            byText.putIfAbsent(graph.choiceAt(c).getText(), c);
+        }
+        return byText;
+    }
+
+    /**
+     * 为升级前写入、故事版本仍然有效的历史行补上编码
+     */
+    private void backfillCodes(String shard) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> versions = transactionTemplate.execute(status -> {
+            ShardRoutingDataSource.useShard(shard);
+            return entityManager.createNativeQuery(
+                    "SELECT DISTINCT story_id, story_version FROM game_choice_log WHERE choice_code = 0")
+                    .getResultList();
+        });
+        for (Object[] row : versions) {
+            String storyId = (String) row[0];
+            int version = ((Number) row[1]).intValue();
+            CompiledStoryGraph graph;
+            try {
+                graph = gameRepository.getGraph(storyId);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (graph.getVersion() != version) {
+                System.err.println("故事 " + storyId + " v" + version + " 已更新为 v" + graph.getVersion()
+                        + "，这一版本的历史行无法补上编码");
+                continue;
+            }
+            int updated = transactionTemplate.execute(status -> {
+                ShardRoutingDataSource.useShard(shard);
+                int total = 0;
+                for (int c = 0; c < graph.choiceCount(); c++) {
+                    Query update = entityManager.createNativeQuery(
+                            "UPDATE game_choice_log SET choice_code = ?1 WHERE choice_code = 0"
+                                    + " AND story_version = ?2 AND choice_ordinal = ?3"
+                                    + (storyId == null ? " AND story_id IS NULL" : " AND story_id = ?4"))
+                            .setParameter(1, graph.choiceCodeAt(c))
+                            .setParameter(2, version)
+                            .setParameter(3, c);
+                    if (storyId != null) {
+                        update.setParameter(4, storyId);
+                    }
+                    total += update.executeUpdate();
+                }
+                return total;
+            });
+            System.out.println("已为故事 " + storyId + " v" + version + " 的 " + updated + " 条历史补上编码");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.textgame.service;
 
+import com.example.textgame.model.AttributeSchema;
 import com.example.textgame.model.GameState;
 import com.example.textgame.model.PlayerAttributes;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,6 +19,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 @Service
 public class FileStorageService {
@@ -87,9 +89,10 @@ public class FileStorageService {
 
     /**
      * 動態生成心理測試報告（內存）
+     * @param rescore 按當前的評分規則從頭重放玩家的事件（需要事件溯源模式）
      */
-    public Resource generatePsychologicalReport(String userId) {
-        GameState state = gameService.getOrCreateGameState(userId);
+    public Resource generatePsychologicalReport(String userId, boolean rescore) {
+        GameState state = rescore ? gameService.replayGameState(userId) : gameService.getOrCreateGameState(userId);
         PlayerAttributes attrs = state.getAttributes();
 
         // 基於遊戲狀態生成報告內容
@@ -98,9 +101,11 @@ public class FileStorageService {
         report.append("用戶ID: ").append(userId).append("\n\n");
         report.append("最終屬性:\n");
 
-        report.append("  - 洞察力 (insight): ").append(attrs.getInsight()).append("\n");
-        report.append("  - 決心 (resolve): ").append(attrs.getResolve()).append("\n");
-        report.append("  - 同理心 (empathy): ").append(attrs.getEmpathy()).append("\n");
+        AttributeSchema schema = AttributeSchema.current();
+        for (int i = 0; i < schema.size(); i++) {
+            report.append("  - ").append(schema.labelOf(i)).append(" (").append(schema.nameOf(i)).append("): ")
+                    .append(attrs.getAttribute(i)).append("\n");
+        }
 
         report.append("\n");
         report.append("最終節點: ").append(state.getCurrentNodeId()).append("\n\n");
@@ -118,11 +123,12 @@ public class FileStorageService {
 
         // (新) 添加選擇歷史
         report.append("\n--- 你的選擇歷史 ---\n");
-        if (state.getChoiceHistory() == null || state.getChoiceHistory().isEmpty()) {
+        List<String> history = gameService.getFullChoiceHistory(state);
+        if (history.isEmpty()) {
             report.append("你沒有做出任何選擇。\n");
         } else {
             int step = 1;
-            for (String choice : state.getChoiceHistory()) {
+            for (String choice : history) {
                 report.append(step).append(". ").append(choice).append("\n");
                 step++;
             }
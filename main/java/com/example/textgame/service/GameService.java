@@ -1,21 +1,36 @@
 package com.example.textgame.service;
 
+import com.example.textgame.config.ReplicaRoutingDataSource;
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.dto.NodePayload;
 import com.example.textgame.model.*;
+import com.example.textgame.repository.ChoiceLogRepository;
+import com.example.textgame.repository.CompiledStoryGraph;
+import com.example.textgame.repository.GameSaveSlotRepository;
 import com.example.textgame.repository.GameStateRepository;
 import com.example.textgame.repository.InMemoryGameRepository;
 import com.example.textgame.repository.UserRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.CachePut;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 @Service
 @RequiredArgsConstructor
@@ -23,76 +38,166 @@ public class GameService {
 
     private final InMemoryGameRepository gameRepository;
     private final GameStateRepository stateRepository;
+    private final ChoiceLogRepository choiceLogRepository;
+    private final GameEventStore eventStore;
+    private final ActiveSessionStore sessionStore;
     private final UserRepository userRepository;
+    private final GameSaveSlotRepository slotRepository;
+    private final ObjectMapper objectMapper;
+    private final ShardRoutingDataSource dataSource;
+    private final ReplicaRoutingDataSource replicaRouting; // (新) 全局库的读写分离（副本延迟的配置在这个 bean 中）
+    private final PlatformTransactionManager transactionManager;
+
+    private static final int MAX_HISTORY_PAGE = 200;
+
+    // (新) 存档位
+    public static final String QUICK_SLOT = "quick"; // 不指定存档位时使用；存档位之前的存档也从这里读取
+    private static final int MAX_SAVE_SLOTS = 10;
+    private static final Pattern SLOT_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
 
     /**
      * 获取或创建玩家的游戏状态
+     * 活跃玩家直接从 ActiveSessionStore 返回，不查询数据库
+     * (新) 其他情况从主库读取：读到的状态会成为之后修改的基础，不能是副本上的旧状态
+     * (新) 当前事务之后使用玩家所在的分片
      */
     @Transactional
-    @Cacheable(value = "gameState", key = "#username")
     public GameState getOrCreateGameState(String username) {
-        User user = userRepository.findByUsername(username)
-                .orElseThrow(() -> new UsernameNotFoundException("未找到用户: " + username));
+        GameState active = sessionStore.get(username);
+        if (active != null) {
+            dataSource.useShardOf(active.getId());
+            return active;
+        }
+        User user = findUser(username);
+        dataSource.useShardOf(user.getId());
+
+        GameState session = eventStore.cached(user.getId()); // (新) write-behind 模式下内存中的状态比数据库新
+        if (session != null) {
+            return sessionStore.putIfAbsent(username, session);
+        }
+        GameState state = stateRepository.findById(user.getId())
+                .orElseGet(() -> createGameState(user));
+        state = eventStore.load(state); // (新) 事件模式下从快照重放事件
+        return sessionStore.putIfAbsent(username, state); // (新) 读取期间写入的会话更新，不能覆盖
+    }
 
-        return stateRepository.findById(user.getId())
-                .orElseGet(() -> {
-                    GameState newState = new GameState(user);
-                    return stateRepository.save(newState);
-                });
+    /**
+     * (新) 在单独的读写事务中创建新玩家的状态并提交
+     * 调用者可能在只读事务中（FlushMode.MANUAL，save 不会写入数据库），放进 ActiveSessionStore 的状态必须已经写入
+     */
+    private GameState createGameState(User user) {
+        TransactionTemplate create = new TransactionTemplate(transactionManager);
+        create.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        try {
+            return create.execute(status -> {
+                dataSource.useShardOf(user.getId());
+                GameState newState = new GameState(user);
+                newState.setStoryId(gameRepository.getDefaultStoryId());
+                return stateRepository.save(newState);
+            });
+        } catch (DataIntegrityViolationException e) {
+            // 同一玩家的另一个请求已经创建
+            return stateRepository.findById(user.getId()).orElseThrow(() -> e);
+        }
+    }
+
+    /**
+     * (新) 在主库上查找用户
+     * 分片时在单独的事务中查询：app_user 在全局库，当前事务之后要使用玩家所在的分片
+     */
+    private User findUser(String username) {
+        if (!dataSource.isSharded()) {
+            ReplicaRoutingDataSource.requirePrimary();
+            return userRepository.findByUsername(username)
+                    .orElseThrow(() -> new UsernameNotFoundException("未找到用户: " + username));
+        }
+        TransactionTemplate lookup = new TransactionTemplate(transactionManager);
+        lookup.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        lookup.setReadOnly(true);
+        return lookup.execute(status -> {
+            ReplicaRoutingDataSource.requirePrimary();
+            return userRepository.findByUsername(username)
+                    .orElseThrow(() -> new UsernameNotFoundException("未找到用户: " + username));
+        });
     }
 
     /**
      * 重新掷骰
      */
     @Transactional
-    @CachePut(value = "gameState", key = "#username")
     public GameState rollAttributes(String username) {
         GameState state = getOrCreateGameState(username);
-        state.getAttributes().roll();
-        return stateRepository.save(state);
+        PlayerAttributes rolled = PlayerAttributes.of(state.getAttributes().toArray());
+        rolled.roll();
+        return record(username, state, GameEvent.attributes(state, GameEvent.Type.ROLL, rolled));
     }
 
     /**
      * 手动设置玩家属性
      */
     @Transactional
-    @CachePut(value = "gameState", key = "#username")
     public GameState setManualAttributes(String username, Map<String, Integer> attributes) {
         GameState state = getOrCreateGameState(username);
+        PlayerAttributes newAttrs;
         try {
-            PlayerAttributes newAttrs = new PlayerAttributes(attributes);
-            state.setAttributes(newAttrs);
-            return stateRepository.save(state);
+            newAttrs = new PlayerAttributes(attributes);
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("设置属性失败: " + e.getMessage());
         }
+        return record(username, state, GameEvent.attributes(state, GameEvent.Type.SET_ATTRIBUTES, newAttrs));
     }
 
     /**
-     * 获取当前游戏节点
+     * 获取当前游戏节点（预序列化的响应体，不在请求路径上做 JSON 序列化）
      */
     @Transactional(readOnly = true)
-    public GameNode getCurrentNode(String username) {
-        GameState state = getOrCreateGameState(username); // 将从缓存读取
-        return gameRepository.findNodeById(state.getCurrentNodeId())
+    public NodePayload getCurrentNodePayload(String username) {
+        GameState state = getOrCreateGameState(username);
+        return gameRepository.findNodePayload(state.getStoryId(), state.getCurrentNodeId())
                 .orElseThrow(() -> new IllegalStateException("无效的游戏节点ID: " + state.getCurrentNodeId()));
     }
 
+    /**
+     * 以 SSE 事件流逐条写出一个场景
+     */
+    public void writeSceneEvents(NodePayload payload, String lastEventId, OutputStream out) throws IOException {
+        gameRepository.writeSceneEvents(payload, lastEventId, out);
+    }
+
+    /**
+     * 一步前瞻：当前节点所有选项的目标节点，客户端用来提前渲染下一个场景
+     * @param knownHashes 客户端已缓存的节点哈希，这些节点只返回哈希
+     */
+    @Transactional(readOnly = true)
+    public byte[] getLookahead(String username, Set<String> knownHashes) {
+        GameState state = getOrCreateGameState(username);
+        CompiledStoryGraph graph = gameRepository.getGraph(state.getStoryId());
+        int nodeOrdinal = graph.resolve(state.getCurrentNodeId(), state.getCurrentNodeOrdinal());
+        if (nodeOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalStateException("无效的游戏节点ID: " + state.getCurrentNodeId());
+        }
+        return gameRepository.writeLookahead(graph, nodeOrdinal, knownHashes);
+    }
+
     /**
      * 玩家做出选择
+     * @param baseHash 客户端正在显示的场景的哈希；与当前节点一致时只返回场景差异（见 SceneDelta），否则返回完整节点
      */
     @Transactional
-    @CacheEvict(value = "gameState", key = "#username")
-    public ResponseEntity<GameNode> makeChoice(String username, String choiceId) {
-        GameState state = getOrCreateGameState(username); // 读取（可能来自缓存）
-        GameNode currentNode = getCurrentNode(username);
+    public ResponseEntity<NodePayload> makeChoice(String username, String choiceId, String baseHash) {
+        GameState state = getOrCreateGameState(username);
+        CompiledStoryGraph graph = gameRepository.getGraph(state.getStoryId());
 
-        GameChoice chosenChoice = currentNode.getChoices().stream()
-                .filter(c -> c.getChoiceId().equals(choiceId))
-                .findFirst()
-                .orElseThrow(() -> new IllegalArgumentException("无效的选择ID: " + choiceId));
+        int nodeOrdinal = graph.resolve(state.getCurrentNodeId(), state.getCurrentNodeOrdinal());
+        if (nodeOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalStateException("无效的游戏节点ID: " + state.getCurrentNodeId());
+        }
+        int choiceOrdinal = graph.findChoice(nodeOrdinal, choiceId);
+        if (choiceOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalArgumentException("无效的选择ID: " + choiceId);
+        }
 
-        if (!checkAttributes(state.getAttributes(), chosenChoice.getRequiredAttributes())) {
+        if (!checkAttributes(state.getAttributes(), graph, choiceOrdinal) || !graph.conditionHolds(choiceOrdinal, state)) {
 
             // --- (已修复) ---
             // 创建一个临时的失败节点，以匹配新的 GameNode 结构
@@ -100,7 +205,8 @@ public class GameService {
             GameNode failureNode = new GameNode();
             failureNode.setNodeId("FAILURE");
 
-            // (新) 保持当前的背景和立绘
+            // (新) 保持当前的背景和立绘（只在失败时解码当前节点）
+            GameNode currentNode = graph.nodeAt(nodeOrdinal);
             failureNode.setBackground(currentNode.getBackground());
             failureNode.setSprites(currentNode.getSprites());
 
@@ -115,92 +221,325 @@ public class GameService {
                     new GameChoice("FAIL_BACK", "返回", state.getCurrentNodeId(), null, null)
             ));
 
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(failureNode);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(gameRepository.encode(failureNode));
             // --- 修复结束 ---
         }
 
-        // (新) 只有在选择成功时才添加历史记录
-        state.getChoiceHistory().add(chosenChoice.getText());
-        updateAttributes(state.getAttributes(), chosenChoice.getAttributeChanges());
-        state.setCurrentNodeId(chosenChoice.getNextNodeId());
-        stateRepository.save(state); // 保存到数据库
+        // (新) 只有在选择成功时才添加历史记录：只插入一行（由 GameEventStore 写入）
+        state = record(username, state, GameEvent.choice(state, graph.getVersion(), choiceId, choiceOrdinal));
+        int nextOrdinal = state.getCurrentNodeOrdinal();
 
-        GameNode nextNode = gameRepository.findNodeById(state.getCurrentNodeId())
-                .orElseThrow(() -> new IllegalStateException("无效的下一个游戏节点ID"));
-        return ResponseEntity.ok(nextNode);
+        if (nextOrdinal == CompiledStoryGraph.NOT_FOUND) {
+            throw new IllegalStateException("无效的下一个游戏节点ID");
+        }
+        if (baseHash != null && baseHash.equals(gameRepository.payloadAt(graph, nodeOrdinal).getHash())) {
+            return ResponseEntity.ok(gameRepository.deltaAt(graph, nodeOrdinal, choiceOrdinal));
+        }
+        return ResponseEntity.ok(gameRepository.payloadAt(graph, nextOrdinal));
     }
 
     /**
      * 重置游戏
      */
     @Transactional
-    @CacheEvict(value = "gameState", key = "#username")
     public GameNode resetGame(String username) {
         GameState state = getOrCreateGameState(username);
+        state = record(username, state, GameEvent.attributes(state, GameEvent.Type.RESET, new PlayerAttributes()));
+        return getNodeById(state.getStoryId(), state.getCurrentNodeId());
+    }
 
-        state.setCurrentNodeId("START");
-        state.setLastSaveNodeId("START");
-        state.setAttributes(new PlayerAttributes());
-        state.getChoiceHistory().clear();
+    /**
+     * 切换到另一个故事并从头开始（重新掷骰，清空历史）
+     */
+    @Transactional
+    public GameNode startStory(String username, String storyId) {
+        gameRepository.getGraph(storyId); // 故事不存在时抛出 IllegalArgumentException
+        GameState state = getOrCreateGameState(username);
+        state = record(username, state, GameEvent.startStory(state, storyId, new PlayerAttributes()));
+        return getNodeById(state.getStoryId(), state.getCurrentNodeId());
+    }
 
-        stateRepository.save(state);
+    /**
+     * (新) 按当前的故事图从头重放玩家的全部事件得到的状态（不保存），评分规则修改后用来重新生成报告
+     */
+    @Transactional(readOnly = true)
+    public GameState replayGameState(String username) {
+        GameState active = sessionStore.get(username);
+        if (active != null) {
+            replicaRouting.requirePrimaryIfModifiedSince(active.getModifiedAt()); // 副本上可能还没有最近的事件
+        }
+        User user = findUser(username);
+        dataSource.useShardOf(user.getId());
+        GameState row = stateRepository.findById(user.getId())
+                .orElseThrow(() -> new IllegalArgumentException("玩家还没有开始游戏: " + username));
+        return eventStore.replayAll(row);
+    }
+
+    /**
+     * 可用的故事以及故事目录、活跃会话的缓存统计
+     * (新) 以及各数据库连接池的统计（主库、副本、延迟、分片）
+     */
+    public Map<String, Object> getStoryCatalog() throws IOException {
+        return Map.of(
+                "defaultStoryId", gameRepository.getDefaultStoryId(),
+                "stories", gameRepository.listStoryIds(),
+                "stats", gameRepository.catalogStats(),
+                "sessions", sessionStore.stats(),
+                "datasource", dataSource.stats()
+        );
+    }
+
+    /**
+     * 保存游戏进度到存档位（同名时覆盖）
+     * (新) 存档是状态的完整副本；选择历史只记录链头，保存的时间和大小与已经玩了多久无关
+     */
+    @Transactional
+    public boolean saveGame(String username, String slot) {
+        checkSlotName(slot);
+        GameState state = getOrCreateGameState(username);
+        if (!slotRepository.existsById(new GameSaveSlot.Key(state.getId(), slot))
+                && slotRepository.countByUserId(state.getId()) >= MAX_SAVE_SLOTS) {
+            throw new IllegalArgumentException("存档位已满（最多 " + MAX_SAVE_SLOTS + " 个），请覆盖或删除已有的存档");
+        }
+        state = record(username, state, GameEvent.of(state, GameEvent.Type.SAVE));
+        slotRepository.save(new GameSaveSlot(state, slot, GameStateJson.write(objectMapper, state)));
+        return true;
+    }
+
+    /**
+     * 读取存档位：节点、属性、剧情标记、到达过的节点和选择历史都回到保存时的样子
+     * 之后的选择从存档的历史链头继续，原来的历史行保留（其他存档可能还在使用）
+     */
+    @Transactional
+    public GameNode loadGame(String username, String slot) {
+        checkSlotName(slot);
+        GameState state = getOrCreateGameState(username);
+        GameSaveSlot saved = slotRepository.findById(new GameSaveSlot.Key(state.getId(), slot)).orElse(null);
+        if (saved == null) {
+            if (!QUICK_SLOT.equals(slot)) {
+                throw new IllegalArgumentException("存档不存在: " + slot);
+            }
+            // 存档位之前的存档只记录了节点
+            state = record(username, state, GameEvent.of(state, GameEvent.Type.LOAD));
+        } else {
+            gameRepository.getGraph(saved.getStoryId()); // 故事已不存在时抛出 IllegalArgumentException
+            state = record(username, state, GameEvent.loadSlot(state, saved.getState()));
+        }
+        return getNodeById(state.getStoryId(), state.getCurrentNodeId());
+    }
 
-        return gameRepository.findNodeById(state.getCurrentNodeId()).get();
+    /**
+     * (新) 玩家的存档列表，最近保存的在前
+     */
+    @Transactional(readOnly = true)
+    public List<Map<String, Object>> listSaves(String username) {
+        GameState state = getOrCreateGameState(username);
+        replicaRouting.requirePrimaryIfModifiedSince(state.getModifiedAt()); // 刚保存的存档在副本上可能还读不到
+        List<Map<String, Object>> saves = new ArrayList<>();
+        for (GameSaveSlot saved : slotRepository.findByUserIdOrderBySavedAtDesc(state.getId())) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("slot", saved.getSlot());
+            item.put("storyId", saved.getStoryId());
+            item.put("nodeId", saved.getNodeId());
+            item.put("historyLength", saved.getHistoryLength());
+            item.put("savedAt", saved.getSavedAt());
+            saves.add(item);
+        }
+        return saves;
     }
 
     /**
-     * 保存游戏进度
+     * (新) 删除存档位（只删除存档，历史行保留）
+     * @return 存档是否存在
      */
     @Transactional
-    @CacheEvict(value = "gameState", key = "#username")
-    public boolean saveGame(String username) {
+    public boolean deleteSave(String username, String slot) {
+        checkSlotName(slot);
         GameState state = getOrCreateGameState(username);
-        state.setLastSaveNodeId(state.getCurrentNodeId());
-        stateRepository.save(state);
+        GameSaveSlot.Key key = new GameSaveSlot.Key(state.getId(), slot);
+        if (!slotRepository.existsById(key)) {
+            return false;
+        }
+        slotRepository.deleteById(key);
         return true;
     }
 
     /**
-     * 读取游戏进度
+     * (新) 回退最近的 steps 次选择：节点、属性、剧情标记、到达过的节点和选择历史回到那次选择之前
+     * 之后的选择开始新的分支（被回退的历史行保留，存档可能还在使用）
      */
     @Transactional
-    @CacheEvict(value = "gameState", key = "#username")
-    public GameNode loadGame(String username) {
+    public GameNode rewind(String username, int steps) {
+        GameState state = getOrCreateGameState(username);
+        String rewound = eventStore.rewound(state, steps); // 次数不够时抛出 IllegalArgumentException
+        state = record(username, state, GameEvent.rewind(state, steps, rewound));
+        return getNodeById(state.getStoryId(), state.getCurrentNodeId());
+    }
+
+    /**
+     * (新) 可以回退的选择次数
+     */
+    public int getRewindableSteps(String username) {
+        return eventStore.rewindable(getOrCreateGameState(username));
+    }
+
+    private static void checkSlotName(String slot) {
+        if (slot == null || !SLOT_NAME.matcher(slot).matches()) {
+            throw new IllegalArgumentException("无效的存档位名称（1-32 个字母、数字、_ 或 -）: " + slot);
+        }
+    }
+
+    /**
+     * (新) 本轮游戏的选择历史（一页），按主键范围读取
+     * @return 选项文字，按选择的先后顺序
+     */
+    @Transactional(readOnly = true)
+    public List<String> getChoiceHistory(String username, int page, int size) {
+        if (page < 0 || size <= 0 || size > MAX_HISTORY_PAGE) {
+            throw new IllegalArgumentException("无效的分页参数: page=" + page + ", size=" + size);
+        }
+        eventStore.flushPending();
         GameState state = getOrCreateGameState(username);
-        String savedNodeId = state.getLastSaveNodeId();
-        if (savedNodeId == null || savedNodeId.isEmpty()) {
-            savedNodeId = "START";
+        replicaRouting.requirePrimaryIfModifiedSince(state.getModifiedAt()); // 刚写入的历史在副本上可能还读不到
+        long from = (long) page * size;
+        if (from >= state.getHistoryLength()) {
+            return List.of();
+        }
+        int to = (int) Math.min(state.getHistoryLength(), from + size);
+        return describeChoices(historyRange(state, (int) from, to));
+    }
+
+    /**
+     * (新) 本轮游戏的全部选择历史（生成报告时使用）
+     */
+    @Transactional(readOnly = true)
+    public List<String> getFullChoiceHistory(GameState state) {
+        if (state.getHistoryLength() == 0) {
+            return List.of();
         }
-        state.setCurrentNodeId(savedNodeId);
-        stateRepository.save(state);
-        return getNodeById(savedNodeId);
+        eventStore.flushPending();
+        replicaRouting.requirePrimaryIfModifiedSince(state.getModifiedAt());
+        return describeChoices(historyRange(state, 0, state.getHistoryLength()));
+    }
+
+    /**
+     * (新) 本轮历史中第 [from, to) 条（按选择的先后顺序）对应的行
+     * 最近的 historyLength - historyBase 条的 seq 是连续的，直接按主键范围读取；
+     * 更早的部分（读过档时才有）沿 prev_seq 往前找每个连续段的起点，每段一次查询
+     */
+    private List<ChoiceLogEntry> historyRange(GameState state, int from, int to) {
+        Long userId = state.getId();
+        List<int[]> runs = new ArrayList<>(); // {第一条的位置, 第一条的 seq, 条数}，从新到旧
+        int position = state.getHistoryLength();
+        int head = state.getHistoryHead();
+        int known = state.getHistoryLength() - state.getHistoryBase();
+        while (position > from) {
+            int run;
+            ChoiceLogEntry start = null;
+            if (known > 0) {
+                run = Math.min(known, position);
+                known = 0;
+            } else {
+                ChoiceLogEntry fork = choiceLogRepository
+                        .findFirstByUserIdAndSeqBetweenAndPrevSeqIsNotNullOrderBySeqDesc(userId, head - position + 1, head)
+                        .orElse(null);
+                run = fork != null ? head - fork.getSeq() + 1 : position;
+                start = fork;
+            }
+            runs.add(new int[]{position - run, head - run + 1, run});
+            position -= run;
+            if (position > from) {
+                if (start == null) {
+                    start = choiceLogRepository.findById(new ChoiceLogEntry.Key(userId, head - run + 1))
+                            .orElseThrow(() -> new IllegalStateException("玩家 " + userId + " 的选择历史不完整"));
+                }
+                head = start.getPrevSeq() != null ? start.getPrevSeq() : start.getSeq() - 1;
+            }
+        }
+        List<ChoiceLogEntry> entries = new ArrayList<>(to - from);
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            int[] r = runs.get(i);
+            int first = Math.max(from, r[0]);
+            int last = Math.min(to, r[0] + r[2]) - 1;
+            if (first <= last) {
+                entries.addAll(choiceLogRepository.findByUserIdAndSeqBetweenOrderBySeq(
+                        userId, r[1] + first - r[0], r[1] + last - r[0]));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 把历史记录中的选项还原为文字
+     * 序号处的选项编码与记录的编码相同时直接按序号取（故事的 version 是手动修改的，热加载时可能没变，
+     * 只比较版本号不能发现选项被调整了顺序）；否则按稳定编码重新查找，选项已被删除时给出提示。
+     * 没有编码的旧记录只能按版本号判断
+     */
+    private List<String> describeChoices(List<ChoiceLogEntry> entries) {
+        List<String> texts = new ArrayList<>(entries.size());
+        Map<String, CompiledStoryGraph> graphs = new HashMap<>();
+        for (ChoiceLogEntry entry : entries) {
+            CompiledStoryGraph graph;
+            try {
+                graph = graphs.computeIfAbsent(String.valueOf(entry.getStoryId()),
+                        id -> gameRepository.getGraph(entry.getStoryId()));
+            } catch (IllegalArgumentException e) {
+                texts.add("（故事已不存在）");
+                continue;
+            }
+            int ordinal = entry.getChoiceOrdinal();
+            boolean sameChoice = ordinal >= 0 && ordinal < graph.choiceCount()
+                    && (entry.getChoiceCode() != CompiledStoryGraph.NO_CODE
+                    ? graph.choiceCodeAt(ordinal) == entry.getChoiceCode()
+                    : graph.getVersion() == entry.getStoryVersion());
+            if (!sameChoice) {
+                ordinal = CompiledStoryGraph.NOT_FOUND;
+            }
+            if (ordinal == CompiledStoryGraph.NOT_FOUND && entry.getChoiceCode() != CompiledStoryGraph.NO_CODE) {
+                ordinal = graph.findChoiceByCode(entry.getChoiceCode());
+            }
+            if (ordinal != CompiledStoryGraph.NOT_FOUND) {
+                texts.add(graph.choiceAt(ordinal).getText());
+            } else {
+                texts.add("（故事已更新，无法显示这一步的选项）");
+            }
+        }
+        return texts;
     }
 
     // --- 私有辅助方法 ---
 
-    private GameNode getNodeById(String nodeId) {
-        return gameRepository.findNodeById(nodeId)
+    /**
+     * 修改状态并写入活跃会话（write-through）
+     * 先写入会话再修改：修改或所在事务失败时会话被移除，下次从数据库重新读取
+     */
+    private GameState record(String username, GameState state, GameEvent event) {
+        sessionStore.put(username, state);
+        GameState updated = eventStore.record(state, event);
+        if (updated != state) {
+            sessionStore.put(username, updated); // entity 模式下 save 返回合并后的实体
+        }
+        return updated;
+    }
+
+    private GameNode getNodeById(String storyId, String nodeId) {
+        return gameRepository.findNodeById(storyId, nodeId)
                 .orElseThrow(() -> new IllegalStateException("无效的游戏节点ID: " + nodeId));
     }
 
-    private boolean checkAttributes(PlayerAttributes playerAttrs, Map<String, Integer> requiredAttrs) {
-        if (requiredAttrs == null || requiredAttrs.isEmpty()) {
+    /**
+     * 按预编译的属性要求向量判定（不做字符串比较，也不分配对象）
+     */
+    private boolean checkAttributes(PlayerAttributes playerAttrs, CompiledStoryGraph graph, int choiceOrdinal) {
+        if (!graph.hasRequirements(choiceOrdinal)) {
             return true;
         }
-        for (Map.Entry<String, Integer> entry : requiredAttrs.entrySet()) {
-            if (playerAttrs.getAttribute(entry.getKey()) < entry.getValue()) {
+        for (int attr = 0; attr < graph.attributeCount(); attr++) {
+            int required = graph.requirement(choiceOrdinal, attr);
+            if (required != CompiledStoryGraph.NO_REQUIREMENT && playerAttrs.getAttribute(attr) < required) {
                 return false;
             }
         }
         return true;
     }
-
-    private void updateAttributes(PlayerAttributes playerAttrs, Map<String, Integer> attributeChanges) {
-        if (attributeChanges == null || attributeChanges.isEmpty()) {
-            return;
-        }
-        for (Map.Entry<String, Integer> entry : attributeChanges.entrySet()) {
-            playerAttrs.changeAttribute(entry.getKey(), entry.getValue());
-        }
-    }
 }
\ No newline at end of file
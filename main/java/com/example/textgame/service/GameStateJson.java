@@ -0,0 +1,100 @@
+package com.example.textgame.service;
+
+import com.example.textgame.model.GameState;
+import com.example.textgame.model.PlayerAttributes;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * (新) 游戏状态中可变部分的 JSON 形式，用于状态快照、预写日志和存档位
+ * 不包含玩家ID和事件序号，由调用方分别保存
+ */
+final class GameStateJson {
+
+    private GameStateJson() {
+    }
+
+    static String write(ObjectMapper mapper, GameState state) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("storyId", state.getStoryId());
+        json.put("version", state.getVersion());
+        json.put("currentNodeId", state.getCurrentNodeId());
+        json.put("lastSaveNodeId", state.getLastSaveNodeId());
+        json.put("attributes", state.getAttributes().toArray());
+        json.put("historyHead", state.getHistoryHead());
+        json.put("historyLength", state.getHistoryLength());
+        json.put("historyBase", state.getHistoryBase());
+        json.put("historyEnd", state.getHistoryEnd());
+        json.put("flags", state.getFlags());
+        json.put("visitedNodes", state.getVisitedNodes());
+        try {
+            return mapper.writeValueAsString(json);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("无法序列化游戏状态: " + state.getId(), e);
+        }
+    }
+
+    /**
+     * 把 JSON 中的值写入 state；集合在原对象上修改，已加载的实体只会更新有变化的行
+     */
+    static void read(ObjectMapper mapper, String text, GameState state) {
+        JsonNode json = parse(mapper, text, state);
+        state.setVersion(json.path("version").asLong());
+        state.setHistoryEnd(json.path("historyEnd").asInt());
+        readProgress(json, state);
+    }
+
+    /**
+     * (新) 读档：只恢复游戏进度；版本号（ETag）和 historyEnd（下一行历史的 seq）继续递增，不回退
+     */
+    static void readSlot(ObjectMapper mapper, String text, GameState state) {
+        readProgress(parse(mapper, text, state), state);
+    }
+
+    private static JsonNode parse(ObjectMapper mapper, String text, GameState state) {
+        try {
+            return mapper.readTree(text);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("无法解析游戏状态: " + state.getId(), e);
+        }
+    }
+
+    private static void readProgress(JsonNode json, GameState state) {
+        state.setStoryId(json.path("storyId").isNull() ? null : json.path("storyId").asText(null));
+        state.setCurrentNodeId(json.path("currentNodeId").asText());
+        state.setLastSaveNodeId(json.path("lastSaveNodeId").asText());
+        JsonNode attributes = json.path("attributes");
+        int[] values = new int[attributes.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = attributes.get(i).asInt();
+        }
+        state.setAttributes(PlayerAttributes.of(values));
+        if (json.has("historyHead")) {
+            state.setHistoryHead(json.path("historyHead").asInt());
+            state.setHistoryLength(json.path("historyLength").asInt());
+            state.setHistoryBase(json.path("historyBase").asInt());
+        } else {
+            // 存档位之前的格式: 本轮历史是连续的 [historyStart, historyEnd)
+            int start = json.path("historyStart").asInt();
+            int end = json.path("historyEnd").asInt();
+            state.setHistoryHead(end > start ? end - 1 : -1);
+            state.setHistoryLength(end - start);
+            state.setHistoryBase(0);
+        }
+        readSet(json.path("flags"), state.getFlags());
+        readSet(json.path("visitedNodes"), state.getVisitedNodes());
+        state.setCurrentNodeOrdinal(-1);
+    }
+
+    private static void readSet(JsonNode array, Set<String> target) {
+        target.clear();
+        for (JsonNode item : array) {
+            target.add(item.asText());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.textgame.service;
+
+import com.example.textgame.model.GameState;
+import com.example.textgame.repository.GameStateRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.OptimisticLockException;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * (新) 把脱离持久化上下文的状态写入 game_state：一条带版本号条件的 UPDATE，加上剧情标记和到达过的节点中增加、删除的行
+ * 与上一次读取或写入时记下的内容比较（见 GameState.markPersisted），不需要先查询数据库（merge 会先查询这一行和两个集合表）。
+ * 版本号（@Version）的检查在这条 UPDATE 中；状态不在持久化上下文中，Hibernate 不会按自己递增的版本号再写一次，
+ * 所以数据库中的版本号就是会话中的版本号（ETag 不会因为重新加载而变小）
+ * entity 模式保存活跃会话、write-behind 模式写入待写入的修改时使用
+ */
+final class GameStateWriter {
+
+    private final GameStateRepository stateRepository;
+    private final EntityManager entityManager;
+
+    GameStateWriter(GameStateRepository stateRepository, EntityManager entityManager) {
+        this.stateRepository = stateRepository;
+        this.entityManager = entityManager;
+    }
+
+    /**
+     * 读出的行脱离持久化上下文，并记下数据库中的集合内容；之后对它的修改只能由 write 写入
+     */
+    GameState detach(GameState row) {
+        entityManager.detach(row);
+        row.markPersisted();
+        return row;
+    }
+
+    /**
+     * @param expected 数据库中应有的版本号（读取状态时的版本号）
+     * @throws OptimisticLockException 读取之后数据库中的行被改过（例如 NodeIdMigration）或已不存在
+     */
+    void write(GameState state, long expected) {
+        Long id = state.getId();
+        if (stateRepository.updateState(state, expected) == 0) {
+            throw new OptimisticLockException("玩家 " + id + " 的游戏状态已被修改，请重试", null, state);
+        }
+        writeRows(state.getPersistedFlags(), state.getFlags(),
+                () -> stateRepository.deleteFlags(id),
+                flag -> stateRepository.insertFlag(id, flag),
+                flag -> stateRepository.deleteFlag(id, flag));
+        writeRows(state.getPersistedVisitedNodes(), state.getVisitedNodes(),
+                () -> stateRepository.deleteVisitedNodes(id),
+                nodeId -> stateRepository.insertVisitedNode(id, nodeId),
+                nodeId -> stateRepository.deleteVisitedNode(id, nodeId));
+        state.markPersisted();
+    }
+
+    /**
+     * persisted 为 null（数据库中的内容未知）时先删除全部行，再插入 current 中的全部值
+     */
+    private static void writeRows(Set<String> persisted, Set<String> current,
+                                  Runnable deleteAll, Consumer<String> insert, Consumer<String> delete) {
+        if (persisted == null) {
+            deleteAll.run();
+            persisted = Set.of();
+        }
+        for (String value : persisted) {
+            if (!current.contains(value)) {
+                delete.accept(value);
+            }
+        }
+        for (String value : current) {
+            if (!persisted.contains(value)) {
+                insert.accept(value);
+            }
+        }
+    }
+}
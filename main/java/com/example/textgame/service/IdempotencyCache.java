@@ -0,0 +1,227 @@
+package com.example.textgame.service;
+
+import com.example.textgame.dto.NodePayload;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * (新) 带 Idempotency-Key 的游戏命令的第一次响应
+ * 1. 按 (用户名, Idempotency-Key) 保存响应的状态码、响应头和响应体，超过有效期后失效
+ * 2. game.idempotency.store=memory：保存在本实例内，最多 max-entries 条，超过时先移除最早保存的；
+ *    game.idempotency.store=redis：保存在 Redis 中（多个实例共用），过期由 Redis 处理
+ * 3. 只保存状态码小于 500 的响应：服务器错误的请求重试时重新执行
+ * 4. (新) gzip 压缩的响应保存为未压缩的表示，重放时按重试请求的 Accept-Encoding 重新选择（请求摘要中没有 Accept-Encoding）
+ * 响应体统一保存为字节（对象按 JSON 序列化），重放时不需要知道原来的类型。
+ */
+@Service
+public class IdempotencyCache {
+
+    private static final String REDIS_PREFIX = "game:idempotency:";
+
+    private final ObjectMapper objectMapper;
+    private final RedisTemplate<String, Object> redisTemplate;
+    private final boolean useRedis;
+    private final Duration ttl;
+    private final int maxEntries;
+    // 插入顺序 = 过期顺序（有效期相同），由 this 保护
+    private final LinkedHashMap<String, StoredResponse> local = new LinkedHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    public IdempotencyCache(ObjectMapper objectMapper, RedisTemplate<String, Object> redisTemplate,
+                            @Value("${game.idempotency.store:memory}") String store,
+                            @Value("${game.idempotency.ttl-minutes:10}") long ttlMinutes,
+                            @Value("${game.idempotency.max-entries:10000}") int maxEntries) {
+        if (!store.equals("memory") && !store.equals("redis")) {
+            throw new IllegalArgumentException("未知的 game.idempotency.store: " + store + "（可选 memory、redis）");
+        }
+        if (ttlMinutes < 1 || maxEntries < 1) {
+            throw new IllegalArgumentException("无效的幂等缓存配置: ttl-minutes=" + ttlMinutes + ", max-entries=" + maxEntries);
+        }
+        this.objectMapper = objectMapper;
+        this.redisTemplate = redisTemplate;
+        this.useRedis = store.equals("redis");
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 保存的响应
+     * @param request 第一次请求的内容摘要，同一个 key 用于不同请求时不重放
+     */
+    public record StoredResponse(String request, int status, LinkedHashMap<String, List<String>> headers,
+                                 byte[] body, long expiresAt) implements Serializable {
+
+        /**
+         * @param gzip 重试的请求接受 gzip：随 Accept-Encoding 变化（Vary）的响应压缩后返回，ETag 换成 gzip 表示的；
+         *             其他响应原样返回
+         */
+        public ResponseEntity<byte[]> toResponse(boolean gzip) {
+            HttpHeaders replayed = new HttpHeaders();
+            headers.forEach(replayed::addAll);
+            replayed.set("Idempotent-Replayed", "true");
+            if (!gzip || body == null || replayed.getVary().stream().noneMatch(HttpHeaders.ACCEPT_ENCODING::equalsIgnoreCase)) {
+                return ResponseEntity.status(status).headers(replayed).body(body);
+            }
+            replayed.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            if (replayed.getETag() != null) {
+                replayed.setETag(NodePayload.gzipEtagOf(replayed.getETag()));
+            }
+            return ResponseEntity.status(status).headers(replayed).body(NodePayload.gzip(body));
+        }
+    }
+
+    /**
+     * 之前保存的响应；没有或已过期时返回 null
+     */
+    public StoredResponse get(String username, String key) {
+        StoredResponse stored = useRedis ? redisGet(username, key) : localGet(username + ":" + key);
+        if (stored == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return stored;
+    }
+
+    /**
+     * 保存第一次执行的响应（状态码 >= 500 时不保存）
+     */
+    public void put(String username, String key, String request, ResponseEntity<?> response) {
+        if (response.getStatusCode().is5xxServerError()) {
+            return;
+        }
+        HttpHeaders headers = response.getHeaders();
+        byte[] body;
+        Object value = response.getBody();
+        MediaType type = null;
+        if (value == null || value instanceof byte[]) {
+            body = (byte[]) value;
+        } else if (value instanceof String text) {
+            body = text.getBytes(StandardCharsets.UTF_8);
+            type = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+        } else {
+            try {
+                body = objectMapper.writeValueAsBytes(value);
+            } catch (JsonProcessingException e) {
+                System.err.println("无法保存幂等响应 " + key + ": " + e.getMessage()); // 重试时重新执行
+                return;
+            }
+            type = MediaType.APPLICATION_JSON;
+        }
+        boolean gzipped = body != null && "gzip".equalsIgnoreCase(headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+        if (gzipped) {
+            try {
+                body = gunzip(body);
+            } catch (IOException e) {
+                System.err.println("无法保存幂等响应 " + key + ": " + e.getMessage()); // 重试时重新执行
+                return;
+            }
+        }
+        LinkedHashMap<String, List<String>> copy = new LinkedHashMap<>();
+        headers.forEach((name, values) -> {
+            if (gzipped && name.equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING)) {
+                return;
+            }
+            if (gzipped && name.equalsIgnoreCase(HttpHeaders.ETAG)) {
+                values = values.stream().map(NodePayload::etagOfGzip).toList();
+            }
+            copy.put(name, new ArrayList<>(values));
+        });
+        if (type != null && headers.getContentType() == null) {
+            copy.put(HttpHeaders.CONTENT_TYPE, new ArrayList<>(List.of(type.toString())));
+        }
+        StoredResponse stored = new StoredResponse(request, response.getStatusCode().value(), copy, body,
+                System.currentTimeMillis() + ttl.toMillis());
+        if (useRedis) {
+            redisPut(username, key, stored);
+        } else {
+            localPut(username + ":" + key, stored);
+        }
+        stores.increment();
+    }
+
+    public Map<String, Object> stats() {
+        int size;
+        synchronized (this) {
+            size = local.size();
+        }
+        return Map.of(
+                "store", useRedis ? "redis" : "memory",
+                "entries", size,
+                "hits", hits.sum(),
+                "misses", misses.sum(),
+                "stores", stores.sum()
+        );
+    }
+
+    private synchronized StoredResponse localGet(String id) {
+        StoredResponse stored = local.get(id);
+        if (stored != null && stored.expiresAt() <= System.currentTimeMillis()) {
+            local.remove(id);
+            return null;
+        }
+        return stored;
+    }
+
+    private synchronized void localPut(String id, StoredResponse stored) {
+        local.remove(id); // 重新插入到末尾，保持插入顺序 = 过期顺序
+        local.put(id, stored);
+        long now = System.currentTimeMillis();
+        Iterator<StoredResponse> oldest = local.values().iterator();
+        while (oldest.hasNext()) {
+            StoredResponse head = oldest.next();
+            if (local.size() <= maxEntries && head.expiresAt() > now) {
+                break;
+            }
+            oldest.remove();
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Redis 不可用时当作没有保存过：命令仍然执行，只是重试不能去重
+     */
+    private StoredResponse redisGet(String username, String key) {
+        try {
+            return (StoredResponse) redisTemplate.opsForValue().get(REDIS_PREFIX + username + ":" + key);
+        } catch (RuntimeException e) {
+            System.err.println("读取幂等响应失败: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void redisPut(String username, String key, StoredResponse stored) {
+        try {
+            redisTemplate.opsForValue().set(REDIS_PREFIX + username + ":" + key, stored, ttl);
+        } catch (RuntimeException e) {
+            System.err.println("保存幂等响应失败: " + e.getMessage());
+        }
+    }
+}
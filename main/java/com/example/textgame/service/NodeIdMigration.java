@@ -0,0 +1,552 @@
+package com.example.textgame.service;
+
+import com.example.textgame.config.ShardRoutingDataSource;
+import com.example.textgame.repository.CompiledStoryGraph;
+import com.example.textgame.repository.InMemoryGameRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * (新) 故事修改后迁移玩家所在的节点ID（game.node-migration.enabled=true 时在启动后于后台执行）
+ * 1. 映射表 {旧节点ID: 新节点ID} 来自 mapping-file（JSON 对象），新ID必须在当前的故事图中存在
+ * 2. 用服务端游标按 user_id 顺序流式读取 current_node_id 或 last_save_node_id 在映射表中的行，整张表不会读进内存
+ * 3. 每 batch-size 行用一次 JDBC 批量更新写入并提交（短事务，只锁这一批行）；每一列只在仍然是读到的旧值时修改，
+ *    读取之后被玩家改过的列保留玩家的新值
+ * 4. 按 rows-per-second 限速；每批提交后把最后一个 user_id 写入检查点文件，中断后从检查点继续
+ * 游戏照常进行，不需要停机。迁移过的玩家的内存会话被移除，下次从数据库读取新的节点ID；
+ * 移除之前已经读取了旧会话的命令在写入时版本号不一致，整个事务回滚（见 GameEventStore.record）。
+ * write-behind 模式下迁移期间内存中的会话和待写入的状态也换成新ID（见 NodeIdMapping）。
+ * (新) 分片时逐个分片迁移，每个分片有自己的检查点。
+ * (新) 到达过的节点（game_visited_node，供 visited(X) 判断）在更新 game_state 的同一批、同一个事务中迁移；
+ * 只有到达过旧节点的玩家也会被读取，game_state 的行只递增版本号。
+ * (新) game_state 之后迁移存档位（game_save_slot 的 node_id 列和 state 中的节点ID），同样流式读取、分批提交、限速，
+ * 按 (user_id, slot) 记录检查点；只修改读取之后没有被重新保存（saved_at 未变）的存档。
+ */
+@Service
+public class NodeIdMigration {
+
+    private static final String UPDATE = "UPDATE game_state SET"
+            + " current_node_id = CASE WHEN current_node_id = ? THEN ? ELSE current_node_id END,"
+            + " last_save_node_id = CASE WHEN last_save_node_id = ? THEN ? ELSE last_save_node_id END,"
+            + " state_version = state_version + 1"
+            + " WHERE user_id = ? AND (current_node_id = ? OR last_save_node_id = ? OR ? = 1)";
+
+    private static final String DELETE_VISITED = "DELETE FROM game_visited_node WHERE user_id = ? AND node_id = ?";
+    private static final String INSERT_VISITED = "INSERT INTO game_visited_node (user_id, node_id) VALUES (?, ?)";
+
+    private static final String UPDATE_SLOT = "UPDATE game_save_slot SET node_id = ?, state = ?"
+            + " WHERE user_id = ? AND slot = ? AND saved_at = ?";
+
+    private final boolean enabled;
+    private final String storyId;
+    private final String mappingFile;
+    private final int batchSize;
+    private final int rowsPerSecond;
+    private final Path checkpointFile;
+    private final String stateStore;
+    private final ShardRoutingDataSource shardRouting;
+    private final InMemoryGameRepository gameRepository;
+    private final ActiveSessionStore sessionStore;
+    private final GameEventStore eventStore;
+    private final ObjectMapper objectMapper;
+    private Thread worker;
+    private volatile boolean stopping;
+
+    public NodeIdMigration(@Value("${game.node-migration.enabled:false}") boolean enabled,
+                           @Value("${game.node-migration.story-id:}") String storyId,
+                           @Value("${game.node-migration.mapping-file:}") String mappingFile,
+                           @Value("${game.node-migration.batch-size:500}") int batchSize,
+                           @Value("${game.node-migration.rows-per-second:2000}") int rowsPerSecond,
+                           @Value("${game.node-migration.checkpoint-file:./data/node-migration.checkpoint}") String checkpointFile,
+                           @Value("${game.state-store:entity}") String stateStore,
+                           ShardRoutingDataSource shardRouting,
+                           InMemoryGameRepository gameRepository,
+                           ActiveSessionStore sessionStore,
+                           GameEventStore eventStore,
+                           ObjectMapper objectMapper) {
+        if (batchSize < 1 || rowsPerSecond < 0) {
+            throw new IllegalArgumentException("无效的节点迁移配置: batch-size=" + batchSize + ", rows-per-second=" + rowsPerSecond);
+        }
+        this.enabled = enabled;
+        this.storyId = storyId;
+        this.mappingFile = mappingFile;
+        this.batchSize = batchSize;
+        this.rowsPerSecond = rowsPerSecond;
+        this.checkpointFile = Path.of(checkpointFile);
+        this.stateStore = stateStore;
+        this.shardRouting = shardRouting;
+        this.gameRepository = gameRepository;
+        this.sessionStore = sessionStore;
+        this.eventStore = eventStore;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * 迁移的结果
+     * @param skipped 读取之后两列都被玩家修改过、没有更新的行
+     * @param lastUserId 最后处理的库（分片时为最后一个分片）的检查点
+     * @param slotsUpdated 更新的存档位
+     */
+    public record Result(long scanned, long updated, long skipped, long lastUserId, long slotsUpdated, long elapsedMs) {
+    }
+
+    /**
+     * 检查映射表后在后台线程中执行；映射表有误时让应用启动失败
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (stateStore.equals("events")) {
+            // 事件模式下 game_state 只是创建玩家时的初始行，节点ID在快照和事件中
+            throw new IllegalStateException("game.state-store=events 时不能迁移 game_state 中的节点ID");
+        }
+        String story = storyId.isEmpty() ? gameRepository.getDefaultStoryId() : storyId;
+        Map<String, String> mapping = readMapping(gameRepository.getGraph(story));
+        if (mapping.isEmpty()) {
+            System.out.println("节点映射表为空，不需要迁移: " + mappingFile);
+            return;
+        }
+        worker = new Thread(() -> {
+            try {
+                Result result = migrate(story, mapping);
+                System.out.println("节点ID迁移" + (stopping ? "已暂停" : "完成") + ": 扫描 " + result.scanned()
+                        + " 行, 更新 " + result.updated() + " 行, 跳过 " + result.skipped() + " 行（期间被修改）, 用时 "
+                        + result.elapsedMs() + " ms, 检查点 user_id = " + result.lastUserId()
+                        + ", 更新存档位 " + result.slotsUpdated() + " 个");
+            } catch (SQLException | IOException | RuntimeException e) {
+                System.err.println("节点ID迁移失败，下次启动时从检查点继续: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "node-id-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (worker == null) {
+            return;
+        }
+        stopping = true; // 提交当前这一批后退出（不中断线程，避免打断正在进行的 JDBC 调用）
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * 读取并检查映射表：新ID必须在当前的故事图中存在；旧ID仍然存在时（例如改成了别名）照样迁移
+     */
+    private Map<String, String> readMapping(CompiledStoryGraph graph) throws IOException {
+        if (mappingFile.isEmpty()) {
+            throw new IllegalStateException("没有配置 game.node-migration.mapping-file");
+        }
+        Map<String, String> mapping;
+        try (Reader in = Files.newBufferedReader(Path.of(mappingFile), StandardCharsets.UTF_8)) {
+            mapping = objectMapper.readValue(in, new TypeReference<LinkedHashMap<String, String>>() { });
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : mapping.entrySet()) {
+            if (entry.getValue() == null || graph.ordinalOf(entry.getValue()) == CompiledStoryGraph.NOT_FOUND) {
+                throw new IllegalStateException("节点映射 " + entry.getKey() + " -> " + entry.getValue()
+                        + " 的目标不在故事 " + graph.getStoryId() + " v" + graph.getVersion() + " 中");
+            }
+            if (entry.getKey().equals(entry.getValue())) {
+                continue;
+            }
+            if (graph.ordinalOf(entry.getKey()) != CompiledStoryGraph.NOT_FOUND) {
+                System.out.println("节点 " + entry.getKey() + " 在当前故事中仍然有效，仍按映射迁移到 " + entry.getValue());
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * 从检查点开始迁移一个故事中的玩家
+     */
+    Result migrate(String story, Map<String, String> mapping) throws SQLException, IOException, InterruptedException {
+        NodeIdMapping remap = new NodeIdMapping(story, story.equals(gameRepository.getDefaultStoryId()), mapping);
+        eventStore.remapNodeIds(remap);
+        try {
+            eventStore.flushPending(); // write-behind 模式下先写入内存中的修改，数据库中的行才是最新的
+            Properties checkpoint = readCheckpoint(story + " " + mapping.hashCode());
+            long[] progress = new long[5]; // {扫描, 更新, 跳过, 检查点, 更新的存档位}
+            long start = System.nanoTime();
+            for (Map.Entry<String, DataSource> shard : shardRouting.playerDataSources().entrySet()) {
+                if (stopping) {
+                    break;
+                }
+                String suffix = shard.getKey() == null ? "" : "." + shard.getKey();
+                migrate(shard.getValue(), story, mapping, remap, checkpoint, "lastUserId" + suffix, progress, start);
+                if (!stopping) {
+                    migrateSlots(shard.getValue(), story, remap, checkpoint, suffix, progress, start);
+                }
+            }
+            return new Result(progress[0], progress[1], progress[2], progress[3], progress[4],
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            eventStore.flushPending(); // 迁移开始时正在修改的会话也换成新ID后写入
+            eventStore.remapNodeIds(null);
+        }
+    }
+
+    /**
+     * 迁移一个库（分片）中的玩家；progress 中累计各个库的结果，限速按所有库合计的行数计算
+     */
+    private void migrate(DataSource dataSource, String story, Map<String, String> mapping, NodeIdMapping remap,
+                         Properties checkpoint, String property, long[] progress, long start)
+            throws SQLException, IOException, InterruptedException {
+        long lastUserId = Long.parseLong(checkpoint.getProperty(property, "0"));
+        if (lastUserId > 0) {
+            System.out.println("节点ID迁移从检查点继续: user_id > " + lastUserId
+                    + (property.contains(".") ? "（" + property.substring(property.indexOf('.') + 1) + "）" : ""));
+        }
+        try (Connection reader = dataSource.getConnection(); Connection writer = dataSource.getConnection()) {
+            reader.setReadOnly(true);
+            reader.setAutoCommit(false); // 一些驱动（如 PostgreSQL）只在事务中使用游标
+            writer.setAutoCommit(false);
+            try (PreparedStatement select = reader.prepareStatement(selectSql(story, mapping.size()),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                 PreparedStatement update = writer.prepareStatement(UPDATE)) {
+                // MySQL Connector/J 只有 fetchSize = Integer.MIN_VALUE 时逐行流式读取，其他值会先读入全部结果
+                boolean mysql = reader.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+                select.setFetchSize(mysql ? Integer.MIN_VALUE : batchSize);
+                int p = 1;
+                for (String from : mapping.keySet()) { // 选择列中的 EXISTS
+                    select.setString(p++, from);
+                }
+                select.setLong(p++, lastUserId);
+                select.setString(p++, story);
+                for (int round = 0; round < 3; round++) {
+                    for (String from : mapping.keySet()) {
+                        select.setString(p++, from);
+                    }
+                }
+                List<Long> batch = new ArrayList<>(batchSize);
+                List<Long> visited = new ArrayList<>(); // 这一批中到达过旧节点的玩家
+                try (ResultSet rows = select.executeQuery()) {
+                    while (!stopping && rows.next()) {
+                        long userId = rows.getLong(1);
+                        String current = rows.getString(2);
+                        String lastSave = rows.getString(3);
+                        boolean visitedOld = rows.getInt(4) == 1;
+                        update.setString(1, current);
+                        update.setString(2, mapping.getOrDefault(current, current));
+                        update.setString(3, lastSave);
+                        update.setString(4, mapping.getOrDefault(lastSave, lastSave));
+                        update.setLong(5, userId);
+                        update.setString(6, current);
+                        update.setString(7, lastSave);
+                        update.setInt(8, visitedOld ? 1 : 0);
+                        update.addBatch();
+                        batch.add(userId);
+                        if (visitedOld) {
+                            visited.add(userId);
+                        }
+                        progress[0]++;
+                        if (batch.size() == batchSize) {
+                            commit(update, writer, batch, visited, remap, checkpoint, property, progress);
+                            batch.clear();
+                            visited.clear();
+                            throttle(progress[0], start);
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    commit(update, writer, batch, visited, remap, checkpoint, property, progress);
+                }
+            }
+            reader.commit();
+        }
+        progress[3] = Long.parseLong(checkpoint.getProperty(property, "0"));
+    }
+
+    /**
+     * (新) 迁移一个库（分片）中的存档位；检查点为最后完成的 (user_id, slot)
+     * 上一次保存之后的节点ID只在 state 的 JSON 中，所以读取这个故事的全部存档，逐个检查
+     */
+    private void migrateSlots(DataSource dataSource, String story, NodeIdMapping mapping, Properties checkpoint,
+                              String suffix, long[] progress, long start) throws SQLException, IOException, InterruptedException {
+        long lastUserId = Long.parseLong(checkpoint.getProperty("slots.lastUserId" + suffix, "0"));
+        String lastSlot = checkpoint.getProperty("slots.lastSlot" + suffix, "");
+        try (Connection reader = dataSource.getConnection(); Connection writer = dataSource.getConnection()) {
+            reader.setReadOnly(true);
+            reader.setAutoCommit(false);
+            writer.setAutoCommit(false);
+            String sql = "SELECT user_id, slot, node_id, state, saved_at FROM game_save_slot"
+                    + " WHERE (user_id > ? OR (user_id = ? AND slot > ?))"
+                    + (story.equals(gameRepository.getDefaultStoryId()) ? " AND (story_id = ? OR story_id IS NULL)" : " AND story_id = ?")
+                    + " ORDER BY user_id, slot";
+            try (PreparedStatement select = reader.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                 PreparedStatement update = writer.prepareStatement(UPDATE_SLOT)) {
+                boolean mysql = reader.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+                select.setFetchSize(mysql ? Integer.MIN_VALUE : batchSize);
+                select.setLong(1, lastUserId);
+                select.setLong(2, lastUserId);
+                select.setString(3, lastSlot);
+                select.setString(4, story);
+                int pending = 0;
+                int scanned = 0;
+                long userId = 0;
+                String slot = null;
+                try (ResultSet rows = select.executeQuery()) {
+                    while (!stopping && rows.next()) {
+                        userId = rows.getLong(1);
+                        slot = rows.getString(2);
+                        String nodeId = rows.getString(3);
+                        String state = rows.getString(4);
+                        String migrated = migratedSlot(mapping, userId, slot, state);
+                        progress[0]++;
+                        if (migrated != null || !mapping.map(nodeId).equals(nodeId)) {
+                            update.setString(1, mapping.map(nodeId));
+                            update.setString(2, migrated != null ? migrated : state);
+                            update.setLong(3, userId);
+                            update.setString(4, slot);
+                            update.setTimestamp(5, rows.getTimestamp(5));
+                            update.addBatch();
+                            pending++;
+                        }
+                        if (++scanned == batchSize) {
+                            progress[4] += commitSlots(update, writer, pending, checkpoint, suffix, userId, slot);
+                            pending = 0;
+                            scanned = 0;
+                            throttle(progress[0], start);
+                        }
+                    }
+                }
+                if (scanned > 0) {
+                    progress[4] += commitSlots(update, writer, pending, checkpoint, suffix, userId, slot);
+                }
+            }
+            reader.commit();
+        }
+    }
+
+    /**
+     * 只读取需要迁移的行；story_id 为 NULL 的旧行属于默认故事
+     * 第 4 列为 1 时玩家到达过旧节点（game_visited_node 中有需要迁移的行）
+     */
+    private String selectSql(String story, int sources) {
+        String in = placeholders(sources);
+        String visited = "EXISTS (SELECT 1 FROM game_visited_node v WHERE v.user_id = game_state.user_id AND v.node_id IN (" + in + "))";
+        return "SELECT user_id, current_node_id, last_save_node_id, CASE WHEN " + visited + " THEN 1 ELSE 0 END"
+                + " FROM game_state WHERE user_id > ?"
+                + (story.equals(gameRepository.getDefaultStoryId()) ? " AND (story_id = ? OR story_id IS NULL)" : " AND story_id = ?")
+                + " AND (current_node_id IN (" + in + ") OR last_save_node_id IN (" + in + ") OR " + visited + ")"
+                + " ORDER BY user_id";
+    }
+
+    private static String placeholders(int count) {
+        return "?" + ", ?".repeat(count - 1);
+    }
+
+    /**
+     * 写入一批并提交，然后记录检查点、移除这些玩家的内存会话；更新和跳过的行数累计到 progress
+     * visited 中的玩家到达过的节点在同一个事务中迁移
+     */
+    private void commit(PreparedStatement update, Connection writer, List<Long> batch, List<Long> visited,
+                        NodeIdMapping mapping, Properties checkpoint, String property, long[] progress)
+            throws SQLException, IOException {
+        long updated;
+        try {
+            updated = countUpdated(update.executeBatch());
+            if (!visited.isEmpty()) {
+                migrateVisited(writer, visited, mapping);
+            }
+            writer.commit();
+        } catch (SQLException e) {
+            writer.rollback();
+            throw e;
+        }
+        checkpoint.setProperty(property, Long.toString(batch.get(batch.size() - 1)));
+        writeCheckpoint(checkpoint);
+        Set<Long> migrated = new HashSet<>(batch);
+        sessionStore.removeIf(state -> migrated.contains(state.getId()));
+        progress[1] += updated;
+        progress[2] += batch.size() - updated;
+    }
+
+    /**
+     * (新) 把这些玩家到达过的旧节点换成新节点（与 NodeIdMapping.mapVisited 的结果相同）
+     * 在更新 game_state 的事务中执行：这些玩家的 game_state 行已被锁定，玩家的写入（先更新 game_state）
+     * 要等这个事务提交，之后因为版本号不一致而重试，不会同时插入同一个节点
+     */
+    private void migrateVisited(Connection writer, List<Long> users, NodeIdMapping mapping) throws SQLException {
+        Set<String> nodeIds = new LinkedHashSet<>();
+        for (String from : mapping.sources()) {
+            nodeIds.add(from);
+            nodeIds.add(mapping.map(from));
+        }
+        Map<Long, Set<String>> visited = new LinkedHashMap<>();
+        String sql = "SELECT user_id, node_id FROM game_visited_node WHERE user_id IN (" + placeholders(users.size())
+                + ") AND node_id IN (" + placeholders(nodeIds.size()) + ")";
+        try (PreparedStatement select = writer.prepareStatement(sql)) {
+            int p = 1;
+            for (Long userId : users) {
+                select.setLong(p++, userId);
+            }
+            for (String nodeId : nodeIds) {
+                select.setString(p++, nodeId);
+            }
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    visited.computeIfAbsent(rows.getLong(1), id -> new LinkedHashSet<>()).add(rows.getString(2));
+                }
+            }
+        }
+        try (PreparedStatement delete = writer.prepareStatement(DELETE_VISITED);
+             PreparedStatement insert = writer.prepareStatement(INSERT_VISITED)) {
+            for (Map.Entry<Long, Set<String>> user : visited.entrySet()) {
+                Set<String> before = user.getValue();
+                Set<String> after = mapping.mapVisited(before);
+                if (after == null) {
+                    continue;
+                }
+                for (String nodeId : before) {
+                    if (!after.contains(nodeId)) {
+                        delete.setLong(1, user.getKey());
+                        delete.setString(2, nodeId);
+                        delete.addBatch();
+                    }
+                }
+                for (String nodeId : after) {
+                    if (!before.contains(nodeId)) {
+                        insert.setLong(1, user.getKey());
+                        insert.setString(2, nodeId);
+                        insert.addBatch();
+                    }
+                }
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * 存档位的状态换成新ID后的 JSON；不需要修改或无法解析时返回 null（无法解析的存档读档时同样会失败，这里只记录）
+     */
+    private String migratedSlot(NodeIdMapping mapping, long userId, String slot, String state) {
+        try {
+            return mapping.apply(objectMapper, state);
+        } catch (JsonProcessingException e) {
+            System.err.println("无法解析存档 " + userId + "/" + slot + "，跳过: " + e.getOriginalMessage());
+            return null;
+        }
+    }
+
+    /**
+     * (新) 写入一批存档位（可能为空）并提交，然后把最后读取的 (user_id, slot) 记为检查点
+     * @return 更新的存档位数；读取之后被重新保存的存档不更新
+     */
+    private long commitSlots(PreparedStatement update, Connection writer, int pending, Properties checkpoint,
+                             String suffix, long userId, String slot) throws SQLException, IOException {
+        long updated = pending == 0 ? 0 : executeBatch(update, writer);
+        checkpoint.setProperty("slots.lastUserId" + suffix, Long.toString(userId));
+        checkpoint.setProperty("slots.lastSlot" + suffix, slot);
+        writeCheckpoint(checkpoint);
+        return updated;
+    }
+
+    /**
+     * 执行批量更新并提交；失败时回滚
+     * @return 实际修改了的行数（驱动不返回行数时按修改计算）
+     */
+    private static long executeBatch(PreparedStatement update, Connection writer) throws SQLException {
+        int[] counts;
+        try {
+            counts = update.executeBatch();
+            writer.commit();
+        } catch (SQLException e) {
+            writer.rollback();
+            throw e;
+        }
+        return countUpdated(counts);
+    }
+
+    /**
+     * 实际修改了的行数（驱动不返回行数时按修改计算）
+     */
+    private static long countUpdated(int[] counts) {
+        long updated = 0;
+        for (int count : counts) {
+            if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                updated++;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * 按 rows-per-second 限速：比目标速度快时等待
+     */
+    private void throttle(long rows, long start) throws InterruptedException {
+        if (rowsPerSecond == 0) {
+            return;
+        }
+        long ahead = rows * 1_000_000_000L / rowsPerSecond - (System.nanoTime() - start);
+        if (ahead > 0 && !stopping) {
+            TimeUnit.NANOSECONDS.sleep(ahead);
+        }
+    }
+
+    /**
+     * 检查点：每个库中已经完成的最后一个 user_id（lastUserId，分片时为 lastUserId.分片名称），
+     * 以及存档位中已经完成的最后一个 (user_id, slot)（slots.lastUserId 和 slots.lastSlot，分片时同样加上分片名称）
+     * 没有检查点或检查点属于另一个故事/映射表时从头开始
+     */
+    private Properties readCheckpoint(String key) throws IOException {
+        Properties checkpoint = new Properties();
+        if (Files.isRegularFile(checkpointFile)) {
+            try (Reader in = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+                checkpoint.load(in);
+            }
+        }
+        if (!key.equals(checkpoint.getProperty("mapping"))) {
+            checkpoint.clear();
+            checkpoint.setProperty("mapping", key);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * 先写临时文件再替换，中途崩溃时检查点仍然是完整的旧值
+     */
+    private void writeCheckpoint(Properties checkpoint) throws IOException {
+        Path parent = checkpointFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = parent.resolve(checkpointFile.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            checkpoint.store(out, "node-id migration");
+        }
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.textgame.service;
 
+import com.example.textgame.config.ReplicaRoutingDataSource;
 import com.example.textgame.model.User;
 // 导入新的 UserRepository
 import com.example.textgame.repository.UserRepository;
@@ -10,9 +11,13 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional; // 导入事务注解
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.List;
+import java.util.Optional;
 
 @Service
 @RequiredArgsConstructor
@@ -21,11 +26,13 @@ public class UserService implements UserDetailsService {
     // 依赖注入已更改为 JPA Repository
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
+    private final PlatformTransactionManager transactionManager;
 
     @Override
     @Transactional(readOnly = true) // 读取操作设为只读事务
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
         User user = userRepository.findByUsername(username)
+                .or(() -> findOnPrimary(username)) // (新) 刚注册的用户可能还没有复制到只读副本
                 .orElseThrow(() -> new UsernameNotFoundException("未找到用户: " + username));
 
         // 为用户添加一个默认权限
@@ -36,6 +43,19 @@ public class UserService implements UserDetailsService {
         );
     }
 
+    /**
+     * (新) 在主库上查找用户（新的只读事务；当前事务的连接已经来自副本）
+     */
+    private Optional<User> findOnPrimary(String username) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        template.setReadOnly(true);
+        return template.execute(status -> {
+            ReplicaRoutingDataSource.requirePrimary();
+            return userRepository.findByUsername(username);
+        });
+    }
+
     @Transactional // 开启事务
     public User registerUser(String username, String rawPassword) {
         if (userRepository.existsByUsername(username)) {